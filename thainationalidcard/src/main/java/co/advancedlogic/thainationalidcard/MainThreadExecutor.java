@@ -0,0 +1,32 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+public final class MainThreadExecutor implements Executor {
+    private static MainThreadExecutor instance = null;
+
+    private final Handler handler;
+
+    private MainThreadExecutor() {
+        this.handler = new Handler(Looper.getMainLooper());
+    }
+
+    public static synchronized MainThreadExecutor getInstance() {
+        if (instance == null) {
+            instance = new MainThreadExecutor();
+        }
+
+        return instance;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (!this.handler.post(command)) {
+            throw new RejectedExecutionException("Main looper is not running");
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+// ISO 7816-3 answer to reset, interface bytes are indexed from 1 like TA1, TB1, TC1, TD1
+public final class SmartCardAtr {
+    private static final String TAG = "SmartCardAtr";
+    private static final int MAX_LEVEL = 8;
+
+    private static final int[] FI_TABLE = new int[]{372, 372, 558, 744, 1116, 1488, 1860, -1, -1, 512, 768, 1024, 1536, 2048, -1, -1};
+    private static final int[] DI_TABLE = new int[]{-1, 1, 2, 4, 8, 16, 32, 64, 12, 20, -1, -1, -1, -1, -1, -1};
+
+    public static final int DEFAULT_FIDI = 0x11;
+
+    public enum Convention {
+        DIRECT,
+        INVERSE
+    }
+
+    private final byte[] atr;
+    private final int[] ta = new int[MAX_LEVEL + 1];
+    private final int[] tb = new int[MAX_LEVEL + 1];
+    private final int[] tc = new int[MAX_LEVEL + 1];
+    // protocol announced by TD(i-1) for the interface bytes of level i
+    private final int[] levelProtocol = new int[MAX_LEVEL + 1];
+    private int protocols = 0;
+    private int defaultProtocol = -1;
+    private int historicalOffset = 0;
+
+    private SmartCardAtr(byte[] atr) {
+        this.atr = atr;
+
+        Arrays.fill(this.ta, -1);
+        Arrays.fill(this.tb, -1);
+        Arrays.fill(this.tc, -1);
+        Arrays.fill(this.levelProtocol, -1);
+    }
+
+    // return null when the ATR is truncated or malformed
+    public static SmartCardAtr parse(byte[] atr) {
+        SmartCardAtr result;
+        int index = 1, level = 1, y, protocol;
+
+        if (atr == null || atr.length < 2 || (atr[0] != (byte)0x3b && atr[0] != (byte)0x3f)) {
+            Log.w(TAG, "Invalid ATR");
+            return null;
+        }
+
+        result = new SmartCardAtr(Arrays.copyOf(atr, atr.length));
+        y = atr[1] & 0xff;
+
+        while (true) {
+            if ((y & 0x10) != 0) {
+                if (++index >= atr.length) break;
+                result.ta[level] = atr[index] & 0xff;
+            }
+
+            if ((y & 0x20) != 0) {
+                if (++index >= atr.length) break;
+                result.tb[level] = atr[index] & 0xff;
+            }
+
+            if ((y & 0x40) != 0) {
+                if (++index >= atr.length) break;
+                result.tc[level] = atr[index] & 0xff;
+            }
+
+            if ((y & 0x80) == 0) {
+                break;
+            }
+
+            if (++index >= atr.length || level >= MAX_LEVEL) {
+                Log.w(TAG, "ATR interface bytes truncated");
+                return null;
+            }
+
+            y = atr[index] & 0xff;
+            protocol = y & 0x0f;
+
+            // T=15 announce global interface bytes, not a protocol
+            if (protocol != 15) {
+                result.protocols |= 1 << protocol;
+                if (result.defaultProtocol < 0) {
+                    result.defaultProtocol = protocol;
+                }
+            }
+
+            result.levelProtocol[++level] = protocol;
+        }
+
+        // T0 low nibble is the historical bytes count, TCK follow when a protocol other than T=0 is offered
+        if (index + 1 + (atr[1] & 0x0f) + (((result.protocols & ~1) != 0) ? 1 : 0) > atr.length) {
+            Log.w(TAG, "ATR historical bytes truncated");
+            return null;
+        }
+
+        if (result.defaultProtocol < 0) {
+            result.defaultProtocol = 0;
+            result.protocols = 1;
+        }
+
+        result.historicalOffset = index + 1;
+
+        return result;
+    }
+
+    public byte[] getBytes() {
+        return Arrays.copyOf(this.atr, this.atr.length);
+    }
+
+    public Convention getConvention() {
+        return (this.atr[0] == (byte)0x3f) ? Convention.INVERSE : Convention.DIRECT;
+    }
+
+    public byte[] getHistoricalBytes() {
+        return Arrays.copyOfRange(this.atr, this.historicalOffset, this.historicalOffset + (this.atr[1] & 0x0f));
+    }
+
+    public int getTA(int level) {
+        return (level > 0 && level <= MAX_LEVEL) ? this.ta[level] : -1;
+    }
+
+    public int getTB(int level) {
+        return (level > 0 && level <= MAX_LEVEL) ? this.tb[level] : -1;
+    }
+
+    public int getTC(int level) {
+        return (level > 0 && level <= MAX_LEVEL) ? this.tc[level] : -1;
+    }
+
+    public boolean isProtocolOffered(int protocol) {
+        return protocol >= 0 && protocol < 15 && (this.protocols & (1 << protocol)) != 0;
+    }
+
+    public int[] getProtocols() {
+        int[] result = new int[Integer.bitCount(this.protocols)];
+
+        for (int protocol = 0, i = 0; protocol < 15; protocol++) {
+            if (this.isProtocolOffered(protocol)) {
+                result[i++] = protocol;
+            }
+        }
+
+        return result;
+    }
+
+    // first offered protocol, used after reset when no PPS is done
+    public int getDefaultProtocol() {
+        return this.defaultProtocol;
+    }
+
+    // TA2 present = specific mode, no PPS allowed
+    public boolean isSpecificMode() {
+        return this.ta[2] >= 0;
+    }
+
+    public int getSpecificProtocol() {
+        return (this.ta[2] >= 0) ? this.ta[2] & 0x0f : -1;
+    }
+
+    // TA2 bit 5 set = Fi/Di are implicitly defined, TA1 does not apply
+    public boolean isSpecificModeImplicit() {
+        return this.ta[2] >= 0 && (this.ta[2] & 0x10) != 0;
+    }
+
+    // TA1 or the default Fi=372 Di=1
+    public int getFiDi() {
+        return (this.ta[1] >= 0) ? this.ta[1] : DEFAULT_FIDI;
+    }
+
+    public int getFi() {
+        return getFi(this.getFiDi());
+    }
+
+    public int getDi() {
+        return getDi(this.getFiDi());
+    }
+
+    // TC1 extra guard time N
+    public int getGuardTime() {
+        return (this.tc[1] >= 0) ? this.tc[1] : 0;
+    }
+
+    // TC2 T=0 waiting integer
+    public int getWaitingInteger() {
+        return (this.tc[2] >= 0) ? this.tc[2] : 10;
+    }
+
+    // first TA of a T=1 level is IFSC, first TB is BWI/CWI, first TC bit 0 is CRC
+    public int getIfsc() {
+        int value = this.getProtocolByte(this.ta, 1);
+
+        return (value > 0 && value <= SmartCardT1.MAX_IFS) ? value : SmartCardT1.DEFAULT_IFS;
+    }
+
+    public int getBwiCwi() {
+        int value = this.getProtocolByte(this.tb, 1);
+
+        return (value >= 0) ? value : 0x4d;
+    }
+
+    public boolean isCrc() {
+        int value = this.getProtocolByte(this.tc, 1);
+
+        return value >= 0 && (value & 0x01) != 0;
+    }
+
+    private int getProtocolByte(int[] bytes, int protocol) {
+        for (int level = 3; level <= MAX_LEVEL; level++) {
+            if (this.levelProtocol[level] == protocol && bytes[level] >= 0) {
+                return bytes[level];
+            }
+        }
+
+        return -1;
+    }
+
+    // hex string of the ATR bytes
+    public String getKey() {
+        return SmartCardDevice.toHexString(this.atr, 0, this.atr.length);
+    }
+
+    public static int getFi(int fiDi) {
+        return FI_TABLE[(fiDi >> 4) & 0x0f];
+    }
+
+    public static int getDi(int fiDi) {
+        return DI_TABLE[fiDi & 0x0f];
+    }
+
+    // clock cycles per bit, smaller is faster, -1 for reserved values
+    public static int getCyclesPerBit(int fiDi) {
+        int fi = getFi(fiDi), di = getDi(fiDi);
+
+        return (fi > 0 && di > 0) ? fi / di : -1;
+    }
+}
@@ -0,0 +1,74 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+// mutable bitmaps given back by the application, reused by BitmapFactory.Options.inBitmap
+public final class SmartCardBitmapPool {
+    private final int maxPooled;
+    private final ArrayDeque<Bitmap> bitmaps;
+
+    public SmartCardBitmapPool(int maxPooled) {
+        if (maxPooled < 0) {
+            throw new IllegalArgumentException("Invalid bitmap pool size");
+        }
+
+        this.maxPooled = maxPooled;
+        this.bitmaps = new ArrayDeque<Bitmap>(maxPooled);
+    }
+
+    // bitmap able to receive a width x height ARGB_8888 picture, null when none is pooled
+    // inBitmap only need to be large enough since KitKat, below the minimum SDK
+    public synchronized Bitmap acquire(int width, int height, int sampleSize) {
+        Iterator<Bitmap> iterator = this.bitmaps.iterator();
+        Bitmap bitmap;
+        int sampledWidth = (width + sampleSize - 1) / sampleSize;
+        int sampledHeight = (height + sampleSize - 1) / sampleSize;
+
+        while (iterator.hasNext()) {
+            bitmap = iterator.next();
+
+            if (bitmap.isRecycled()) {
+                iterator.remove();
+                continue;
+            }
+
+            if (bitmap.getAllocationByteCount() < sampledWidth * sampledHeight * 4) {
+                continue;
+            }
+
+            iterator.remove();
+            return bitmap;
+        }
+
+        return null;
+    }
+
+    // the bitmap must not be used anymore by the application, it is recycled when the pool is full
+    public synchronized void release(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled()) {
+            return;
+        }
+
+        if (!bitmap.isMutable() || bitmap.getConfig() != Bitmap.Config.ARGB_8888 || this.bitmaps.size() >= this.maxPooled) {
+            bitmap.recycle();
+            return;
+        }
+
+        this.bitmaps.addFirst(bitmap);
+    }
+
+    public synchronized int getPooledCount() {
+        return this.bitmaps.size();
+    }
+
+    public synchronized void clear() {
+        for (Bitmap bitmap : this.bitmaps) {
+            bitmap.recycle();
+        }
+
+        this.bitmaps.clear();
+    }
+}
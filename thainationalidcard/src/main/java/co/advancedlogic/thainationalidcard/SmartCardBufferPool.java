@@ -0,0 +1,51 @@
+package co.advancedlogic.thainationalidcard;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+public final class SmartCardBufferPool {
+    private final int bufferSize;
+    private final int maxPooled;
+    private final ArrayDeque<ByteBuffer> buffers;
+
+    public SmartCardBufferPool(int bufferSize, int maxPooled) {
+        if (bufferSize <= 0 || maxPooled < 0) {
+            throw new IllegalArgumentException("Invalid buffer pool size");
+        }
+
+        this.bufferSize = bufferSize;
+        this.maxPooled = maxPooled;
+        this.buffers = new ArrayDeque<ByteBuffer>(maxPooled);
+    }
+
+    public int getBufferSize() {
+        return this.bufferSize;
+    }
+
+    public synchronized ByteBuffer acquire() {
+        ByteBuffer buffer = this.buffers.pollFirst();
+
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(this.bufferSize);
+        }
+
+        buffer.clear();
+
+        return buffer;
+    }
+
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != this.bufferSize || !buffer.isDirect()) {
+            return;
+        }
+
+        if (this.buffers.size() < this.maxPooled) {
+            buffer.clear();
+            this.buffers.addFirst(buffer);
+        }
+    }
+
+    public synchronized int getPooledCount() {
+        return this.buffers.size();
+    }
+}
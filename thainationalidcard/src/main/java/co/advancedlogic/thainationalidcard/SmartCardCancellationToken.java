@@ -0,0 +1,53 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+
+public final class SmartCardCancellationToken {
+    private static final String TAG = "SmartCardCancellation";
+
+    private volatile boolean cancelled = false;
+    private final ArrayList<Runnable> listeners = new ArrayList<Runnable>();
+
+    public void cancel() {
+        Runnable[] runnables;
+
+        synchronized (this) {
+            if (this.cancelled) {
+                return;
+            }
+
+            this.cancelled = true;
+            runnables = this.listeners.toArray(new Runnable[0]);
+        }
+
+        for (Runnable runnable : runnables) {
+            try {
+                runnable.run();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Cancellation listener failed", e);
+            }
+        }
+    }
+
+    public boolean isCancelled() {
+        return this.cancelled;
+    }
+
+    // listener is run immediately when the token is already cancelled
+    void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!this.cancelled) {
+                this.listeners.add(listener);
+                return;
+            }
+        }
+
+        listener.run();
+    }
+
+    synchronized void removeListener(Runnable listener) {
+        this.listeners.remove(listener);
+    }
+}
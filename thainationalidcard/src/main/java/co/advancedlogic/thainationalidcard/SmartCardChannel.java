@@ -0,0 +1,321 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+// one CCID bulk pipe shared by every slot of a reader, response is routed to the waiting exchange by bSlot and bSeq
+// there is no reader thread, the first waiting caller read the pipe and hand over the responses of the others
+final class SmartCardChannel {
+    private static final String TAG = "SmartCardChannel";
+    private static final int MAX_DATA_LENGTH = 65536 + 2;
+    // short APDU response with its header when the reader does not report dwMaxCCIDMessageLength
+    private static final int DEFAULT_MESSAGE_LENGTH = 10 + 256 + 2;
+
+    private final SmartCardTransport transport;
+    private final Object sendLock = new Object();
+    private final HashMap<Integer, Exchange> exchanges = new HashMap<Integer, Exchange>();
+    private Exchange receiving = null;
+    private byte[] buffer = new byte[64];
+    private byte[] leftover = null;
+    private volatile int maxMessageLength = DEFAULT_MESSAGE_LENGTH;
+    private int claimCount = 0;
+
+    static final class Exchange {
+        final int key;
+        byte[] buffer;
+        int length = -1;
+        boolean done = false;
+        boolean cancelled = false;
+
+        Exchange(int key, byte[] buffer) {
+            this.key = key;
+            this.buffer = buffer;
+        }
+    }
+
+    SmartCardChannel(SmartCardTransport transport) {
+        this.transport = transport;
+    }
+
+    SmartCardTransport getTransport() {
+        return this.transport;
+    }
+
+    // dwMaxCCIDMessageLength, a whole response is read by one bulk-IN transfer of this size
+    void setMaxMessageLength(int maxMessageLength) {
+        this.maxMessageLength = Math.min(Math.max(maxMessageLength, DEFAULT_MESSAGE_LENGTH), MAX_DATA_LENGTH + 10);
+    }
+
+    // multiple of the packet size so the transfer end with the short packet of the message
+    private int getReadLength(int length, int packetSize) {
+        return Math.max(packetSize, ((length + packetSize - 1) / packetSize) * packetSize);
+    }
+
+    synchronized boolean claim() {
+        if (this.claimCount == 0 && !this.transport.claim()) {
+            return false;
+        }
+
+        this.claimCount++;
+
+        return true;
+    }
+
+    synchronized void release() {
+        if (this.claimCount <= 0) {
+            return;
+        }
+
+        if (--this.claimCount == 0) {
+            this.transport.release();
+        }
+    }
+
+    private static int getKey(int slot, int sequence) {
+        return ((slot & 0xff) << 8) | (sequence & 0xff);
+    }
+
+    // register before the request is sent so a response read by another caller is not dropped
+    synchronized Exchange register(byte slot, byte sequence, byte[] buffer) {
+        Exchange exchange = new Exchange(getKey(slot, sequence), buffer);
+
+        this.exchanges.put(exchange.key, exchange);
+
+        return exchange;
+    }
+
+    synchronized void unregister(Exchange exchange) {
+        if (this.exchanges.get(exchange.key) == exchange) {
+            this.exchanges.remove(exchange.key);
+        }
+    }
+
+    synchronized void cancel(Exchange exchange) {
+        if (exchange == null) {
+            return;
+        }
+
+        exchange.cancelled = true;
+
+        if (this.receiving == exchange) {
+            this.transport.cancel();
+        }
+
+        this.notifyAll();
+    }
+
+    synchronized void cancelAll() {
+        for (Exchange exchange : this.exchanges.values()) {
+            exchange.cancelled = true;
+        }
+
+        this.transport.cancel();
+        this.notifyAll();
+    }
+
+    // fragments of one message are never interleaved with the message of another slot
+    // return the length sent, 0 when nothing reached the reader or -1 when a transfer failed or the message is partly sent
+    int send(byte[][] messages, SmartCardDevice device) {
+        int length, timeout, sent = 0;
+
+        for (byte[] message : messages) {
+            if (message == null || message.length == 0) {
+                Log.w(TAG, "message is null or invalid length");
+                return 0;
+            }
+        }
+
+        synchronized (this.sendLock) {
+            for (byte[] message : messages) {
+
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Sending message [" + message.length + "][" + SmartCardDevice.toHexString(message, 0, message.length) + "]");
+                }
+
+                if ((timeout = device.getTransferTimeout()) < 0) {
+                    return (sent > 0) ? -1 : 0;
+                }
+
+                length = this.transport.send(message, 0, message.length, timeout);
+
+                if (length <= 0 || length != message.length) {
+                    Log.w(TAG, "message sending return invalid length " + length + "/" + message.length);
+                    return -1;
+                }
+
+                sent += length;
+            }
+        }
+
+        return sent;
+    }
+
+    // wait for the response of the exchange, return its length in exchange.buffer or -1 on error, timeout or cancel
+    int receive(Exchange exchange, SmartCardDevice device) {
+        int length, timeout;
+        long start;
+
+        while (true) {
+            synchronized (this) {
+                while (this.receiving != null) {
+                    if (exchange.done) {
+                        return exchange.length;
+                    }
+
+                    if (exchange.cancelled || (timeout = device.getTransferTimeout()) < 0) {
+                        return -1;
+                    }
+
+                    start = System.nanoTime();
+
+                    try {
+                        this.wait(timeout);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return -1;
+                    }
+
+                    if (timeout > 0 && !exchange.done && (System.nanoTime() - start) / 1000000L >= timeout) {
+                        Log.w(TAG, "Response wait timeout");
+                        return -1;
+                    }
+                }
+
+                if (exchange.done) {
+                    return exchange.length;
+                }
+
+                if (exchange.cancelled) {
+                    return -1;
+                }
+
+                this.receiving = exchange;
+            }
+
+            length = this.readMessage(device);
+
+            synchronized (this) {
+                this.receiving = null;
+
+                if (length >= 0) {
+                    this.dispatch(length);
+                }
+
+                this.notifyAll();
+
+                if (length < 0) {
+                    return -1;
+                }
+            }
+        }
+    }
+
+    private void dispatch(int length) {
+        Exchange exchange = this.exchanges.get(getKey(this.buffer[5], this.buffer[6]));
+
+        if (exchange == null || exchange.done) {
+            Log.w(TAG, String.format("Discard stale response type[%02x] slot[%d] seq[%d]", this.buffer[0], this.buffer[5], this.buffer[6] & 0xff));
+            return;
+        }
+
+        // bmCommandStatus time extension, the real response follow
+        if ((this.buffer[7] & 0xc0) == 0x80) {
+            Log.d(TAG, "Time extension requested [" + (this.buffer[8] & 0xff) + "]");
+            return;
+        }
+
+        if (exchange.buffer.length < length) {
+            exchange.buffer = new byte[length];
+        }
+
+        System.arraycopy(this.buffer, 0, exchange.buffer, 0, length);
+        exchange.length = length;
+        exchange.done = true;
+    }
+
+    private static int getDataLength(byte[] message) {
+        return (((int)message[4] & 0xff) << 24) | (((int)message[3] & 0xff) << 16) | (((int)message[2] & 0xff) << 8) | ((int)message[1] & 0xff);
+    }
+
+    private static boolean isResponseHeader(byte[] message, int length) {
+        int type = message[0] & 0xff;
+        int dataLength = getDataLength(message);
+
+        return length >= 10 && type >= 0x80 && type <= 0x84 && dataLength >= 0 && dataLength <= MAX_DATA_LENGTH;
+    }
+
+    // receive one CCID message into buffer, packet left from an aborted message is dropped
+    private int readMessage(SmartCardDevice device) {
+        int length, received, totalLength, timeout, readLength;
+        int packetSize = this.transport.getMaxPacketSize();
+
+        readLength = this.getReadLength(this.maxMessageLength, packetSize);
+
+        if (this.buffer.length < readLength) {
+            this.buffer = new byte[readLength];
+        }
+
+        while (true) {
+            if ((timeout = device.getTransferTimeout()) < 0) {
+                return -1;
+            }
+
+            if (this.leftover != null) {
+                // next message already received with the previous one
+                length = this.leftover.length;
+                System.arraycopy(this.leftover, 0, this.buffer, 0, length);
+                this.leftover = null;
+            } else {
+                length = this.transport.receive(this.buffer, 0, readLength, timeout);
+            }
+
+            if (length <= 0) {
+                Log.w(TAG, "receive message invalid length " + length);
+                return -1;
+            }
+
+            if (isResponseHeader(this.buffer, length)) {
+                break;
+            }
+
+            Log.w(TAG, "Discard invalid packet length " + length);
+        }
+
+        received = length;
+        totalLength = getDataLength(this.buffer) + 10;
+
+        // grow only when a message exceed the current buffer, keep the space for a whole read
+        if (this.buffer.length < totalLength + readLength) {
+            byte[] buffer = new byte[totalLength + readLength];
+
+            System.arraycopy(this.buffer, 0, buffer, 0, received);
+            this.buffer = buffer;
+        }
+
+        while (received < totalLength) {
+            if ((timeout = device.getTransferTimeout()) < 0) {
+                return -1;
+            }
+
+            length = this.transport.receive(this.buffer, received, this.getReadLength(totalLength - received, packetSize), timeout);
+            if (length < 0) {
+                Log.w(TAG, "receive continues message return error");
+                return -1;
+            } else if (length == 0) {
+                Log.w(TAG, "receive continues message not success");
+                return -1;
+            }
+
+            received += length;
+        }
+
+        if (received > totalLength) {
+            Log.d(TAG, "Keep " + (received - totalLength) + " bytes of the next message");
+            this.leftover = Arrays.copyOfRange(this.buffer, totalLength, received);
+        }
+
+        return totalLength;
+    }
+}
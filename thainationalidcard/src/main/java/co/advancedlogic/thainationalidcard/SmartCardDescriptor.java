@@ -0,0 +1,177 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+// CCID functional descriptor of the reader interface, bDescriptorType 0x21 and 54 bytes long
+public final class SmartCardDescriptor {
+    private static final String TAG = "SmartCardDescriptor";
+
+    public static final int DESCRIPTOR_TYPE = 0x21;
+    public static final int DESCRIPTOR_LENGTH = 0x36;
+
+    // dwFeatures
+    public static final int FEATURE_AUTO_ATR_CONFIGURATION = 0x00000002;
+    public static final int FEATURE_AUTO_ACTIVATION = 0x00000004;
+    public static final int FEATURE_AUTO_VOLTAGE = 0x00000008;
+    public static final int FEATURE_AUTO_CLOCK = 0x00000010;
+    public static final int FEATURE_AUTO_BAUD_RATE = 0x00000020;
+    public static final int FEATURE_AUTO_PARAMETERS = 0x00000040;
+    public static final int FEATURE_AUTO_PPS = 0x00000080;
+    public static final int FEATURE_CLOCK_STOP = 0x00000100;
+    public static final int FEATURE_NAD = 0x00000200;
+    public static final int FEATURE_AUTO_IFSD = 0x00000400;
+    public static final int FEATURE_LEVEL_MASK = 0x00070000;
+    public static final int FEATURE_LEVEL_TPDU = 0x00010000;
+    public static final int FEATURE_LEVEL_SHORT_APDU = 0x00020000;
+    public static final int FEATURE_LEVEL_EXTENDED_APDU = 0x00040000;
+
+    private final byte[] descriptor;
+
+    private SmartCardDescriptor(byte[] descriptor) {
+        this.descriptor = descriptor;
+    }
+
+    // return null when the descriptor is not a CCID functional descriptor
+    public static SmartCardDescriptor parse(byte[] descriptor) {
+        if (descriptor == null || descriptor.length < DESCRIPTOR_LENGTH || (descriptor[0] & 0xff) < DESCRIPTOR_LENGTH || (descriptor[1] & 0xff) != DESCRIPTOR_TYPE) {
+            Log.w(TAG, "Invalid CCID class descriptor");
+            return null;
+        }
+
+        return new SmartCardDescriptor(Arrays.copyOf(descriptor, DESCRIPTOR_LENGTH));
+    }
+
+    // find the CCID descriptor following the interface descriptor in the raw configuration descriptors
+    public static SmartCardDescriptor find(byte[] descriptors, int interfaceNumber) {
+        boolean inInterface = false;
+        int length;
+
+        if (descriptors == null) {
+            return null;
+        }
+
+        for (int index = 0; index + 1 < descriptors.length; index += length) {
+            length = descriptors[index] & 0xff;
+
+            if (length < 2 || index + length > descriptors.length) {
+                break;
+            }
+
+            // bDescriptorType 0x04 interface, bInterfaceNumber at offset 2
+            if (descriptors[index + 1] == (byte)0x04 && length >= 3) {
+                inInterface = (descriptors[index + 2] & 0xff) == interfaceNumber;
+            } else if (inInterface && (descriptors[index + 1] & 0xff) == DESCRIPTOR_TYPE && length >= DESCRIPTOR_LENGTH) {
+                return parse(Arrays.copyOfRange(descriptors, index, index + length));
+            }
+        }
+
+        return null;
+    }
+
+    public byte[] getBytes() {
+        return Arrays.copyOf(this.descriptor, this.descriptor.length);
+    }
+
+    public int getVersion() {
+        return this.getShort(2);
+    }
+
+    public int getMaxSlotIndex() {
+        return this.descriptor[4] & 0xff;
+    }
+
+    // dwProtocols bit 0 = T=0, bit 1 = T=1
+    public boolean isProtocolSupported(int protocol) {
+        return protocol >= 0 && protocol < 16 && (this.getInt(6) & (1 << protocol)) != 0;
+    }
+
+    // clock in kHz
+    public int getDefaultClock() {
+        return this.getInt(10);
+    }
+
+    public int getMaximumClock() {
+        return this.getInt(14);
+    }
+
+    // data rate in bps
+    public int getDataRate() {
+        return this.getInt(19);
+    }
+
+    public int getMaxDataRate() {
+        return this.getInt(23);
+    }
+
+    public int getMaxIfsd() {
+        return this.getInt(28);
+    }
+
+    public int getFeatures() {
+        return this.getInt(40);
+    }
+
+    public boolean hasFeature(int feature) {
+        return (this.getFeatures() & feature) != 0;
+    }
+
+    // longest message the reader accept including the 10 bytes header
+    public int getMaxMessageLength() {
+        return this.getInt(44);
+    }
+
+    public int getMaxBusySlots() {
+        return this.descriptor[53] & 0xff;
+    }
+
+    public SmartCardDevice.ExchangeLevel getExchangeLevel() {
+        int level = this.getFeatures() & FEATURE_LEVEL_MASK;
+
+        if ((level & FEATURE_LEVEL_EXTENDED_APDU) != 0) {
+            return SmartCardDevice.ExchangeLevel.EXTENDED_APDU;
+        } else if ((level & FEATURE_LEVEL_SHORT_APDU) != 0) {
+            return SmartCardDevice.ExchangeLevel.SHORT_APDU;
+        } else if ((level & FEATURE_LEVEL_TPDU) != 0) {
+            return SmartCardDevice.ExchangeLevel.TPDU;
+        }
+
+        return SmartCardDevice.ExchangeLevel.CHARACTER;
+    }
+
+    // the reader do the PPS itself, the host must not send one
+    public boolean isAutoParameters() {
+        return this.hasFeature(FEATURE_AUTO_PARAMETERS | FEATURE_AUTO_PPS);
+    }
+
+    // rate of the card at the Fi/Di with the default clock, false when the reader can not reach it
+    public boolean isRateSupported(int fiDi) {
+        int cycles = SmartCardAtr.getCyclesPerBit(fiDi);
+
+        if (cycles <= 0) {
+            return false;
+        }
+
+        return this.getMaxDataRate() <= 0 || this.getDefaultClock() <= 0 || (long)this.getDefaultClock() * 1000L / cycles <= this.getMaxDataRate();
+    }
+
+    // data rate in bps of the card at the Fi/Di with the default clock, -1 when the clock is unknown
+    public int getDataRate(int fiDi) {
+        int cycles = SmartCardAtr.getCyclesPerBit(fiDi);
+
+        if (cycles <= 0 || this.getDefaultClock() <= 0) {
+            return -1;
+        }
+
+        return (int)((long)this.getDefaultClock() * 1000L / cycles);
+    }
+
+    private int getShort(int offset) {
+        return (this.descriptor[offset] & 0xff) | ((this.descriptor[offset + 1] & 0xff) << 8);
+    }
+
+    private int getInt(int offset) {
+        return (this.descriptor[offset] & 0xff) | ((this.descriptor[offset + 1] & 0xff) << 8) | ((this.descriptor[offset + 2] & 0xff) << 16) | ((this.descriptor[offset + 3] & 0xff) << 24);
+    }
+}
@@ -5,21 +5,40 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 public class SmartCardDevice {
     private static final String ACTION_USB_PERMISSION = "ninkoman.smartcardreader.USB_PERMISSION";
     private static final String TAG = "SmartCardDevice";
+    private static final int RECEIVE_BUFFER_SIZE = 10 + 256 + 2;
+    private static final int RECOVERY_TIMEOUT = 1000;
+    private static final int INTERRUPT_TIMEOUT = 1000;
+    private static final int MAX_INTERRUPT_FAILURE = 8;
+    private static final int CARD_STATUS_VALIDITY = 200;
+
+    private static HandlerThread eventThread = null;
+    private static Handler eventHandler = null;
 
     private Context context;
     private UsbDevice device;
@@ -30,15 +49,59 @@ public class SmartCardDevice {
     private UsbInterface deviceInterface = null;
     private UsbEndpoint inputEndpoint = null;
     private UsbEndpoint outputEndpoint = null;
+    private SmartCardTransport transport = null;
+    private SmartCardChannel channel = null;
+    private volatile SmartCardChannel.Exchange currentExchange = null;
+    private SmartCardDevice parent = null;
+    private final HashMap<Integer, SmartCardDevice> slotDevices = new HashMap<Integer, SmartCardDevice>();
+    private byte[] receiveBuffer = new byte[RECEIVE_BUFFER_SIZE];
+    private boolean interfaceClaimed = false;
+    private boolean recoveryRequired = false;
+    private boolean recovering = false;
+    private volatile SmartCardMessage.IccStatus cardStatus = null;
+    private volatile long cardStatusTime = 0;
+    private volatile Thread notificationThread = null;
+    private volatile ExchangeLevel exchangeLevel = ExchangeLevel.TPDU;
+    private volatile boolean exchangeLevelSet = false;
+    private volatile SmartCardDescriptor descriptor = null;
+    private SmartCardT1 t1 = null;
+    private volatile SmartCardAtr atr = null;
+    // SELECT command of the applet currently selected on the card, null when unknown
+    private volatile byte[] selectedApplet = null;
+    private volatile SmartCardProfileCache profileCache = SmartCardProfileCache.getDefault();
+    private int sessionCount = 0;
+    private SmartCardSession currentSession = null;
+
+    private final Runnable cancelTransfer = new Runnable() {
+        @Override
+        public void run() {
+            SmartCardChannel channel = SmartCardDevice.this.channel;
+
+            if (channel != null) {
+                channel.cancel(SmartCardDevice.this.currentExchange);
+            }
+        }
+    };
+
+    private final SmartCardT1.BlockExchange blockExchange = new SmartCardT1.BlockExchange() {
+        @Override
+        public byte[] exchange(byte[] block, int bwi) {
+            return SmartCardDevice.this.exchangeBlock(block, bwi);
+        }
+    };
 
     private int infIndex = 0;
     private int endpointInputIndex = 0;
     private int endpointOutputIndex = 0;
-    private boolean stopped = true;
+    private volatile boolean stopped = true;
     private boolean started = false;
     private boolean deviceDetachedRegister = false;
 
     private SmartCardDeviceEvent eventCallback = null;
+    private Executor callbackExecutor = null;
+    private ExecutorService ioExecutor = null;
+    // set by stop(), no I/O thread is created until the device is started again
+    private boolean ioClosed = false;
 
     private BroadcastReceiver usbStateChangeReceiver = new BroadcastReceiver() {
         @Override
@@ -54,6 +117,11 @@ public class SmartCardDevice {
     };
 
     public SmartCardDevice(Context context, UsbDevice device, int infIndex, int endpointInputIndex, int endpointOutputIndex, SmartCardDeviceEvent eventCallback) {
+        this(context, device, infIndex, endpointInputIndex, endpointOutputIndex, MainThreadExecutor.getInstance(), eventCallback);
+    }
+
+    // USB broadcast is handled on a background thread, eventCallback is run on callbackExecutor
+    public SmartCardDevice(Context context, UsbDevice device, int infIndex, int endpointInputIndex, int endpointOutputIndex, Executor callbackExecutor, SmartCardDeviceEvent eventCallback) {
         if (context == null || device == null) {
             throw new NullPointerException();
         }
@@ -66,10 +134,43 @@ public class SmartCardDevice {
         this.endpointInputIndex = endpointInputIndex;
         this.endpointOutputIndex = endpointOutputIndex;
         this.eventCallback = eventCallback;
+        this.callbackExecutor = callbackExecutor;
 
         mPermissionIntent = PendingIntent.getBroadcast(context, 0, new Intent(ACTION_USB_PERMISSION), 0);
         IntentFilter filter = new IntentFilter(ACTION_USB_PERMISSION);
-        context.registerReceiver(this.mUsbPermissionReceiver, filter);
+        context.registerReceiver(this.mUsbPermissionReceiver, filter, null, SmartCardDevice.getEventHandler());
+    }
+
+    private static synchronized Handler getEventHandler() {
+        if (eventHandler == null) {
+            eventThread = new HandlerThread("SmartCardDevice-Event");
+            eventThread.start();
+            eventHandler = new Handler(eventThread.getLooper());
+        }
+
+        return eventHandler;
+    }
+
+    public SmartCardDevice(SmartCardTransport transport, SmartCardDeviceEvent eventCallback) {
+        if (transport == null) {
+            throw new NullPointerException();
+        }
+
+        this.transport = transport;
+        this.message = new SmartCardMessage();
+        this.eventCallback = eventCallback;
+    }
+
+    // another slot of a started reader, share the USB interface and has its own I/O thread
+    private SmartCardDevice(SmartCardDevice parent, SmartCardMessage message) {
+        this.parent = parent;
+        this.transport = parent.transport;
+        this.channel = parent.channel;
+        this.message = message;
+
+        this.started = true;
+        this.havePermission = true;
+        this.stopped = false;
     }
 
     @Override
@@ -78,11 +179,25 @@ public class SmartCardDevice {
         this.stop();
     }
 
+    // CCID exchange level of the reader, at APDU level the reader fetch the response of a case 4 command itself
+    public enum ExchangeLevel {
+        CHARACTER,
+        TPDU,
+        SHORT_APDU,
+        EXTENDED_APDU
+    }
+
     public interface SmartCardDeviceEvent {
         void OnReady(SmartCardDevice device);
         void OnDetached(SmartCardDevice device);
     }
 
+    // implement this one instead to receive card insertion and removal of reader with interrupt endpoint
+    public interface SmartCardSlotEvent extends SmartCardDeviceEvent {
+        void OnCardInserted(SmartCardDevice device);
+        void OnCardRemoved(SmartCardDevice device);
+    }
+
     public static SmartCardDevice getSmartCardDevice(Context context, String nameContain, int infIndex, int endpointInputIndex, int endpointOutputIndex, SmartCardDeviceEvent eventCallback) {
         UsbManager manager;
         HashMap<String, UsbDevice> deviceList;
@@ -123,6 +238,10 @@ public class SmartCardDevice {
     }
 
     public static SmartCardDevice getSmartCardDevice(Context context, String nameContain, SmartCardDeviceEvent eventCallback) {
+        return SmartCardDevice.getSmartCardDevice(context, nameContain, MainThreadExecutor.getInstance(), eventCallback);
+    }
+
+    public static SmartCardDevice getSmartCardDevice(Context context, String nameContain, Executor callbackExecutor, SmartCardDeviceEvent eventCallback) {
         UsbManager manager;
         HashMap<String, UsbDevice> deviceList;
         UsbDevice device = null;
@@ -151,30 +270,88 @@ public class SmartCardDevice {
         }
 
         if (device == null) {
-            Log.w(TAG, "Device name [" + nameContain + "] not found");
+            Log.d(TAG, "Device name [" + nameContain + "] not found");
+            return null;
+        }
+
+        cardDevice = SmartCardDevice.createSmartCardDevice(context, device, callbackExecutor, eventCallback);
+        if (cardDevice == null) {
             return null;
         }
 
-        UsbInterface intf = device.getInterface(0);
-        int[] endpointIndex = new int[2];
-        int index = 0;
+        cardDevice.start();
+
+        return cardDevice;
+    }
+
+    // find list of device contain the name, one process can drive all of them through SmartCardReaderPool
+    static ArrayList<UsbDevice> findUsbDevices(Context context, String nameContain) {
+        ArrayList<UsbDevice> devices = new ArrayList<UsbDevice>();
+        UsbManager manager;
+        HashMap<String, UsbDevice> deviceList;
+
+        manager = (UsbManager)context.getSystemService(Context.USB_SERVICE);
+        if (manager == null) {
+            Log.w(TAG, "USB manager not found");
+            return devices;
+        }
+
+        deviceList = manager.getDeviceList();
+        if (deviceList == null) {
+            Log.w(TAG, "USB device list not found");
+            return devices;
+        }
+
+        for (UsbDevice device : deviceList.values()) {
+            if (device.getProductName() != null && device.getProductName().contains(nameContain)) {
+                Log.d(TAG, "Found device: " + device.getProductName() + " [" + device.getDeviceName() + "]");
+                devices.add(device);
+            }
+        }
+
+        return devices;
+    }
+
+    // detect bulk-OUT and bulk-IN endpoint of the smart card interface (class 0x0b) or the first interface, device is not started
+    static SmartCardDevice createSmartCardDevice(Context context, UsbDevice device, Executor callbackExecutor, SmartCardDeviceEvent eventCallback) {
+        UsbInterface intf;
+        UsbEndpoint endpoint;
+        int infIndex = 0, endpointInputIndex = -1, endpointOutputIndex = -1;
+
+        for (int i = 0; i < device.getInterfaceCount(); i++) {
+            if (device.getInterface(i).getInterfaceClass() == UsbConstants.USB_CLASS_CSCID) {
+                infIndex = i;
+                break;
+            }
+        }
+
+        intf = device.getInterface(infIndex);
 
         for (int i = 0; i < intf.getEndpointCount(); i++) {
-            if (intf.getEndpoint(i).getAttributes() == 2) {
-                endpointIndex[index] = i;
-                index++;
+            endpoint = intf.getEndpoint(i);
 
-                if (index >= 2) {
-                    break;
-                }
+            if (endpoint.getType() != UsbConstants.USB_ENDPOINT_XFER_BULK) {
+                continue;
+            }
+
+            // input/output is named from the reader side
+            if (endpoint.getDirection() == UsbConstants.USB_DIR_OUT && endpointInputIndex < 0) {
+                endpointInputIndex = i;
+            } else if (endpoint.getDirection() == UsbConstants.USB_DIR_IN && endpointOutputIndex < 0) {
+                endpointOutputIndex = i;
             }
         }
-        if (index < 2) {
+
+        if (endpointInputIndex < 0 || endpointOutputIndex < 0) {
             Log.d(TAG, "Smart Card device endpoint detect failed");
             return null;
         }
 
-        cardDevice = new SmartCardDevice(context, device, 0, endpointIndex[0], endpointIndex[1], eventCallback);
+        return new SmartCardDevice(context, device, infIndex, endpointInputIndex, endpointOutputIndex, callbackExecutor, eventCallback);
+    }
+
+    public static SmartCardDevice getSmartCardDevice(SmartCardTransport transport, SmartCardDeviceEvent eventCallback) {
+        SmartCardDevice cardDevice = new SmartCardDevice(transport, eventCallback);
 
         cardDevice.start();
 
@@ -182,10 +359,20 @@ public class SmartCardDevice {
     }
 
     public void start() {
-        UsbManager manager = (UsbManager)this.context.getSystemService(Context.USB_SERVICE);
         if (this.started) {
             return;
         }
+
+        synchronized (this) {
+            this.ioClosed = false;
+        }
+
+        if (this.device == null) {
+            this.startTransport();
+            return;
+        }
+
+        UsbManager manager = (UsbManager)this.context.getSystemService(Context.USB_SERVICE);
         this.started = true;
 
         if (manager != null) {
@@ -196,257 +383,1045 @@ public class SmartCardDevice {
         }
     }
 
-    public void stop() {
-        if (!this.stopped) {
-            //this.deviceConnection.close();
-            this.stopped = true;
+    private void startTransport() {
+        if (!this.transport.open()) {
+            Log.w(TAG, "Transport open failed");
+            return;
         }
-        this.started = false;
 
-        this.context.unregisterReceiver(this.usbStateChangeReceiver);
+        this.channel = new SmartCardChannel(this.transport);
+        this.started = true;
+        this.havePermission = true;
+        this.stopped = false;
 
-        this.havePermission = false;
+        this.configureReader();
+        this.dispatchReady();
+        this.startNotificationListener();
+        Log.d(TAG, "Card device is ready");
     }
 
-    public String getDeviceProductName() {
-        if (this.device != null) {
-            return this.device.getProductName();
+    // message framing and exchange level from the CCID descriptor, reader without one is driven at TPDU level
+    private void configureReader() {
+        byte[] data = this.transport.getClassDescriptor();
+        SmartCardDescriptor descriptor = (data != null) ? SmartCardDescriptor.parse(data) : null;
+        ExchangeLevel level;
+
+        if (this.transport.getMaxPacketSize() > 0) {
+            this.message.setMaxPacketSize(this.transport.getMaxPacketSize());
         }
 
-        return "";
-    }
+        this.descriptor = descriptor;
 
-    public boolean reset() {
-        SmartCardMessage.DataBlock dataBlock;
-        byte[] data;
-        byte[] message = this.message.getMessageSlotReset();
+        if (descriptor == null) {
+            Log.d(TAG, "CCID class descriptor not available");
+            return;
+        }
 
-        if (this.havePermission) {
-            if (!this.prepareConnection()) {
-                Log.w(TAG, "prepareConnection() failed");
-                return false;
-            }
+        this.channel.setMaxMessageLength(descriptor.getMaxMessageLength());
 
-            if (!this.sendRequestMessage(message)) {
-                Log.w(TAG, "sendRequestMessage() error");
-                return false;
-            }
+        Log.d(TAG, String.format("CCID features[%08x] max message[%d] max IFSD[%d] max rate[%d]", descriptor.getFeatures(), descriptor.getMaxMessageLength(), descriptor.getMaxIfsd(), descriptor.getMaxDataRate()));
 
-            try {
-                if ((data = this.receiveResponseMessage()) == null) {
-                    Log.w(TAG, "receiveResponseMessage() error");
-                    return false;
-                }
-            } catch (IOException e) {
-                Log.w(TAG, "receiveResponseMessage() failed");
-                return false;
-            }
+        level = descriptor.getExchangeLevel();
 
-            dataBlock = this.message.parseDataBlock(data);
-            if (dataBlock != null && dataBlock.data != null) {
-                StringBuilder sb = new StringBuilder();
+        if (level == ExchangeLevel.CHARACTER) {
+            Log.w(TAG, "Character level reader is not supported, use TPDU level");
+        } else if (!this.exchangeLevelSet) {
+            this.exchangeLevel = level;
+        }
+    }
 
-                for (byte b: dataBlock.data) {
-                    sb.append(String.format("%02x", b));
-                }
+    // null until the device is ready or when the reader does not report it
+    public SmartCardDescriptor getDescriptor() {
+        if (this.parent != null) {
+            return this.parent.getDescriptor();
+        }
 
-                Log.d(TAG, "Card reset response data[" + sb.toString() + "]");
+        return this.descriptor;
+    }
 
-                if (dataBlock.status != 0 || dataBlock.error != 0) {
-                    Log.w(TAG, "Card reset return abnormal status " + dataBlock.status + ":" + dataBlock.error);
-                    return false;
-                }
+    // dwMaxCCIDMessageLength, 0 when unknown
+    int getMaxMessageLength() {
+        SmartCardDescriptor descriptor = this.getDescriptor();
 
-                if (dataBlock.data[0] != (byte)0x82) {
-                    Log.w(TAG, String.format("Card reset return abnormal code 0x%02x", dataBlock.data[0]));
-                    return false;
-                }
+        return (descriptor != null) ? descriptor.getMaxMessageLength() : 0;
+    }
 
-                return true;
-            } else {
-                Log.w(TAG, "Card reset return fail");
-                return false;
-            }
+    private void dispatchReady() {
+        if (this.eventCallback == null) {
+            return;
         }
 
-        return false;
-    }
+        if (this.callbackExecutor == null) {
+            this.eventCallback.OnReady(this);
+            return;
+        }
 
-    public boolean isStarted() {
-        return !this.started;
+        this.callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SmartCardDevice.this.eventCallback.OnReady(SmartCardDevice.this);
+            }
+        });
     }
 
-    //public void setMessageTypeT1(boolean isT1) {
-    //    this.message.setMessageTypeT1(isT1);
-    //}
+    private void dispatchDetached() {
+        if (this.eventCallback == null) {
+            return;
+        }
 
-    private final BroadcastReceiver mUsbPermissionReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            UsbManager manager;
+        if (this.callbackExecutor == null) {
+            this.eventCallback.OnDetached(this);
+            return;
+        }
 
-            if (ACTION_USB_PERMISSION.equals(action)) {
-                Log.d(TAG, "USB permission broadcast received");
-                synchronized (this) {
-                    UsbDevice device = (UsbDevice)intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        this.callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                SmartCardDevice.this.eventCallback.OnDetached(SmartCardDevice.this);
+            }
+        });
+    }
 
-                    if (device != null && device.getDeviceName().equals(SmartCardDevice.this.device.getDeviceName())) {
-                        if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
-                            manager = (UsbManager)context.getSystemService(Context.USB_SERVICE);
-                            if (manager == null) {
-                                throw new RuntimeException("USB manager not found");
-                            }
+    private void dispatchSlotChange(final SmartCardDevice slotDevice, final boolean inserted) {
+        final SmartCardSlotEvent slotEvent;
+        Runnable runnable;
 
-                            SmartCardDevice.this.deviceConnection = manager.openDevice(device);
+        if (!(this.eventCallback instanceof SmartCardSlotEvent)) {
+            return;
+        }
 
-                            if (SmartCardDevice.this.deviceConnection == null) {
-                                throw new RuntimeException("Invalid USB device connection");
-                            }
+        slotEvent = (SmartCardSlotEvent)this.eventCallback;
+        runnable = new Runnable() {
+            @Override
+            public void run() {
+                if (inserted) {
+                    slotEvent.OnCardInserted(slotDevice);
+                } else {
+                    slotEvent.OnCardRemoved(slotDevice);
+                }
+            }
+        };
 
-                            SmartCardDevice.this.deviceInterface = device.getInterface(infIndex);
-                            SmartCardDevice.this.inputEndpoint = SmartCardDevice.this.deviceInterface.getEndpoint(endpointInputIndex);
-                            SmartCardDevice.this.outputEndpoint = SmartCardDevice.this.deviceInterface.getEndpoint(endpointOutputIndex);
+        if (this.callbackExecutor == null) {
+            runnable.run();
+        } else {
+            this.callbackExecutor.execute(runnable);
+        }
+    }
 
-                            if (SmartCardDevice.this.deviceInterface == null || SmartCardDevice.this.inputEndpoint == null || SmartCardDevice.this.outputEndpoint == null) {
-                                throw new RuntimeException("Invalid USB device interface or endpoint");
-                            }
+    // reader push slot change on the interrupt endpoint, no request is sent to know the card presence
+    // the listener keep the interface claimed, a release at the end of a session would kill its transfer
+    private void startNotificationListener() {
+        if (this.parent != null || !this.transport.hasInterruptEndpoint()) {
+            return;
+        }
 
-                            SmartCardDevice.this.havePermission = true;
-                            SmartCardDevice.this.stopped = false;
+        synchronized (this) {
+            if (this.notificationThread != null) {
+                return;
+            }
 
-                            if (SmartCardDevice.this.eventCallback != null)
-                                SmartCardDevice.this.eventCallback.OnReady(SmartCardDevice.this);
-                            Log.d(TAG, "Card device is ready");
+            if (!this.channel.claim()) {
+                Log.w(TAG, "Interface claim failed, slot change is not listened");
+                return;
+            }
 
-                            if (!SmartCardDevice.this.deviceDetachedRegister) {
-                                IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_DETACHED);
-                                SmartCardDevice.this.context.registerReceiver(SmartCardDevice.this.mUsbDetachedReceiver, filter);
-                                SmartCardDevice.this.deviceDetachedRegister = true;
-                            }
+            this.notificationThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    SmartCardDevice.this.listenNotification();
+                }
+            }, "SmartCardDevice-Notify-" + this.getDeviceProductName());
 
-                            SmartCardDevice.this.context.unregisterReceiver(SmartCardDevice.this.mUsbPermissionReceiver);
+            this.notificationThread.setDaemon(true);
+            this.notificationThread.start();
+        }
+    }
 
-                            IntentFilter filter = new IntentFilter();
-                            filter.addAction("android.hardware.usb.action.USB_STATE");
-                            context.registerReceiver(SmartCardDevice.this.usbStateChangeReceiver, filter);
-                        } else {
-                            SmartCardDevice.this.havePermission = false;
-                            throw new RuntimeException("Device is not granted");
-                        }
+    private void listenNotification() {
+        byte[] buffer = new byte[64];
+        int length, failure = 0;
+        long start;
+
+        while (!this.stopped) {
+            start = System.nanoTime();
+            length = this.transport.receiveInterrupt(buffer, 0, buffer.length, INTERRUPT_TIMEOUT);
+
+            if (length <= 0) {
+                // timeout is normal, only errors returned immediately one after another are counted
+                if ((System.nanoTime() - start) / 1000000L >= INTERRUPT_TIMEOUT / 2) {
+                    failure = 0;
+                } else if (++failure >= MAX_INTERRUPT_FAILURE) {
+                    Log.w(TAG, "Interrupt endpoint failed, stop listening slot change");
+                    break;
+                }
+                continue;
+            }
 
+            failure = 0;
 
-                    }
-                }
+            if (buffer[0] == (byte)0x51 && length >= 4) {
+                Log.w(TAG, String.format("Reader hardware error slot[%d] code[%02x]", buffer[1], buffer[3]));
+                continue;
             }
+
+            this.handleSlotChange(this.message.parseNotifySlotChange(buffer, length));
         }
-    };
 
-    private final BroadcastReceiver mUsbDetachedReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-            String action = intent.getAction();
-            if (action != null && action.equals(UsbManager.ACTION_USB_DEVICE_DETACHED)) {
-                UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+        synchronized (this) {
+            this.notificationThread = null;
+        }
 
-                Log.d(TAG, "USB device is detached");
+        this.channel.release();
+    }
 
-                if (device.getDeviceName().equals(SmartCardDevice.this.device.getDeviceName())) {
-                    if (SmartCardDevice.this.eventCallback != null)
-                        SmartCardDevice.this.eventCallback.OnDetached(SmartCardDevice.this);
-                    SmartCardDevice.this.stop();
+    private void handleSlotChange(SmartCardMessage.NotifySlotChangeBlock slotChange) {
+        SmartCardDevice slotDevice;
 
-                    SmartCardDevice.this.context.unregisterReceiver(SmartCardDevice.this.mUsbDetachedReceiver);
-                    SmartCardDevice.this.deviceDetachedRegister = false;
-                }
-            }
+        if (slotChange == null) {
+            return;
         }
-    };
 
-    public SmartCardMessage.DataBlock getATR() {
-        if (!this.havePermission) {
-            Log.w(TAG, "USB permission require, please call start() first");
-            return null;
-        }
+        for (int i = 0; i < slotChange.changed.length; i++) {
+            if (!slotChange.changed[i] || (slotDevice = this.getSlotDevice(i)) == null) {
+                continue;
+            }
 
-        byte[] message = this.message.getMessageIccPowerOn();
+            Log.d(TAG, "Card slot[" + i + "] is " + (slotChange.present[i] ? "inserted" : "removed"));
 
-        if (!this.prepareConnection()) {
-            Log.w(TAG, "prepareConnection() failed");
-            return null;
-        }
+            slotDevice.setCardStatus(slotChange.present[i] ? SmartCardMessage.IccStatus.INACTIVE : SmartCardMessage.IccStatus.ABSENT);
+            if (!slotChange.present[i]) {
+                // read in progress is aborted now instead of waiting the card timeout
+                slotDevice.cancelTransfer.run();
+            }
 
-        if (!this.sendRequestMessage(message)) {
-            Log.w(TAG, "sendRequestMessage() failed");
-            return null;
+            this.dispatchSlotChange(slotDevice, slotChange.present[i]);
         }
+    }
 
-        try {
-            if ((message = this.receiveResponseMessage()) == null) {
-                Log.w(TAG, "receiveResponseMessage() error");
-                return null;
-            }
-        } catch (IOException e) {
-            Log.w(TAG, "receiveResponseMessage() failed");
-            return null;
+    private void setCardStatus(SmartCardMessage.IccStatus status) {
+        if (status == null) {
+            return;
         }
 
-        return this.message.parseDataBlock(message);
+        this.cardStatus = status;
+        this.cardStatusTime = System.nanoTime();
+
+        if (status != SmartCardMessage.IccStatus.ACTIVE) {
+            this.selectedApplet = null;
+        }
     }
 
-    public SmartCardMessage.DataBlock sendAPDU(byte[] dataAPDU) {
-        byte[] data;
+    // card presence of a reader with interrupt endpoint is pushed, cached status never expire
+    private boolean isCardStatusValid(long maxAge) {
+        SmartCardDevice root = (this.parent != null) ? this.parent : this;
 
-        if (!this.havePermission) {
-            Log.w(TAG, "USB permission require, please call start() first");
-            return null;
+        if (this.cardStatus == null) {
+            return false;
         }
 
-        byte[][] messages = this.message.getMessageXfrBlock(dataAPDU);
+        return root.notificationThread != null || (System.nanoTime() - this.cardStatusTime) / 1000000L < maxAge;
+    }
+
+    public SmartCardMessage.IccStatus getCardStatus() {
+        return this.getCardStatus(CARD_STATUS_VALIDITY);
+    }
 
-        if (messages == null) {
-            Log.w(TAG, "getMessageXfrBlock() return failed");
-            return null;
+    // bmICCStatus from PC_to_RDR_GetSlotStatus, card is not powered on, status younger than maxAge milliseconds is reused
+    public SmartCardMessage.IccStatus getCardStatus(long maxAge) {
+        SmartCardMessage.SlotStatusBlock slotStatus;
+        SmartCardSession session;
+        int length;
+
+        if (this.isCardStatusValid(maxAge)) {
+            return this.cardStatus;
         }
 
-        if (!this.prepareConnection()) {
-            Log.w(TAG, "prepareConnection() failed");
+        if ((session = this.openSession()) == null) {
+            Log.w(TAG, "openSession() failed");
             return null;
         }
 
-        for (byte[] message: messages) {
-            if (!this.sendRequestMessage(message)) {
-                Log.w(TAG, "sendRequestMessage() error");
-                return null;
+        try {
+            synchronized (this) {
+                if ((length = this.transceive(this.message.getMessageGetSlotStatus())) < 0) {
+                    Log.w(TAG, "transceive() error");
+                    return null;
+                }
+
+                slotStatus = this.message.parseSlotStatusBlock(this.receiveBuffer, length);
+            }
+        } finally {
+            session.close();
+        }
+
+        if (slotStatus == null) {
+            Log.w(TAG, "Slot status return invalid response");
+            return null;
+        }
+
+        return SmartCardMessage.getIccStatus(slotStatus.status);
+    }
+
+    public boolean isCardPresent() {
+        SmartCardMessage.IccStatus status = this.getCardStatus();
+
+        return status == SmartCardMessage.IccStatus.ACTIVE || status == SmartCardMessage.IccStatus.INACTIVE;
+    }
+
+    // device of the slot on the same reader, every slot can run its exchange concurrently
+    public SmartCardDevice getSlotDevice(int slotNumber) {
+        SmartCardDevice slotDevice;
+        SmartCardMessage message;
+
+        if (this.parent != null) {
+            return this.parent.getSlotDevice(slotNumber);
+        }
+
+        if (slotNumber == this.message.getSlotNumber()) {
+            return this;
+        }
+
+        if (this.descriptor != null && slotNumber > this.descriptor.getMaxSlotIndex()) {
+            Log.w(TAG, "Reader has no slot " + slotNumber);
+            return null;
+        }
+
+        synchronized (this) {
+            if (!this.havePermission || this.channel == null) {
+                Log.w(TAG, "USB permission require, please call start() first");
+                return null;
+            }
+
+            if ((slotDevice = this.slotDevices.get(slotNumber)) != null) {
+                return slotDevice;
+            }
+
+            if ((message = this.message.getSlotMessage(slotNumber)) == null) {
+                return null;
+            }
+
+            slotDevice = new SmartCardDevice(this, message);
+            this.slotDevices.put(slotNumber, slotDevice);
+        }
+
+        return slotDevice;
+    }
+
+    public int getSlotNumber() {
+        return this.message.getSlotNumber();
+    }
+
+    // single I/O thread per reader slot, every task submitted here is run in order, null once the device is stopped
+    public synchronized ExecutorService getExecutor() {
+        if (this.ioClosed) {
+            return null;
+        }
+
+        if (this.ioExecutor == null || this.ioExecutor.isShutdown()) {
+            final String name = "SmartCardDevice-IO-" + this.getDeviceProductName() + ((this.getSlotNumber() != 0) ? "-" + this.getSlotNumber() : "");
+
+            this.ioExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+
+        return this.ioExecutor;
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        ExecutorService executor = this.getExecutor();
+
+        if (executor == null) {
+            throw new RejectedExecutionException("Card device is stopped");
+        }
+
+        return executor.submit(task);
+    }
+
+    public void stop() {
+        SmartCardDevice[] slotDevices;
+
+        synchronized (this) {
+            slotDevices = this.slotDevices.values().toArray(new SmartCardDevice[0]);
+            this.slotDevices.clear();
+        }
+
+        for (SmartCardDevice slotDevice : slotDevices) {
+            slotDevice.stop();
+        }
+
+        if (this.parent != null) {
+            synchronized (this.parent) {
+                if (this.parent.slotDevices.get(this.getSlotNumber()) == this) {
+                    this.parent.slotDevices.remove(this.getSlotNumber());
+                }
+            }
+        }
+
+        this.releaseConnection();
+
+        synchronized (this) {
+            this.ioClosed = true;
+
+            if (this.ioExecutor != null) {
+                this.ioExecutor.shutdown();
+                this.ioExecutor = null;
+            }
+        }
+
+        if (!this.stopped) {
+            //this.deviceConnection.close();
+            this.stopped = true;
+
+            if (this.device == null && this.parent == null) {
+                this.transport.close();
+            }
+        }
+        this.started = false;
+
+        if (this.context != null) {
+            this.context.unregisterReceiver(this.usbStateChangeReceiver);
+        }
+
+        this.havePermission = false;
+    }
+
+    public String getDeviceProductName() {
+        if (this.parent != null) {
+            return this.parent.getDeviceProductName();
+        }
+
+        if (this.device != null) {
+            return this.device.getProductName();
+        }
+
+        if (this.transport != null) {
+            return this.transport.getProductName();
+        }
+
+        return "";
+    }
+
+    public boolean reset() {
+        SmartCardMessage.ParametersBlock parameters;
+        int length;
+        byte[] message = this.message.getMessageSlotReset();
+
+        if (this.havePermission) {
+            if ((length = this.transceive(message)) < 0) {
+                Log.w(TAG, "transceive() error");
+                return false;
+            }
+
+            parameters = this.message.parseParametersBlock(this.receiveBuffer, length);
+            if (parameters != null) {
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Card reset response protocol[" + parameters.protocol + "] data[" + SmartCardDevice.toHexString(parameters.data, 0, parameters.data.length) + "]");
+                }
+
+                if (parameters.status != 0 || parameters.error != 0) {
+                    Log.w(TAG, "Card reset return abnormal status " + parameters.status + ":" + parameters.error);
+                    return false;
+                }
+
+                return true;
+            } else {
+                Log.w(TAG, "Card reset return fail");
+                return false;
+            }
+        }
+
+        return false;
+    }
+
+    public boolean isStarted() {
+        return !this.started;
+    }
+
+    public ExchangeLevel getExchangeLevel() {
+        if (this.parent != null) {
+            return this.parent.getExchangeLevel();
+        }
+
+        return this.exchangeLevel;
+    }
+
+    // override the level read from the CCID descriptor
+    public void setExchangeLevel(ExchangeLevel exchangeLevel) {
+        if (exchangeLevel == null) {
+            throw new NullPointerException("Invalid exchange level");
+        }
+
+        if (this.parent != null) {
+            this.parent.setExchangeLevel(exchangeLevel);
+            return;
+        }
+
+        this.exchangeLevel = exchangeLevel;
+        this.exchangeLevelSet = true;
+    }
+
+    // one bulk-OUT transfer per max packet size instead of one per message, for reader that need it
+    public void setMessageFragmented(boolean fragmented) {
+        this.message.setMessageFragmented(fragmented);
+    }
+
+    public boolean isMessageFragmented() {
+        return this.message.isMessageFragmented();
+    }
+
+    boolean isApduExchangeLevel() {
+        ExchangeLevel level = this.getExchangeLevel();
+
+        return level == ExchangeLevel.SHORT_APDU || level == ExchangeLevel.EXTENDED_APDU;
+    }
+
+    //public void setMessageTypeT1(boolean isT1) {
+    //    this.message.setMessageTypeT1(isT1);
+    //}
+
+    private final BroadcastReceiver mUsbPermissionReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            UsbManager manager;
+
+            if (ACTION_USB_PERMISSION.equals(action)) {
+                Log.d(TAG, "USB permission broadcast received");
+                synchronized (this) {
+                    UsbDevice device = (UsbDevice)intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+
+                    if (device != null && device.getDeviceName().equals(SmartCardDevice.this.device.getDeviceName())) {
+                        if (intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false)) {
+                            manager = (UsbManager)context.getSystemService(Context.USB_SERVICE);
+                            if (manager == null) {
+                                throw new RuntimeException("USB manager not found");
+                            }
+
+                            SmartCardDevice.this.deviceConnection = manager.openDevice(device);
+
+                            if (SmartCardDevice.this.deviceConnection == null) {
+                                throw new RuntimeException("Invalid USB device connection");
+                            }
+
+                            SmartCardDevice.this.deviceInterface = device.getInterface(infIndex);
+                            SmartCardDevice.this.inputEndpoint = SmartCardDevice.this.deviceInterface.getEndpoint(endpointInputIndex);
+                            SmartCardDevice.this.outputEndpoint = SmartCardDevice.this.deviceInterface.getEndpoint(endpointOutputIndex);
+
+                            if (SmartCardDevice.this.deviceInterface == null || SmartCardDevice.this.inputEndpoint == null || SmartCardDevice.this.outputEndpoint == null) {
+                                throw new RuntimeException("Invalid USB device interface or endpoint");
+                            }
+
+                            SmartCardDevice.this.transport = new UsbSmartCardTransport(device, SmartCardDevice.this.deviceConnection, SmartCardDevice.this.deviceInterface, SmartCardDevice.this.inputEndpoint, SmartCardDevice.this.outputEndpoint);
+
+                            SmartCardDevice.this.channel = new SmartCardChannel(SmartCardDevice.this.transport);
+                            SmartCardDevice.this.havePermission = true;
+                            SmartCardDevice.this.stopped = false;
+
+                            SmartCardDevice.this.configureReader();
+                            SmartCardDevice.this.dispatchReady();
+                            SmartCardDevice.this.startNotificationListener();
+                            Log.d(TAG, "Card device is ready");
+
+                            if (!SmartCardDevice.this.deviceDetachedRegister) {
+                                IntentFilter filter = new IntentFilter(UsbManager.ACTION_USB_DEVICE_DETACHED);
+                                SmartCardDevice.this.context.registerReceiver(SmartCardDevice.this.mUsbDetachedReceiver, filter, null, SmartCardDevice.getEventHandler());
+                                SmartCardDevice.this.deviceDetachedRegister = true;
+                            }
+
+                            SmartCardDevice.this.context.unregisterReceiver(SmartCardDevice.this.mUsbPermissionReceiver);
+
+                            IntentFilter filter = new IntentFilter();
+                            filter.addAction("android.hardware.usb.action.USB_STATE");
+                            context.registerReceiver(SmartCardDevice.this.usbStateChangeReceiver, filter, null, SmartCardDevice.getEventHandler());
+                        } else {
+                            SmartCardDevice.this.havePermission = false;
+                            throw new RuntimeException("Device is not granted");
+                        }
+
+
+                    }
+                }
+            }
+        }
+    };
+
+    private final BroadcastReceiver mUsbDetachedReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            String action = intent.getAction();
+            if (action != null && action.equals(UsbManager.ACTION_USB_DEVICE_DETACHED)) {
+                UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+
+                Log.d(TAG, "USB device is detached");
+
+                if (device.getDeviceName().equals(SmartCardDevice.this.device.getDeviceName())) {
+                    if (SmartCardDevice.this.channel != null) {
+                        SmartCardDevice.this.channel.cancelAll();
+                    }
+                    SmartCardDevice.this.dispatchDetached();
+                    SmartCardDevice.this.stop();
+
+                    SmartCardDevice.this.context.unregisterReceiver(SmartCardDevice.this.mUsbDetachedReceiver);
+                    SmartCardDevice.this.deviceDetachedRegister = false;
+                }
+            }
+        }
+    };
+
+    public SmartCardMessage.DataBlock getATR() {
+        if (!this.havePermission) {
+            Log.w(TAG, "USB permission require, please call start() first");
+            return null;
+        }
+
+        SmartCardMessage.DataBlock atr;
+        SmartCardAtr parsedAtr = null;
+
+        this.t1 = null;
+        this.atr = null;
+
+        if ((atr = this.powerOnCard()) == null) {
+            return null;
+        }
+
+        if (isValidAtr(atr) && (parsedAtr = SmartCardAtr.parse(atr.data)) != null && !this.negotiateParameters(parsedAtr)) {
+            Log.w(TAG, "Parameters negotiation failed, power the card again at the default rate");
+
+            if (this.transceive(this.message.getMessageIccPowerOff()) < 0 || (atr = this.powerOnCard()) == null) {
+                return null;
+            }
+        }
+
+        if (isValidAtr(atr)) {
+            this.atr = parsedAtr;
+            this.setupProtocol(parsedAtr);
+        }
+
+        return atr;
+    }
+
+    // ATR of the card powered by the last getATR(), null if the card is not powered or the ATR is malformed
+    public SmartCardAtr getParsedATR() {
+        return this.atr;
+    }
+
+    byte[] getSelectedApplet() {
+        return this.selectedApplet;
+    }
+
+    // call after the SELECT command succeeded
+    void setSelectedApplet(byte[] selectCommand) {
+        this.selectedApplet = selectCommand;
+    }
+
+    public SmartCardProfileCache getProfileCache() {
+        return this.profileCache;
+    }
+
+    // protocol, rate and applet quirks learned by card type, the process wide cache by default
+    public void setProfileCache(SmartCardProfileCache profileCache) {
+        if (profileCache == null) {
+            throw new NullPointerException("Invalid profile cache");
+        }
+
+        this.profileCache = profileCache;
+    }
+
+    private SmartCardMessage.DataBlock powerOnCard() {
+        int length;
+
+        if ((length = this.transceive(this.message.getMessageIccPowerOn())) < 0) {
+            Log.w(TAG, "transceive() error");
+            return null;
+        }
+
+        return this.message.parseDataBlock(this.receiveBuffer, length);
+    }
+
+    private static boolean isValidAtr(SmartCardMessage.DataBlock atr) {
+        return atr != null && atr.dataType == SmartCardMessage.DataType.ATR && atr.status == 0 && atr.error == 0;
+    }
+
+    // PPS to the TA1 rate and the preferred protocol, skipped when the reader already negotiated them itself
+    // a known card type go straight to the parameters it accepted before, a card failing again and again on this reader stay at the default
+    private boolean negotiateParameters(SmartCardAtr atr) {
+        SmartCardProfileCache.Profile profile = this.profileCache.get(atr);
+        SmartCardDescriptor descriptor = this.getDescriptor();
+        SmartCardMessage.ParametersBlock current;
+        SmartCardMessage.DataBlock response;
+        int protocol, fiDi, length;
+        boolean known;
+        byte[] request;
+
+        // reader with automatic parameters negotiation already did the PPS after the ATR
+        if (this.isApduExchangeLevel() || profile.isNegotiationFailed(this.getDeviceProductName()) || (descriptor != null && descriptor.isAutoParameters())) {
+            return true;
+        }
+
+        fiDi = atr.getFiDi();
+        if (!isRateReachable(descriptor, fiDi)) {
+            fiDi = SmartCardAtr.DEFAULT_FIDI;
+        }
+
+        // specific mode card already run the TA2 protocol, the reader only need to know the parameters
+        if (atr.isSpecificMode()) {
+            if (atr.isSpecificModeImplicit()) {
+                return true;
+            }
+
+            return this.setParameters(atr, atr.getSpecificProtocol(), fiDi) && this.setDataRate(descriptor, fiDi);
+        }
+
+        known = profile.protocol >= 0 && profile.fiDi >= 0;
+
+        if (known) {
+            protocol = profile.protocol;
+            // profile may come from a faster reader
+            fiDi = isRateReachable(descriptor, profile.fiDi) ? profile.fiDi : SmartCardAtr.DEFAULT_FIDI;
+        } else {
+            protocol = (atr.isProtocolOffered(1) && (descriptor == null || descriptor.isProtocolSupported(1))) ? 1 : atr.getDefaultProtocol();
+        }
+
+        if (protocol != 0 && protocol != 1) {
+            return true;
+        }
+
+        if (fiDi == SmartCardAtr.DEFAULT_FIDI && protocol == atr.getDefaultProtocol()) {
+            return true;
+        }
+
+        if (!known && (current = this.getParameters()) != null && current.protocol == protocol && current.data.length > 0 && (current.data[0] & 0xff) == fiDi) {
+            return true;
+        }
+
+        request = new byte[]{(byte)0xff, (byte)(0x10 | protocol), (byte)fiDi, (byte)0x00};
+        request[3] = (byte)(request[0] ^ request[1] ^ request[2]);
+
+        if ((length = this.transceive(this.message.getMessageXfrBlock(request))) < 0) {
+            return false;
+        }
+
+        if ((response = this.message.parseDataBlock(this.receiveBuffer, length)) == null || response.status != 0 || response.error != 0
+                || (!Arrays.equals(response.data, request) && !(response.data.length == 3 && response.data[0] == request[0] && (response.data[1] & 0x1f) == protocol))) {
+            Log.w(TAG, "PPS request not answered or rejected");
+
+            // known parameters come from our own PPS, a reader doing the PPS itself never store them
+            profile.protocol = -1;
+            profile.fiDi = -1;
+            profile.setNegotiationFailed(this.getDeviceProductName(), true);
+
+            return false;
+        }
+
+        // PPS1 left out of the response = the card stay at the default rate
+        if (response.data.length == 3) {
+            fiDi = SmartCardAtr.DEFAULT_FIDI;
+        }
+
+        Log.d(TAG, String.format("PPS protocol T=%d FiDi[%02x]", protocol, fiDi));
+
+        if (!this.setParameters(atr, protocol, fiDi)) {
+            return false;
+        }
+
+        // the card already switched, power it again rather than leave the reader at the default rate
+        if (!this.setDataRate(descriptor, fiDi)) {
+            profile.protocol = -1;
+            profile.fiDi = -1;
+            profile.setNegotiationFailed(this.getDeviceProductName(), true);
+
+            return false;
+        }
+
+        profile.protocol = protocol;
+        profile.fiDi = fiDi;
+        profile.setNegotiationFailed(this.getDeviceProductName(), false);
+
+        return true;
+    }
+
+    // the card rate is raised only when the reader follow, by itself or by PC_to_RDR_SetDataRateAndClockFrequency
+    // without descriptor the reader rates are unknown and it may stay at 372/1
+    private static boolean isRateReachable(SmartCardDescriptor descriptor, int fiDi) {
+        if (fiDi == SmartCardAtr.DEFAULT_FIDI) {
+            return true;
+        }
+
+        if (descriptor == null || !descriptor.isRateSupported(fiDi)) {
+            return false;
+        }
+
+        return descriptor.hasFeature(SmartCardDescriptor.FEATURE_AUTO_BAUD_RATE) || descriptor.getDataRate(fiDi) > 0;
+    }
+
+    // reader without automatic baud rate keep the default rate until told the rate of the new Fi/Di
+    private boolean setDataRate(SmartCardDescriptor descriptor, int fiDi) {
+        SmartCardMessage.DataRateBlock dataRate;
+        int rate, length;
+
+        if (fiDi == SmartCardAtr.DEFAULT_FIDI || descriptor == null || descriptor.hasFeature(SmartCardDescriptor.FEATURE_AUTO_BAUD_RATE)) {
+            return true;
+        }
+
+        rate = descriptor.getDataRate(fiDi);
+
+        if ((length = this.transceive(this.message.getMessageSetDataRateAndClockFrequency(descriptor.getDefaultClock(), rate))) < 0) {
+            return false;
+        }
+
+        dataRate = this.message.parseDataRateBlock(this.receiveBuffer, length);
+        if (dataRate == null || dataRate.status != 0 || dataRate.error != 0) {
+            Log.w(TAG, "PC_to_RDR_SetDataRateAndClockFrequency failed");
+            return false;
+        }
+
+        // reader may round to a rate it support, the card can not follow a rate more than 2% away
+        if (Math.abs((long)dataRate.dataRate - rate) * 50L > rate) {
+            Log.w(TAG, String.format("Reader data rate %d instead of %d", dataRate.dataRate, rate));
+            return false;
+        }
+
+        return true;
+    }
+
+    private boolean setParameters(SmartCardAtr atr, int protocol, int fiDi) {
+        SmartCardMessage.ParametersBlock parameters;
+        byte[] data;
+        int length;
+
+        if (protocol == 1) {
+            data = new byte[]{(byte)fiDi, (byte)(0x10 | (atr.isCrc() ? 0x01 : 0x00)), (byte)atr.getGuardTime(), (byte)atr.getBwiCwi(), (byte)0x00, (byte)atr.getIfsc(), (byte)0x00};
+        } else {
+            data = new byte[]{(byte)fiDi, (byte)0x00, (byte)atr.getGuardTime(), (byte)atr.getWaitingInteger(), (byte)0x00};
+        }
+
+        if ((length = this.transceive(this.message.getMessageSetParameters(protocol, data))) < 0) {
+            return false;
+        }
+
+        parameters = this.message.parseParametersBlock(this.receiveBuffer, length);
+        if (parameters == null || parameters.status != 0 || parameters.error != 0) {
+            Log.w(TAG, "PC_to_RDR_SetParameters failed");
+            return false;
+        }
+
+        return true;
+    }
+
+    private SmartCardMessage.ParametersBlock getParameters() {
+        SmartCardMessage.ParametersBlock parameters;
+        int length;
+
+        if ((length = this.transceive(this.message.getMessageGetParameters())) < 0) {
+            return null;
+        }
+
+        parameters = this.message.parseParametersBlock(this.receiveBuffer, length);
+        if (parameters == null || parameters.status != 0 || parameters.error != 0) {
+            return null;
+        }
+
+        return parameters;
+    }
+
+    // protocol chosen by the reader after power on, T=1 blocks are framed here only at TPDU level
+    private void setupProtocol(SmartCardAtr atr) {
+        SmartCardDescriptor descriptor = this.getDescriptor();
+        SmartCardProfileCache.Profile profile;
+        SmartCardMessage.ParametersBlock parameters;
+        SmartCardT1 t1;
+        int ifsd = SmartCardT1.MAX_IFS;
+
+        if (this.isApduExchangeLevel() || ((atr == null || !atr.isProtocolOffered(1)) && !this.message.isMessageTypeT1())) {
+            return;
+        }
+
+        if ((parameters = this.getParameters()) != null) {
+            if (parameters.protocol != 1) {
+                return;
+            }
+
+            if (parameters.data.length < 7) {
+                Log.w(TAG, "Invalid T=1 parameters length " + parameters.data.length);
+                return;
             }
+
+            // bmTCCKST1 bit 0 = CRC, bIFSC, bNadValue
+            t1 = new SmartCardT1(parameters.data[5] & 0xff, parameters.data[6] & 0xff, (parameters.data[1] & 0x01) != 0);
+        } else if (this.message.isMessageTypeT1()) {
+            t1 = new SmartCardT1(SmartCardT1.DEFAULT_IFS, 0, false);
+        } else {
+            return;
         }
 
-        try {
-            if ((data = this.receiveResponseMessage()) == null) {
-                Log.w(TAG, "receiveResponseMessage() failed");
+        profile = (atr != null) ? this.profileCache.get(atr) : null;
+
+        if (descriptor != null && descriptor.getMaxIfsd() > 0) {
+            ifsd = Math.min(ifsd, descriptor.getMaxIfsd());
+        }
+
+        if (descriptor != null && descriptor.hasFeature(SmartCardDescriptor.FEATURE_AUTO_IFSD)) {
+            t1.setIfsd(ifsd);
+        } else if (profile != null && profile.ifsd == 0) {
+            Log.d(TAG, "Card refused S(IFS) before, keep IFSD " + t1.getIfsd());
+        } else if (!t1.negotiateIfsd(this.blockExchange, ifsd)) {
+            Log.w(TAG, "IFSD negotiation failed, keep " + t1.getIfsd());
+
+            if (profile != null && !this.isRecoveryRequired()) {
+                profile.ifsd = 0;
+            }
+        } else if (profile != null) {
+            profile.ifsd = t1.getIfsd();
+        }
+
+        this.t1 = t1;
+    }
+
+    // reader transmission error is returned as an empty block so the card is asked to send it again
+    private byte[] exchangeBlock(byte[] block, int bwi) {
+        SmartCardMessage.DataBlock data;
+        byte[][] messages = this.message.getMessageXfrBlock(block, bwi);
+        int length;
+
+        if ((length = this.transceive(messages)) < 0) {
+            Log.w(TAG, "transceive() failed");
+            return null;
+        }
+
+        if ((data = this.message.parseDataBlock(this.receiveBuffer, length)) == null) {
+            return new byte[0];
+        }
+
+        if (data.status != 0 || data.error != 0) {
+            if ((data.status & 0x03) != 0) {
+                Log.w(TAG, "Card is not active [" + data.status + ":" + data.error + "]");
                 return null;
             }
-        } catch (IOException e) {
-            Log.w(TAG, "receiveResponseMessage() error");
+
+            Log.w(TAG, "Block transmission error [" + data.status + ":" + data.error + "]");
+            return new byte[0];
+        }
+
+        return data.data;
+    }
+
+    public SmartCardMessage.DataBlock sendAPDU(byte[] dataAPDU) {
+        int length;
+
+        if (!this.havePermission) {
+            Log.w(TAG, "USB permission require, please call start() first");
             return null;
         }
 
-        SmartCardMessage.DataBlock dataBlock = this.message.parseDataBlock(data);
-        if (dataBlock != null && dataBlock.data != null) {
-            StringBuilder sb = new StringBuilder();
+        SmartCardMessage.DataBlock dataBlock;
+        SmartCardT1 t1 = this.t1;
+        byte[] response;
+
+        // a SELECT not tracked by setSelectedApplet() may change the current applet
+        if (dataAPDU.length >= 2 && dataAPDU[1] == (byte)0xa4) {
+            this.selectedApplet = null;
+        }
+
+        if (t1 != null) {
+            if ((response = t1.transceive(dataAPDU, this.blockExchange)) == null) {
+                Log.w(TAG, "T=1 exchange failed");
+                return null;
+            }
+
+            dataBlock = this.message.parseApduResponse(response);
+        } else if (this.getExchangeLevel() == ExchangeLevel.EXTENDED_APDU) {
+            dataBlock = this.transceiveChained(dataAPDU);
+        } else {
+            byte[][] messages = this.message.getMessageXfrBlock(dataAPDU);
+
+            if (messages == null) {
+                Log.w(TAG, "getMessageXfrBlock() return failed");
+                return null;
+            }
+
+            if ((length = this.transceive(messages)) < 0) {
+                Log.w(TAG, "transceive() failed");
+                return null;
+            }
+
+            dataBlock = this.message.parseDataBlock(this.receiveBuffer, length);
+        }
+
+        if (dataBlock != null && dataBlock.data != null && Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Response data[" + SmartCardDevice.toHexString(dataBlock.data, 0, dataBlock.data.length) + "]");
+        }
+
+        return dataBlock;
+    }
+
+    // extended APDU level, APDU longer than dwMaxCCIDMessageLength is sent in parts and the response is received in parts
+    private SmartCardMessage.DataBlock transceiveChained(byte[] dataAPDU) {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        SmartCardMessage.DataBlock dataBlock = null;
+        int maxLength = this.getMaxMessageLength() - 10;
+        int offset = 0, partLength, levelParameter, length;
+
+        if (maxLength <= 0) {
+            maxLength = dataAPDU.length;
+        }
+
+        do {
+            partLength = Math.min(maxLength, dataAPDU.length - offset);
+
+            if (partLength == dataAPDU.length) {
+                levelParameter = SmartCardMessage.CHAIN_COMPLETE;
+            } else if (offset == 0) {
+                levelParameter = SmartCardMessage.CHAIN_BEGIN;
+            } else if (offset + partLength < dataAPDU.length) {
+                levelParameter = SmartCardMessage.CHAIN_CONTINUE;
+            } else {
+                levelParameter = SmartCardMessage.CHAIN_END;
+            }
+
+            if ((length = this.transceive(this.message.getMessageXfrBlock(Arrays.copyOfRange(dataAPDU, offset, offset + partLength), 0, levelParameter))) < 0
+                    || (dataBlock = this.message.parseDataBlock(this.receiveBuffer, length)) == null) {
+                Log.w(TAG, "transceive() failed");
+                return null;
+            }
+
+            if (dataBlock.status != 0 || dataBlock.error != 0) {
+                return dataBlock;
+            }
 
-            for (byte b: dataBlock.data) {
-                sb.append(String.format("%02x", b));
+            offset += partLength;
+        } while (offset < dataAPDU.length);
+
+        response.write(dataBlock.data, 0, dataBlock.data.length);
+
+        while (dataBlock.chainParameter == SmartCardMessage.CHAIN_BEGIN || dataBlock.chainParameter == SmartCardMessage.CHAIN_CONTINUE) {
+            if ((length = this.transceive(this.message.getMessageXfrBlock(new byte[0], 0, SmartCardMessage.CHAIN_EMPTY_CONTINUE))) < 0
+                    || (dataBlock = this.message.parseDataBlock(this.receiveBuffer, length)) == null) {
+                Log.w(TAG, "transceive() failed");
+                return null;
+            }
+
+            if (dataBlock.status != 0 || dataBlock.error != 0) {
+                return dataBlock;
             }
 
-            Log.d(TAG, "Response data[" + sb.toString() + "]");
+            response.write(dataBlock.data, 0, dataBlock.data.length);
         }
 
+        dataBlock.data = response.toByteArray();
+        dataBlock.dataType = this.message.parseApduResponse(dataBlock.data).dataType;
+
         return dataBlock;
     }
 
     public SmartCardMessage.EscapeResponseBlock sendEscapeCommand(byte[] dataEscape) {
-        byte[] data;
+        int length;
 
         if (!this.havePermission) {
             Log.w(TAG, "USB permission require, please call start() first");
@@ -460,128 +1435,284 @@ public class SmartCardDevice {
             return null;
         }
 
-        if (!this.prepareConnection()) {
-            Log.w(TAG, "prepareConnection() failed");
+        if ((length = this.transceive(message)) < 0) {
+            Log.w(TAG, "transceive() failed");
             return null;
         }
 
-        if (!this.sendRequestMessage(message)) {
-            Log.w(TAG, "sendRequestMessage() error");
+        SmartCardMessage.EscapeResponseBlock response = this.message.parseEscapeResponseBlock(this.receiveBuffer, length);
+
+        if (response != null && response.data != null && Log.isLoggable(TAG, Log.DEBUG)) {
+            Log.d(TAG, "Response escape data [" + SmartCardDevice.toHexString(response.data, 0, response.data.length) + "]");
+        }
+
+        return response;
+    }
+
+    public SmartCardSession openSession() {
+        return this.openSession(0, null);
+    }
+
+    // timeout in milliseconds bound every transfer made while the session is opened, 0 = no deadline
+    public SmartCardSession openSession(long timeout, SmartCardCancellationToken cancellationToken) {
+        SmartCardSession session;
+
+        if (cancellationToken != null && cancellationToken.isCancelled()) {
+            Log.w(TAG, "Session is cancelled before opened");
             return null;
         }
 
-        try {
-            if ((data = this.receiveResponseMessage()) == null) {
-                Log.w(TAG, "receiveResponseMessage() failed");
+        synchronized (this) {
+            if (!this.prepareConnection()) {
+                Log.w(TAG, "prepareConnection() failed");
                 return null;
             }
-        } catch (IOException e) {
-            Log.w(TAG, "receiveResponseMessage() error");
-            return null;
+
+            this.sessionCount++;
+
+            session = new SmartCardSession(this, this.currentSession, timeout, cancellationToken);
+            this.currentSession = session;
+        }
+
+        if (cancellationToken != null) {
+            cancellationToken.addListener(this.cancelTransfer);
+        }
+
+        return session;
+    }
+
+    void closeSession(SmartCardSession session) {
+        if (session.getCancellationToken() != null) {
+            session.getCancellationToken().removeListener(this.cancelTransfer);
         }
 
-        SmartCardMessage.EscapeResponseBlock response = this.message.parseEscapeResponseBlock(data);
+        synchronized (this) {
+            if (this.sessionCount <= 0) {
+                Log.w(TAG, "Session is not opened");
+                return;
+            }
+
+            if (this.currentSession == session) {
+                this.currentSession = session.getParent();
+            }
 
-        if (response != null && response.data != null) {
-            StringBuilder sb = new StringBuilder();
+            this.sessionCount--;
 
-            for (byte b: response.data) {
-                sb.append(String.format("%02x", b));
+            if (this.sessionCount == 0) {
+                this.releaseConnection();
             }
+        }
+    }
 
-            Log.d(TAG, "Response escape data [" + sb.toString() + "]");
+    public synchronized boolean isSessionOpened() {
+        return this.sessionCount > 0;
+    }
+
+    // transfer timeout for the current session, 0 = wait forever, -1 = deadline exceeded or cancelled
+    int getTransferTimeout() {
+        SmartCardSession session;
+        long remain;
+
+        synchronized (this) {
+            session = this.currentSession;
         }
 
-        return response;
+        if (session == null) {
+            return this.recovering ? RECOVERY_TIMEOUT : 0;
+        }
+
+        if ((remain = session.getRemainingTime()) < 0) {
+            Log.w(TAG, session.isCancelled() ? "Card operation is cancelled" : "Card operation deadline exceeded");
+            return -1;
+        }
+
+        if (this.recovering && (remain == 0 || remain > RECOVERY_TIMEOUT)) {
+            return RECOVERY_TIMEOUT;
+        }
+
+        return (int)Math.min(remain, Integer.MAX_VALUE);
     }
 
-    private boolean prepareConnection() {
+    // abort the failed exchange and resynchronise bSeq, fallback to slot reset and power cycle only when needed
+    public synchronized boolean recover() {
         if (!this.havePermission) {
             Log.w(TAG, "USB permission require, please call start() first");
             return false;
         }
 
-        this.deviceConnection.claimInterface(this.deviceInterface, true);
+        if (!this.prepareConnection()) {
+            Log.w(TAG, "prepareConnection() failed");
+            return false;
+        }
+
+        this.recovering = true;
+
+        try {
+            if (this.abortExchange()) {
+                Log.d(TAG, "Card device recovered by abort");
+            } else if (this.reset()) {
+                Log.d(TAG, "Card device recovered by slot reset");
+            } else if (this.powerCycle()) {
+                Log.d(TAG, "Card device recovered by power cycle");
+            } else {
+                Log.w(TAG, "Card device recovery failed");
+                this.recoveryRequired = true;
+                return false;
+            }
+
+            this.recoveryRequired = false;
+            return true;
+        } finally {
+            this.recovering = false;
+        }
+    }
+
+    public synchronized boolean isRecoveryRequired() {
+        return this.recoveryRequired;
+    }
+
+    // stale response of the aborted exchange is dropped by the channel, no bSeq is waiting for it
+    private boolean abortExchange() {
+        SmartCardMessage.SlotStatusBlock slotStatus;
+        byte[] message = this.message.getMessageAbort();
+        int length, timeout;
+
+        if ((timeout = this.getTransferTimeout()) < 0) {
+            return false;
+        }
+
+        if (this.transport.controlTransfer(SmartCardMessage.REQUEST_TYPE_CLASS_OUT, SmartCardMessage.REQUEST_ABORT, SmartCardMessage.getAbortRequestValue(message), null, 0, timeout) < 0) {
+            Log.w(TAG, "ABORT control request failed");
+        }
+
+        if ((length = this.transceive(message)) < 0) {
+            Log.w(TAG, "PC_to_RDR_Abort response not received");
+            return false;
+        }
+
+        if ((slotStatus = this.message.parseSlotStatusBlock(this.receiveBuffer, length)) == null) {
+            Log.w(TAG, "PC_to_RDR_Abort return invalid response");
+            return false;
+        }
+
+        Log.d(TAG, "Abort done, status " + slotStatus.status + ":" + slotStatus.error);
 
         return true;
     }
 
-    private boolean sendRequestMessage(byte[] message) {
+    private boolean powerCycle() {
+        SmartCardMessage.DataBlock atr;
         int length;
 
-        if (!this.havePermission) {
-            Log.w(TAG, "USB permission require, please call start() first");
+        if ((length = this.transceive(this.message.getMessageIccPowerOff())) < 0) {
+            Log.w(TAG, "ICC power off failed");
             return false;
         }
 
-        if (message == null || message.length == 0) {
-            Log.w(TAG, "message is null or invalid length");
+        if (this.message.parseSlotStatusBlock(this.receiveBuffer, length) == null) {
+            Log.w(TAG, "ICC power off return invalid response");
             return false;
         }
 
-        StringBuilder sb = new StringBuilder();
-        for (byte b: message) {
-            sb.append(String.format("%02x", (byte)b));
+        atr = this.getATR();
+
+        return (atr != null && atr.dataType == SmartCardMessage.DataType.ATR && atr.status == 0 && atr.error == 0);
+    }
+
+    private synchronized boolean prepareConnection() {
+        if (!this.havePermission) {
+            Log.w(TAG, "USB permission require, please call start() first");
+            return false;
         }
-        Log.d(TAG, "Sending message [" + message.length + "][" + sb.toString() + "]");
 
-        length = this.deviceConnection.bulkTransfer(this.inputEndpoint, message, message.length, 0);
+        if (this.interfaceClaimed) {
+            return true;
+        }
 
-        if (length <= 0 || length != message.length) {
-            Log.w(TAG, "message sending return invalid length " + length + "/" + message.length);
+        if (!this.channel.claim()) {
             return false;
         }
 
+        this.interfaceClaimed = true;
+
         return true;
     }
 
-    private byte[] receiveResponseMessage() throws IOException {
-        int length, totalLength;
-        byte[] buffer;
-        ByteArrayOutputStream dataStream = new ByteArrayOutputStream();
-
-        if (!this.havePermission) {
-            Log.w(TAG, "USB permission require, please call start() first");
-            return null;
+    private synchronized void releaseConnection() {
+        if (this.interfaceClaimed && this.channel != null) {
+            this.channel.release();
         }
 
-        buffer = new byte[this.outputEndpoint.getMaxPacketSize()];
+        this.interfaceClaimed = false;
+    }
 
-        length = this.deviceConnection.bulkTransfer(this.outputEndpoint, buffer, buffer.length, 0);
+    private int transceive(byte[] message) {
+        return this.transceive(new byte[][]{message});
+    }
 
-        if (length < 10) {
-            Log.w(TAG, "receive message invalid length " + length);
-            return null;
+    // send request fragments and wait the response of the same bSlot and bSeq, return response length or -1 on error
+    private synchronized int transceive(byte[][] messages) {
+        SmartCardChannel.Exchange exchange;
+        int length;
+
+        if (!this.prepareConnection()) {
+            Log.w(TAG, "prepareConnection() failed");
+            return -1;
+        }
+
+        if (this.recoveryRequired && !this.recovering) {
+            if (!this.recover()) {
+                Log.w(TAG, "recover() failed");
+                return -1;
+            }
         }
 
-        dataStream = new ByteArrayOutputStream();
-        dataStream.write(buffer, 0, length);
+        if (this.cardStatus == SmartCardMessage.IccStatus.ABSENT && messages[0][0] == (byte)0x6f) {
+            Log.w(TAG, "Card is removed");
+            return -1;
+        }
 
-        totalLength = (((int)buffer[4] & 0xff) << 24) | (((int)buffer[3] & 0xff) << 16) | (((int)buffer[2] & 0xff) << 8) | ((int)buffer[1] & 0xff);
-        totalLength += 10;
+        exchange = this.channel.register(messages[0][5], messages[0][6], this.receiveBuffer);
+        this.currentExchange = exchange;
 
-        while (dataStream.size() < totalLength) {
-            length = this.deviceConnection.bulkTransfer(this.outputEndpoint, buffer, buffer.length, 0);
-            if (length < 0) {
-                Log.w(TAG, "receive continues message return error");
-                dataStream.close();
-                return null;
-            } else if (length == 0) {
-                if (dataStream.size() < totalLength) {
-                    Log.w(TAG, "receive continues message not success");
-                    dataStream.close();
-                    return null;
-                } else {
-                    break;
+        try {
+            // nothing reached the reader when the deadline passed before the first transfer, no recovery needed
+            if ((length = this.channel.send(messages, this)) <= 0) {
+                Log.w(TAG, "Request message sending error");
+                if (length < 0) {
+                    this.recoveryRequired = true;
                 }
+                return -1;
             }
 
-            dataStream.write(buffer, 0, length);
+            if ((length = this.channel.receive(exchange, this)) < 0) {
+                Log.w(TAG, "Response message receiving error");
+                this.recoveryRequired = true;
+                return -1;
+            }
+
+            this.receiveBuffer = exchange.buffer;
+            this.setCardStatus(SmartCardMessage.getIccStatus(this.receiveBuffer[7]));
+
+            // power on, power off and reset select the default applet again
+            if (messages[0][0] == (byte)0x62 || messages[0][0] == (byte)0x63 || messages[0][0] == (byte)0x6d) {
+                this.selectedApplet = null;
+            }
+
+            return length;
+        } finally {
+            this.currentExchange = null;
+            this.channel.unregister(exchange);
         }
+    }
 
-        buffer = dataStream.toByteArray();
-        dataStream.close();
+    static String toHexString(byte[] data, int offset, int length) {
+        StringBuilder sb = new StringBuilder(length * 2);
+
+        for (int i = offset; i < offset + length; i++) {
+            sb.append(String.format("%02x", data[i]));
+        }
 
-        return buffer;
+        return sb.toString();
     }
 }
@@ -2,16 +2,30 @@ package co.advancedlogic.thainationalidcard;
 
 import android.util.Log;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
 public final class SmartCardMessage {
     private static final String TAG = "SmartCardMessage";
 
+    public static final int REQUEST_TYPE_CLASS_OUT = 0x21;
+    public static final int REQUEST_TYPE_CLASS_IN = 0xa1;
+    public static final int REQUEST_ABORT = 0x01;
+
     private boolean isT1 = false;
     private int slotNumber = 0;
-    private int sequence = 0x00;
+    private AtomicInteger sequence = new AtomicInteger(0);
+    private AtomicBoolean fragmented = new AtomicBoolean(false);
     private int timeout = 0;
-    private int exchangeLevel = 0;
     private int maxPacketSize = 64;
 
+    // wLevelParameter of XfrBlock and bChainParameter of DataBlock for extended APDU level
+    public static final int CHAIN_COMPLETE = 0x00;
+    public static final int CHAIN_BEGIN = 0x01;
+    public static final int CHAIN_END = 0x02;
+    public static final int CHAIN_CONTINUE = 0x03;
+    public static final int CHAIN_EMPTY_CONTINUE = 0x10;
+
     public SmartCardMessage() {
     }
 
@@ -19,10 +33,35 @@ public final class SmartCardMessage {
         this.isT1 = t1;
     }
 
+    // message of another slot, bSeq counter is shared so every pending request of the reader is unique
+    public SmartCardMessage getSlotMessage(int slotNumber) {
+        SmartCardMessage message = new SmartCardMessage(this.isT1);
+
+        if (!message.setSlotNumber(slotNumber)) {
+            return null;
+        }
+
+        message.sequence = this.sequence;
+        message.fragmented = this.fragmented;
+        message.timeout = this.timeout;
+        message.maxPacketSize = this.maxPacketSize;
+
+        return message;
+    }
+
+    public int getSlotNumber() {
+        return this.slotNumber;
+    }
+
+    // T=1 is used even when the reader does not report the protocol, block framing is done by SmartCardT1
     public void setMessageTypeT1(boolean t1) {
         this.isT1 = t1;
     }
 
+    public boolean isMessageTypeT1() {
+        return this.isT1;
+    }
+
     public boolean setSlotNumber(int slotNumber) {
         if (slotNumber >= 0 && slotNumber <= 127) {
             this.slotNumber = slotNumber;
@@ -37,6 +76,15 @@ public final class SmartCardMessage {
         this.maxPacketSize = size;
     }
 
+    // XfrBlock is split by max packet size for reader that need one bulk-OUT transfer per packet, shared by every slot
+    public void setMessageFragmented(boolean fragmented) {
+        this.fragmented.set(fragmented);
+    }
+
+    public boolean isMessageFragmented() {
+        return this.fragmented.get();
+    }
+
     private void initProperties(byte[] message, int type) {
         if (message == null) {
             Log.w(TAG, "message is null");
@@ -45,12 +93,10 @@ public final class SmartCardMessage {
 
         message[0] = (byte)type;
         message[5] = (byte)this.slotNumber;
-        message[6] = (byte)this.sequence;
+        message[6] = (byte)this.sequence.getAndIncrement();
         message[7] = (byte)this.timeout;
-        message[8] = (byte)this.exchangeLevel;
+        message[8] = (byte)0x00;
         message[9] = (byte)0x00;
-
-        this.sequence++;
     }
 
     private void initMessageLength(byte[] message, int length) {
@@ -97,38 +143,96 @@ public final class SmartCardMessage {
         return message;
     }
 
+    public byte[] getMessageGetParameters() {
+        byte[] message = new byte[10];
+
+        this.initProperties(message,0x6c);
+
+        return message;
+    }
+
+    // abProtocolDataStructure is 5 bytes for T=0 and 7 bytes for T=1
+    public byte[] getMessageSetParameters(int protocol, byte[] data) {
+        byte[] message = new byte[data.length + 10];
+
+        this.initProperties(message,0x61);
+        this.initMessageLength(message, data.length);
+        message[7] = (byte)protocol;
+        message[8] = (byte)0x00;
+        System.arraycopy(data, 0, message, 10, data.length);
+
+        return message;
+    }
+
+    // clock in kHz and data rate in bps, needed by reader without automatic baud rate after a PPS
+    public byte[] getMessageSetDataRateAndClockFrequency(int clockFrequency, int dataRate) {
+        byte[] message = new byte[18];
+
+        this.initProperties(message,0x73);
+        this.initMessageLength(message, 8);
+        message[10] = (byte)clockFrequency;
+        message[11] = (byte)(clockFrequency >> 8);
+        message[12] = (byte)(clockFrequency >> 16);
+        message[13] = (byte)(clockFrequency >> 24);
+        message[14] = (byte)dataRate;
+        message[15] = (byte)(dataRate >> 8);
+        message[16] = (byte)(dataRate >> 16);
+        message[17] = (byte)(dataRate >> 24);
+
+        return message;
+    }
+
+    public byte[] getMessageAbort() {
+        byte[] message = new byte[10];
+
+        this.initProperties(message,0x72);
+
+        return message;
+    }
+
+    // wValue of the ABORT class request, must match bSlot and bSeq of PC_to_RDR_Abort
+    public static int getAbortRequestValue(byte[] abortMessage) {
+        return (((int)abortMessage[6] & 0xff) << 8) | ((int)abortMessage[5] & 0xff);
+    }
+
     public byte[][] getMessageXfrBlock(byte[] data) {
-        byte[][] messages;
-        byte[] block, dataTmp;
-        int blockSize;
-        byte xorSum = 0;
+        return this.getMessageXfrBlock(data, 0);
+    }
 
-        if (this.isT1) {
-            if (data.length > 254) {
-                Log.w(TAG, "Invalid data block length");
-                return null;
-            }
-            dataTmp = new byte[data.length + 4];
-            dataTmp[2] = (byte)data.length;
-            System.arraycopy(data, 0, dataTmp, 3, data.length);
-            for (byte b: dataTmp) {
-                xorSum ^= b;
-            }
-            dataTmp[dataTmp.length - 1] = xorSum;
+    // bwi extend the block waiting time of this transfer, used to answer a T=1 S(WTX request)
+    public byte[][] getMessageXfrBlock(byte[] data, int bwi) {
+        return this.getMessageXfrBlock(data, bwi, CHAIN_COMPLETE);
+    }
 
-            data = dataTmp;
+    // levelParameter is the part of the APDU carried by this message at extended APDU level
+    public byte[][] getMessageXfrBlock(byte[] data, int bwi, int levelParameter) {
+        byte[][] messages;
+        byte[] block;
+        int blockSize;
 
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
             StringBuilder sb = new StringBuilder();
             for (byte b: data) {
                 sb.append(String.format("%02x", (byte)b));
             }
-            Log.d(TAG, "APDU T=1 [" + data.length + "][" + sb.toString() + "]");
-        } else {
-            StringBuilder sb = new StringBuilder();
-            for (byte b: data) {
-                sb.append(String.format("%02x", (byte)b));
+            Log.d(TAG, "XfrBlock " + (this.isT1 ? "T=1" : "T=0") + " [" + data.length + "][" + sb.toString() + "]");
+        }
+
+        // whole message in one buffer, the USB host stack split it in packets
+        if (!this.fragmented.get()) {
+            block = new byte[data.length + 10];
+
+            this.initProperties(block, 0x6f);
+            this.initMessageLength(block, data.length);
+            if (bwi > 0) {
+                block[7] = (byte)bwi;
             }
-            Log.d(TAG, "APDU T=0 [" + data.length + "][" + sb.toString() + "]");
+            block[8] = (byte)(levelParameter & 0xff);
+            block[9] = (byte)((levelParameter >> 8) & 0xff);
+
+            System.arraycopy(data, 0, block, 10, data.length);
+
+            return new byte[][]{block};
         }
 
         int blockCount = ((data.length + 10) / this.maxPacketSize) + ((((data.length + 10) % this.maxPacketSize) > 0) ? 1:0);
@@ -142,6 +246,11 @@ public final class SmartCardMessage {
             if (i == 0) {
                 this.initProperties(block, 0x6f);
                 this.initMessageLength(block, data.length);
+                if (bwi > 0) {
+                    block[7] = (byte)bwi;
+                }
+                block[8] = (byte)(levelParameter & 0xff);
+                block[9] = (byte)((levelParameter >> 8) & 0xff);
                 blockSize = ((data.length + 10) > this.maxPacketSize) ? (this.maxPacketSize - 10):data.length;
 
                 System.arraycopy(data, 0, block, 10, blockSize);
@@ -171,15 +280,22 @@ public final class SmartCardMessage {
     }
 
     public DataBlock parseDataBlock(byte[] data) {
-        int length;
-        DataBlock dataBlock;
-
         if (data == null) {
             Log.w(TAG, "data is null");
             return null;
         }
 
-        Log.d(TAG, "Parsing data length " + data.length);
+        return this.parseDataBlock(data, data.length);
+    }
+
+    public DataBlock parseDataBlock(byte[] data, int dataLength) {
+        int length;
+        DataBlock dataBlock;
+
+        if (data == null || dataLength < 10) {
+            Log.w(TAG, "data is null or invalid length");
+            return null;
+        }
 
         if (data[0] != (byte)0x80) {
             Log.w(TAG, String.format("Invalid data type [%02x]", (byte)data[0]));
@@ -190,41 +306,69 @@ public final class SmartCardMessage {
 
         length = (int)((((int)data[4] & 0xff) << 24) | (((int)data[3] & 0xff) << 16 ) | (((int)data[2] & 0xff) << 8) | ((int)data[1] & 0xff));
 
-        if (data.length < length + 10) {
-            Log.w(TAG, String.format("Invalid data length %d/%d", data.length, length + 10));
+        if (dataLength < length + 10) {
+            Log.w(TAG, String.format("Invalid data length %d/%d", dataLength, length + 10));
             return null;
         }
 
         dataBlock.status = (int)data[7];
         dataBlock.error = (int)data[8];
-
-        if (length > 0) {
-            if (data[10] == (byte)0x3b) {
-                dataBlock.dataType = DataType.ATR;
-            } else if (data[10] == (byte)0x61 || data[10] == (byte)0x6c) {
-                dataBlock.dataType = DataType.APDU_HEADER;
-            } else {
-                dataBlock.dataType = DataType.APDU_DATA;
-            }
-        }
-
+        dataBlock.chainParameter = (int)data[9] & 0xff;
         dataBlock.data = new byte[length];
 
         System.arraycopy(data, 10, dataBlock.data, 0, length);
+        dataBlock.dataType = getDataType(dataBlock.data);
 
         return dataBlock;
     }
 
-    public EscapeResponseBlock parseEscapeResponseBlock(byte[] data) {
-        int length;
-        EscapeResponseBlock escapeBlock;
+    // response APDU reassembled from T=1 blocks
+    public DataBlock parseApduResponse(byte[] response) {
+        DataBlock dataBlock;
+
+        if (response == null) {
+            Log.w(TAG, "response is null");
+            return null;
+        }
+
+        dataBlock = new DataBlock();
+        dataBlock.data = response;
+        dataBlock.dataType = getDataType(response);
+
+        return dataBlock;
+    }
+
+    private static DataType getDataType(byte[] data) {
+        if (data.length == 0) {
+            return DataType.UNKNOWN;
+        }
+
+        if (data[0] == (byte)0x3b) {
+            return DataType.ATR;
+        } else if (data[0] == (byte)0x61 || data[0] == (byte)0x6c) {
+            return DataType.APDU_HEADER;
+        }
 
+        return DataType.APDU_DATA;
+    }
+
+    public EscapeResponseBlock parseEscapeResponseBlock(byte[] data) {
         if (data == null) {
             Log.w(TAG, "escape is null");
             return null;
         }
 
-        Log.d(TAG, "Parsing escape length " + data.length);
+        return this.parseEscapeResponseBlock(data, data.length);
+    }
+
+    public EscapeResponseBlock parseEscapeResponseBlock(byte[] data, int dataLength) {
+        int length;
+        EscapeResponseBlock escapeBlock;
+
+        if (data == null || dataLength < 10) {
+            Log.w(TAG, "escape is null or invalid length");
+            return null;
+        }
 
         if (data[0] != (byte)0x83) {
             Log.w(TAG, String.format("Invalid escape type [%02x]", (byte)data[0]));
@@ -233,6 +377,11 @@ public final class SmartCardMessage {
 
         length = (int)((((int)data[4] & 0xff) << 24) | (((int)data[3] & 0xff) << 16 ) | (((int)data[2] & 0xff) << 8) | ((int)data[1] & 0xff));
 
+        if (dataLength < length + 10) {
+            Log.w(TAG, String.format("Invalid escape length %d/%d", dataLength, length + 10));
+            return null;
+        }
+
         escapeBlock = new EscapeResponseBlock();
 
         escapeBlock.status = data[7];
@@ -246,6 +395,140 @@ public final class SmartCardMessage {
         return escapeBlock;
     }
 
+    public SlotStatusBlock parseSlotStatusBlock(byte[] data, int dataLength) {
+        SlotStatusBlock slotStatus;
+
+        if (data == null || dataLength < 10) {
+            Log.w(TAG, "slot status is null or invalid length");
+            return null;
+        }
+
+        if (data[0] != (byte)0x81) {
+            Log.w(TAG, String.format("Invalid slot status type [%02x]", (byte)data[0]));
+            return null;
+        }
+
+        slotStatus = new SlotStatusBlock();
+
+        slotStatus.status = (int)data[7];
+        slotStatus.error = (int)data[8];
+        slotStatus.clockStatus = (int)data[9];
+
+        return slotStatus;
+    }
+
+    public ParametersBlock parseParametersBlock(byte[] data, int dataLength) {
+        int length;
+        ParametersBlock parameters;
+
+        if (data == null || dataLength < 10) {
+            Log.w(TAG, "parameters is null or invalid length");
+            return null;
+        }
+
+        if (data[0] != (byte)0x82) {
+            Log.w(TAG, String.format("Invalid parameters type [%02x]", (byte)data[0]));
+            return null;
+        }
+
+        length = (int)((((int)data[4] & 0xff) << 24) | (((int)data[3] & 0xff) << 16 ) | (((int)data[2] & 0xff) << 8) | ((int)data[1] & 0xff));
+
+        if (dataLength < length + 10) {
+            Log.w(TAG, String.format("Invalid parameters length %d/%d", dataLength, length + 10));
+            return null;
+        }
+
+        parameters = new ParametersBlock();
+
+        parameters.status = (int)data[7];
+        parameters.error = (int)data[8];
+        parameters.protocol = (int)data[9];
+        parameters.data = new byte[length];
+        if (length > 0) {
+            System.arraycopy(data, 10, parameters.data, 0, length);
+        }
+
+        return parameters;
+    }
+
+    public DataRateBlock parseDataRateBlock(byte[] data, int dataLength) {
+        DataRateBlock dataRate;
+
+        if (data == null || dataLength < 10) {
+            Log.w(TAG, "data rate is null or invalid length");
+            return null;
+        }
+
+        if (data[0] != (byte)0x84) {
+            Log.w(TAG, String.format("Invalid data rate type [%02x]", (byte)data[0]));
+            return null;
+        }
+
+        dataRate = new DataRateBlock();
+
+        dataRate.status = (int)data[7];
+        dataRate.error = (int)data[8];
+
+        // dwClockFrequency and dwDataRate are only present on success
+        if (dataLength >= 18) {
+            dataRate.clockFrequency = (data[10] & 0xff) | ((data[11] & 0xff) << 8) | ((data[12] & 0xff) << 16) | ((data[13] & 0xff) << 24);
+            dataRate.dataRate = (data[14] & 0xff) | ((data[15] & 0xff) << 8) | ((data[16] & 0xff) << 16) | ((data[17] & 0xff) << 24);
+        }
+
+        return dataRate;
+    }
+
+    // RDR_to_PC_NotifySlotChange from the interrupt endpoint, bmSlotICCState has 2 bits per slot
+    public NotifySlotChangeBlock parseNotifySlotChange(byte[] data, int dataLength) {
+        NotifySlotChangeBlock slotChange;
+        int slotCount;
+
+        if (data == null || dataLength < 2) {
+            Log.w(TAG, "slot change is null or invalid length");
+            return null;
+        }
+
+        if (data[0] != (byte)0x50) {
+            Log.w(TAG, String.format("Invalid slot change type [%02x]", (byte)data[0]));
+            return null;
+        }
+
+        slotCount = (dataLength - 1) * 4;
+
+        slotChange = new NotifySlotChangeBlock();
+        slotChange.present = new boolean[slotCount];
+        slotChange.changed = new boolean[slotCount];
+
+        for (int i = 0; i < slotCount; i++) {
+            int state = ((int)data[1 + (i / 4)] >> ((i % 4) * 2)) & 0x03;
+
+            slotChange.present[i] = (state & 0x01) != 0;
+            slotChange.changed[i] = (state & 0x02) != 0;
+        }
+
+        return slotChange;
+    }
+
+    // bmICCStatus in bStatus of every reader response
+    public static IccStatus getIccStatus(int status) {
+        switch (status & 0x03) {
+            case 0x00:
+                return IccStatus.ACTIVE;
+            case 0x01:
+                return IccStatus.INACTIVE;
+            case 0x02:
+                return IccStatus.ABSENT;
+            default:
+                return null;
+        }
+    }
+
+    public enum IccStatus {
+        ACTIVE,
+        INACTIVE,
+        ABSENT
+    }
+
     public enum DataType {
         UNKNOWN,
         ATR,
@@ -258,6 +541,7 @@ public final class SmartCardMessage {
         public byte[] data = null;
         public int status = 0;
         public int error = 0;
+        public int chainParameter = CHAIN_COMPLETE;
     }
 
     public class EscapeResponseBlock {
@@ -266,4 +550,29 @@ public final class SmartCardMessage {
         public int error = 0;
         public int rfu;
     }
+
+    public class SlotStatusBlock {
+        public int status = 0;
+        public int error = 0;
+        public int clockStatus = 0;
+    }
+
+    public class NotifySlotChangeBlock {
+        public boolean[] present = null;
+        public boolean[] changed = null;
+    }
+
+    public class DataRateBlock {
+        public int clockFrequency = 0;
+        public int dataRate = 0;
+        public int status = 0;
+        public int error = 0;
+    }
+
+    public class ParametersBlock {
+        public byte[] data = null;
+        public int protocol = 0;
+        public int status = 0;
+        public int error = 0;
+    }
 }
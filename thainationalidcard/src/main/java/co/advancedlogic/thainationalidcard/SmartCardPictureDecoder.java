@@ -0,0 +1,121 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+// decode the JPEG of the card picture on its own executor so the reader is not kept waiting
+public final class SmartCardPictureDecoder {
+    private static final String TAG = "SmartCardPictureDecoder";
+
+    private final Executor executor;
+    private final SmartCardBitmapPool bitmapPool;
+
+    // bitmapPool may be null, the decoded bitmaps are then always allocated
+    public SmartCardPictureDecoder(Executor executor, SmartCardBitmapPool bitmapPool) {
+        if (executor == null) {
+            throw new NullPointerException("Invalid executor");
+        }
+
+        this.executor = executor;
+        this.bitmapPool = bitmapPool;
+    }
+
+    public SmartCardBitmapPool getBitmapPool() {
+        return this.bitmapPool;
+    }
+
+    // sampleSize 1 = full size, 2 = half width and height, ...
+    public Future<Bitmap> decodeAsync(final byte[] jpeg, final int sampleSize, final Executor callbackExecutor, final ThaiSmartCard.ResultCallback<Bitmap> callback) {
+        FutureTask<Bitmap> task = new FutureTask<Bitmap>(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                final Bitmap bitmap = SmartCardPictureDecoder.this.decode(jpeg, sampleSize);
+                Runnable runnable;
+
+                if (callback == null) {
+                    return bitmap;
+                }
+
+                runnable = new Runnable() {
+                    @Override
+                    public void run() {
+                        if (bitmap != null) {
+                            callback.onSuccess(bitmap);
+                        } else {
+                            callback.onError();
+                        }
+                    }
+                };
+
+                if (callbackExecutor != null) {
+                    callbackExecutor.execute(runnable);
+                } else {
+                    runnable.run();
+                }
+
+                return bitmap;
+            }
+        });
+
+        this.executor.execute(task);
+
+        return task;
+    }
+
+    // decode on the calling thread, a pooled bitmap is reused when one is large enough
+    public Bitmap decode(byte[] jpeg, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        Bitmap bitmap;
+
+        if (jpeg == null || jpeg.length == 0 || sampleSize < 1) {
+            Log.w(TAG, "Invalid picture data or sample size");
+            return null;
+        }
+
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        options.inMutable = true;
+
+        if (this.bitmapPool != null) {
+            BitmapFactory.Options bounds = new BitmapFactory.Options();
+
+            bounds.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, bounds);
+
+            if (bounds.outWidth > 0 && bounds.outHeight > 0) {
+                options.inBitmap = this.bitmapPool.acquire(bounds.outWidth, bounds.outHeight, sampleSize);
+            }
+        }
+
+        try {
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        } catch (IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                Log.w(TAG, "Cannot decode picture");
+                return null;
+            }
+
+            // pooled bitmap refused, decode into a new one
+            Log.d(TAG, "Pooled bitmap can not be reused");
+            this.bitmapPool.release(options.inBitmap);
+            options.inBitmap = null;
+            bitmap = BitmapFactory.decodeByteArray(jpeg, 0, jpeg.length, options);
+        }
+
+        if (bitmap == null) {
+            Log.w(TAG, "Cannot decode picture");
+
+            if (options.inBitmap != null) {
+                this.bitmapPool.release(options.inBitmap);
+            }
+        }
+
+        return bitmap;
+    }
+}
@@ -0,0 +1,86 @@
+package co.advancedlogic.thainationalidcard;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// what was learned about a card type (by ATR) and a card (by ATR and chip ID), shared by every reader of the process
+public final class SmartCardProfileCache {
+    private static final int DEFAULT_MAX_PROFILES = 256;
+    private static final SmartCardProfileCache DEFAULT = new SmartCardProfileCache(DEFAULT_MAX_PROFILES);
+    // PPS failures in a row before the negotiation is skipped, a single failure may come from a bad contact
+    private static final int MAX_NEGOTIATION_FAILURES = 3;
+
+    private final LinkedHashMap<String, Profile> profiles;
+
+    static final class Profile {
+        // protocol and Fi/Di accepted by the card with PPS, -1 unknown
+        volatile int protocol = -1;
+        volatile int fiDi = -1;
+        // failures by reader product, the same card may negotiate fine on another reader
+        private final HashMap<String, Integer> negotiationFailures = new HashMap<String, Integer>();
+        // IFSD accepted with S(IFS), 0 = refused, -1 unknown
+        volatile int ifsd = -1;
+        volatile ThaiSmartCard.PictureReadMode pictureReadMode = null;
+        // response length learned from 61xx/6Cxx by command
+        final ConcurrentHashMap<String, Integer> responseLengths = new ConcurrentHashMap<String, Integer>();
+
+        synchronized boolean isNegotiationFailed(String reader) {
+            Integer failures = this.negotiationFailures.get(reader);
+
+            return failures != null && failures >= MAX_NEGOTIATION_FAILURES;
+        }
+
+        synchronized void setNegotiationFailed(String reader, boolean failed) {
+            Integer failures = this.negotiationFailures.get(reader);
+
+            if (!failed) {
+                this.negotiationFailures.remove(reader);
+            } else {
+                this.negotiationFailures.put(reader, (failures != null) ? failures + 1 : 1);
+            }
+        }
+    }
+
+    // least recently used profiles are dropped first
+    public SmartCardProfileCache(final int maxProfiles) {
+        this.profiles = new LinkedHashMap<String, Profile>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Profile> eldest) {
+                return this.size() > maxProfiles;
+            }
+        };
+    }
+
+    public static SmartCardProfileCache getDefault() {
+        return DEFAULT;
+    }
+
+    public synchronized void clear() {
+        this.profiles.clear();
+    }
+
+    public synchronized int size() {
+        return this.profiles.size();
+    }
+
+    Profile get(SmartCardAtr atr) {
+        return this.get(atr.getKey());
+    }
+
+    Profile get(SmartCardAtr atr, String chipId) {
+        return this.get(atr.getKey() + "/" + chipId);
+    }
+
+    private synchronized Profile get(String key) {
+        Profile profile = this.profiles.get(key);
+
+        if (profile == null) {
+            profile = new Profile();
+            this.profiles.put(key, profile);
+        }
+
+        return profile;
+    }
+}
@@ -0,0 +1,487 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.content.Context;
+import android.hardware.usb.UsbDevice;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// drive every matching reader, each one has a worker thread owned by the pool that wait for a card
+// the job itself is run on the reader I/O thread so other tasks of the reader are not blocked between cards
+// job is taken by whichever reader has a card inserted, one job for each card insertion
+public final class SmartCardReaderPool {
+    private static final String TAG = "SmartCardReaderPool";
+    private static final long DEFAULT_POLL_INTERVAL = 200;
+
+    private final ArrayList<SmartCardDevice> devices = new ArrayList<SmartCardDevice>();
+    private final ArrayList<Worker> workers = new ArrayList<Worker>();
+    private final LinkedBlockingDeque<Job<?>> pendingJobs = new LinkedBlockingDeque<Job<?>>();
+    private final Executor callbackExecutor;
+    private final SmartCardReaderPoolEvent eventCallback;
+    private final long startTime = System.nanoTime();
+    private volatile long pollInterval = DEFAULT_POLL_INTERVAL;
+    private volatile boolean closed = false;
+
+    private final SmartCardDevice.SmartCardDeviceEvent deviceEvent = new SmartCardDevice.SmartCardDeviceEvent() {
+        @Override
+        public void OnReady(SmartCardDevice device) {
+            SmartCardReaderPool.this.startWorker(device);
+        }
+
+        @Override
+        public void OnDetached(SmartCardDevice device) {
+            SmartCardReaderPool.this.stopWorker(device);
+        }
+    };
+
+    public interface SmartCardReaderPoolEvent {
+        void OnReaderReady(SmartCardDevice device);
+        void OnReaderDetached(SmartCardDevice device);
+    }
+
+    // run on the reader I/O thread after the card is detected, return null on error
+    public interface CardJob<T> {
+        T run(ThaiSmartCard thaiSmartCard);
+    }
+
+    public class ReaderStatistics {
+        public String ProductName;
+        public int CardsRead;
+        public int CardsFailed;
+        public long BusyTime;
+    }
+
+    public class Statistics {
+        public int ReaderCount;
+        public int PendingJobs;
+        public int CardsRead;
+        public int CardsFailed;
+        public double CardsPerMinute;
+        public ReaderStatistics[] Readers;
+    }
+
+    private SmartCardReaderPool(Executor callbackExecutor, SmartCardReaderPoolEvent eventCallback) {
+        this.callbackExecutor = callbackExecutor;
+        this.eventCallback = eventCallback;
+    }
+
+    public static SmartCardReaderPool getSmartCardReaderPool(Context context, String nameContain, SmartCardReaderPoolEvent eventCallback) {
+        return SmartCardReaderPool.getSmartCardReaderPool(context, nameContain, MainThreadExecutor.getInstance(), eventCallback);
+    }
+
+    public static SmartCardReaderPool getSmartCardReaderPool(Context context, String nameContain, Executor callbackExecutor, SmartCardReaderPoolEvent eventCallback) {
+        ArrayList<UsbDevice> usbDevices = SmartCardDevice.findUsbDevices(context, nameContain);
+        SmartCardReaderPool pool;
+
+        if (usbDevices.isEmpty()) {
+            Log.w(TAG, "Device name [" + nameContain + "] not found");
+            return null;
+        }
+
+        pool = new SmartCardReaderPool(callbackExecutor, eventCallback);
+
+        for (UsbDevice usbDevice : usbDevices) {
+            // device event is handled on the USB event thread, pool dispatch to callbackExecutor
+            SmartCardDevice device = SmartCardDevice.createSmartCardDevice(context, usbDevice, null, pool.deviceEvent);
+
+            if (device == null) {
+                Log.w(TAG, "Skip device [" + usbDevice.getDeviceName() + "]");
+                continue;
+            }
+
+            pool.addDevice(device);
+        }
+
+        return pool;
+    }
+
+    public static SmartCardReaderPool getSmartCardReaderPool(SmartCardTransport[] transports, SmartCardReaderPoolEvent eventCallback) {
+        SmartCardReaderPool pool = new SmartCardReaderPool(null, eventCallback);
+
+        for (SmartCardTransport transport : transports) {
+            pool.addDevice(new SmartCardDevice(transport, pool.deviceEvent));
+        }
+
+        return pool;
+    }
+
+    private void addDevice(SmartCardDevice device) {
+        synchronized (this.devices) {
+            this.devices.add(device);
+        }
+
+        device.start();
+    }
+
+    public void setPollInterval(long millis) {
+        this.pollInterval = (millis > 0) ? millis : DEFAULT_POLL_INTERVAL;
+    }
+
+    public int getReaderCount() {
+        synchronized (this.workers) {
+            return this.workers.size();
+        }
+    }
+
+    public SmartCardDevice[] getReaders() {
+        synchronized (this.workers) {
+            SmartCardDevice[] readers = new SmartCardDevice[this.workers.size()];
+
+            for (int i = 0; i < readers.length; i++) {
+                readers[i] = this.workers.get(i).device;
+            }
+
+            return readers;
+        }
+    }
+
+    public <T> Future<T> submit(CardJob<T> cardJob, Executor callbackExecutor, ThaiSmartCard.ResultCallback<T> callback) {
+        Job<T> job = new Job<T>(cardJob, callbackExecutor, callback);
+
+        if (this.closed) {
+            job.future.cancel(false);
+            job.deliver(null);
+            return job.future;
+        }
+
+        this.pendingJobs.addLast(job);
+
+        return job.future;
+    }
+
+    public Future<ThaiSmartCard.PersonalInformation> readPersonalInformation(Executor callbackExecutor, ThaiSmartCard.ResultCallback<ThaiSmartCard.PersonalInformation> callback) {
+        return this.submit(new CardJob<ThaiSmartCard.PersonalInformation>() {
+            @Override
+            public ThaiSmartCard.PersonalInformation run(ThaiSmartCard thaiSmartCard) {
+                return thaiSmartCard.getPersonalInformation();
+            }
+        }, callbackExecutor, callback);
+    }
+
+    public Statistics getStatistics() {
+        Statistics statistics = new Statistics();
+        long elapsed = (System.nanoTime() - this.startTime) / 1000000L;
+
+        synchronized (this.workers) {
+            statistics.ReaderCount = this.workers.size();
+            statistics.Readers = new ReaderStatistics[this.workers.size()];
+
+            for (int i = 0; i < statistics.Readers.length; i++) {
+                Worker worker = this.workers.get(i);
+                ReaderStatistics reader = new ReaderStatistics();
+
+                synchronized (worker) {
+                    reader.ProductName = worker.device.getDeviceProductName();
+                    reader.CardsRead = worker.cardsRead;
+                    reader.CardsFailed = worker.cardsFailed;
+                    reader.BusyTime = worker.busyTime / 1000000L;
+                }
+
+                statistics.Readers[i] = reader;
+            }
+        }
+
+        for (ReaderStatistics reader : statistics.Readers) {
+            statistics.CardsRead += reader.CardsRead;
+            statistics.CardsFailed += reader.CardsFailed;
+        }
+
+        statistics.PendingJobs = this.pendingJobs.size();
+        statistics.CardsPerMinute = (elapsed > 0) ? statistics.CardsRead * 60000.0 / elapsed : 0;
+
+        return statistics;
+    }
+
+    public void close() {
+        SmartCardDevice[] devices;
+        Job<?> job;
+
+        this.closed = true;
+
+        synchronized (this.workers) {
+            for (Worker worker : this.workers) {
+                worker.stop();
+            }
+            this.workers.clear();
+        }
+
+        synchronized (this.devices) {
+            devices = this.devices.toArray(new SmartCardDevice[0]);
+            this.devices.clear();
+        }
+
+        for (SmartCardDevice device : devices) {
+            device.stop();
+        }
+
+        while ((job = this.pendingJobs.pollFirst()) != null) {
+            job.future.cancel(false);
+            job.deliver(null);
+        }
+    }
+
+    private void startWorker(final SmartCardDevice device) {
+        Worker worker = new Worker(device);
+
+        if (this.closed) {
+            return;
+        }
+
+        synchronized (this.workers) {
+            this.workers.add(worker);
+        }
+
+        worker.thread.start();
+        Log.d(TAG, "Reader [" + device.getDeviceProductName() + "] is ready");
+
+        this.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                SmartCardReaderPool.this.eventCallback.OnReaderReady(device);
+            }
+        });
+    }
+
+    private void stopWorker(final SmartCardDevice device) {
+        synchronized (this.workers) {
+            for (int i = 0; i < this.workers.size(); i++) {
+                if (this.workers.get(i).device == device) {
+                    this.workers.remove(i).stop();
+                    break;
+                }
+            }
+        }
+
+        synchronized (this.devices) {
+            this.devices.remove(device);
+        }
+
+        Log.d(TAG, "Reader [" + device.getDeviceProductName() + "] is detached");
+
+        this.dispatch(new Runnable() {
+            @Override
+            public void run() {
+                SmartCardReaderPool.this.eventCallback.OnReaderDetached(device);
+            }
+        });
+    }
+
+    private void dispatch(Runnable runnable) {
+        if (this.eventCallback == null) {
+            return;
+        }
+
+        if (this.callbackExecutor != null) {
+            this.callbackExecutor.execute(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    private static final class Job<T> implements Callable<T> {
+        final CardJob<T> cardJob;
+        final Executor callbackExecutor;
+        final ThaiSmartCard.ResultCallback<T> callback;
+        final FutureTask<T> future;
+        Worker worker = null;
+
+        Job(CardJob<T> cardJob, Executor callbackExecutor, ThaiSmartCard.ResultCallback<T> callback) {
+            this.cardJob = cardJob;
+            this.callbackExecutor = callbackExecutor;
+            this.callback = callback;
+            this.future = new FutureTask<T>(this);
+        }
+
+        // statistics is recorded before the future is done
+        @Override
+        public T call() {
+            long start = System.nanoTime();
+            T result = null;
+
+            try {
+                result = this.cardJob.run(this.worker.thaiSmartCard);
+            } finally {
+                this.worker.record(result != null, System.nanoTime() - start);
+            }
+
+            return result;
+        }
+
+        void run(Worker worker) {
+            T result = null;
+
+            this.worker = worker;
+            this.future.run();
+
+            try {
+                result = this.future.get();
+            } catch (CancellationException e) {
+                return;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Card job failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            this.deliver(result);
+        }
+
+        void deliver(final T result) {
+            Runnable runnable;
+
+            if (this.callback == null) {
+                return;
+            }
+
+            runnable = new Runnable() {
+                @Override
+                public void run() {
+                    if (result != null) {
+                        Job.this.callback.onSuccess(result);
+                    } else {
+                        Job.this.callback.onError();
+                    }
+                }
+            };
+
+            if (this.callbackExecutor != null) {
+                this.callbackExecutor.execute(runnable);
+            } else {
+                runnable.run();
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+        final SmartCardDevice device;
+        final ThaiSmartCard thaiSmartCard;
+        final Thread thread;
+        volatile boolean running = true;
+        int cardsRead = 0;
+        int cardsFailed = 0;
+        long busyTime = 0;
+
+        Worker(SmartCardDevice device) {
+            this.device = device;
+            this.thaiSmartCard = new ThaiSmartCard(device);
+            this.thread = new Thread(this, "SmartCardReaderPool-" + device.getDeviceProductName());
+            this.thread.setDaemon(true);
+        }
+
+        void stop() {
+            this.running = false;
+            this.thread.interrupt();
+        }
+
+        synchronized void record(boolean success, long time) {
+            if (success) {
+                this.cardsRead++;
+            } else {
+                this.cardsFailed++;
+            }
+
+            this.busyTime += time;
+        }
+
+        private boolean isRunning() {
+            return this.running && !SmartCardReaderPool.this.closed;
+        }
+
+        @Override
+        public void run() {
+            boolean cardConsumed = false;
+            SmartCardMessage.IccStatus status;
+            Job<?> job;
+
+            while (this.isRunning()) {
+                try {
+                    // slot status does not power the card, it is pushed by reader with interrupt endpoint
+                    status = this.device.getCardStatus(SmartCardReaderPool.this.pollInterval);
+                    if (status != SmartCardMessage.IccStatus.ACTIVE && status != SmartCardMessage.IccStatus.INACTIVE) {
+                        cardConsumed = false;
+                        Thread.sleep(SmartCardReaderPool.this.pollInterval);
+                        continue;
+                    }
+
+                    // card stay in the reader after its job is done, wait until it is removed
+                    if (cardConsumed) {
+                        Thread.sleep(SmartCardReaderPool.this.pollInterval);
+                        continue;
+                    }
+
+                    job = SmartCardReaderPool.this.pendingJobs.pollFirst(SmartCardReaderPool.this.pollInterval, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                if (job == null || job.future.isCancelled()) {
+                    continue;
+                }
+
+                if (!this.isRunning()) {
+                    SmartCardReaderPool.this.pendingJobs.addFirst(job);
+                    break;
+                }
+
+                cardConsumed = true;
+
+                if (!this.runJob(job)) {
+                    break;
+                }
+            }
+
+            Log.d(TAG, "Reader [" + this.device.getDeviceProductName() + "] worker is stopped");
+        }
+
+        // job is run on the reader I/O thread, the worker wait for it so a card get only one job
+        private boolean runJob(final Job<?> job) {
+            Future<Boolean> task;
+            Boolean done;
+
+            try {
+                task = this.device.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        // card that does not answer is skipped until it is removed
+                        if (!Worker.this.thaiSmartCard.isInserted()) {
+                            return false;
+                        }
+
+                        job.run(Worker.this);
+                        return true;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                Log.w(TAG, "Reader [" + this.device.getDeviceProductName() + "] is stopped");
+                SmartCardReaderPool.this.pendingJobs.addFirst(job);
+                return false;
+            }
+
+            try {
+                done = task.get();
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Card job failed", e.getCause());
+                return true;
+            } catch (InterruptedException e) {
+                // worker stopped, the job already on the I/O thread finish alone
+                return false;
+            }
+
+            // job wait for another reader
+            if (!done) {
+                SmartCardReaderPool.this.pendingJobs.addFirst(job);
+            }
+
+            return true;
+        }
+    }
+}
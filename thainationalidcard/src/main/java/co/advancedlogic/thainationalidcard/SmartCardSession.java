@@ -0,0 +1,81 @@
+package co.advancedlogic.thainationalidcard;
+
+import java.io.Closeable;
+
+// interface is claimed once when the first session is opened and released when the last one is closed
+public final class SmartCardSession implements Closeable {
+    private final SmartCardDevice device;
+    private final SmartCardSession parent;
+    private final long deadline;
+    private final SmartCardCancellationToken cancellationToken;
+    private boolean closed = false;
+
+    SmartCardSession(SmartCardDevice device, SmartCardSession parent, long timeout, SmartCardCancellationToken cancellationToken) {
+        long deadline = (timeout > 0) ? System.nanoTime() + timeout * 1000000L : 0;
+
+        // nested session can only shorten the time budget of the outer one
+        if (parent != null && parent.deadline != 0 && (deadline == 0 || parent.deadline - deadline < 0)) {
+            deadline = parent.deadline;
+        }
+
+        this.device = device;
+        this.parent = parent;
+        this.deadline = deadline;
+        this.cancellationToken = cancellationToken;
+    }
+
+    public SmartCardDevice getDevice() {
+        return this.device;
+    }
+
+    SmartCardSession getParent() {
+        return this.parent;
+    }
+
+    SmartCardCancellationToken getCancellationToken() {
+        return this.cancellationToken;
+    }
+
+    public boolean isCancelled() {
+        for (SmartCardSession session = this; session != null; session = session.parent) {
+            if (session.cancellationToken != null && session.cancellationToken.isCancelled()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // 0 = no deadline, negative = deadline exceeded or cancelled
+    public long getRemainingTime() {
+        long remain;
+
+        if (this.isCancelled()) {
+            return -1;
+        }
+
+        if (this.deadline == 0) {
+            return 0;
+        }
+
+        remain = (this.deadline - System.nanoTime()) / 1000000L;
+
+        return (remain > 0) ? remain : -1;
+    }
+
+    public synchronized boolean isClosed() {
+        return this.closed;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (this.closed) {
+                return;
+            }
+            this.closed = true;
+        }
+
+        this.device.closeSession(this);
+    }
+}
@@ -0,0 +1,304 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+
+// ISO 7816-3 T=1 block protocol over TPDU level XfrBlock, one instance per powered card
+final class SmartCardT1 {
+    private static final String TAG = "SmartCardT1";
+
+    static final int DEFAULT_IFS = 32;
+    static final int MAX_IFS = 254;
+    private static final int MAX_RETRY = 3;
+
+    private static final int S_RESYNCH = 0x00;
+    private static final int S_IFS = 0x01;
+    private static final int S_ABORT = 0x02;
+    private static final int S_WTX = 0x03;
+    private static final int S_RESPONSE = 0x20;
+
+    // send one block and return the block answered by the card, empty on transmission error, null on transfer failure
+    interface BlockExchange {
+        byte[] exchange(byte[] block, int bwi);
+    }
+
+    private final int nad;
+    private final boolean crc;
+    private int ifsc;
+    private int ifsd = DEFAULT_IFS;
+    private int sendSequence = 0;
+    private int receiveSequence = 0;
+
+    SmartCardT1(int ifsc, int nad, boolean crc) {
+        this.ifsc = (ifsc > 0 && ifsc <= MAX_IFS) ? ifsc : DEFAULT_IFS;
+        this.nad = nad & 0xff;
+        this.crc = crc;
+    }
+
+    int getIfsc() {
+        return this.ifsc;
+    }
+
+    int getIfsd() {
+        return this.ifsd;
+    }
+
+    // IFSD already sent by a reader doing the S(IFS) exchange itself
+    void setIfsd(int ifsd) {
+        if (ifsd > 0 && ifsd <= MAX_IFS) {
+            this.ifsd = ifsd;
+        }
+    }
+
+    // S(IFS request) tell the card the longest block we accept, the card keep sending 32 bytes blocks if it refuse
+    boolean negotiateIfsd(BlockExchange io, int ifsd) {
+        byte[] request, received;
+
+        if (ifsd <= 0 || ifsd > MAX_IFS) {
+            Log.w(TAG, "Invalid IFSD " + ifsd);
+            return false;
+        }
+
+        request = this.getBlock(0xc0 | S_IFS, new byte[]{(byte)ifsd}, 0, 1);
+
+        for (int retry = 0; retry <= MAX_RETRY; retry++) {
+            if ((received = io.exchange(request, 0)) == null) {
+                return false;
+            }
+
+            if (this.isValidBlock(received) && (received[1] & 0xff) == (0xc0 | S_RESPONSE | S_IFS) && (received[2] & 0xff) == 1 && (received[3] & 0xff) == ifsd) {
+                this.ifsd = ifsd;
+                return true;
+            }
+        }
+
+        Log.w(TAG, "S(IFS) request not answered");
+        return false;
+    }
+
+    // send the APDU chained by IFSC and return the whole response APDU chained by IFSD, null on failure
+    byte[] transceive(byte[] apdu, BlockExchange io) {
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        byte[] block, lastBlock, received;
+        int offset = 0, length, pcb, retry = 0, bwi = 0;
+        boolean sending = true;
+
+        length = Math.min(this.ifsc, apdu.length);
+        block = this.getIBlock(apdu, offset, length, length < apdu.length);
+        lastBlock = block;
+
+        while (true) {
+            received = io.exchange(block, bwi);
+            bwi = 0;
+
+            if (received == null) {
+                return null;
+            }
+
+            if (!this.isValidBlock(received)) {
+                if (++retry > MAX_RETRY) {
+                    Log.w(TAG, "Too many invalid blocks");
+                    this.resynchronize(io);
+                    return null;
+                }
+
+                block = this.getRBlock(1);
+                continue;
+            }
+
+            pcb = received[1] & 0xff;
+
+            if ((pcb & 0xc0) == 0xc0) {
+                switch (pcb & 0x3f) {
+                    case S_WTX:
+                        // the card need more time, the waiting time of the next block is multiplied
+                        bwi = (received[2] != 0) ? received[3] & 0xff : 1;
+                        block = this.getBlock(0xc0 | S_RESPONSE | S_WTX, received, 3, received[2] & 0xff);
+                        retry = 0;
+                        continue;
+
+                    case S_IFS:
+                        if (received[2] != 1 || (received[3] & 0xff) == 0 || (received[3] & 0xff) > MAX_IFS) {
+                            block = this.getRBlock(2);
+                            break;
+                        }
+
+                        this.ifsc = received[3] & 0xff;
+                        block = this.getBlock(0xc0 | S_RESPONSE | S_IFS, received, 3, 1);
+                        retry = 0;
+                        continue;
+
+                    case S_ABORT:
+                        Log.w(TAG, "Card abort the chain");
+                        io.exchange(this.getBlock(0xc0 | S_RESPONSE | S_ABORT, received, 3, received[2] & 0xff), 0);
+                        return null;
+
+                    default:
+                        block = this.getRBlock(2);
+                        break;
+                }
+
+                if (++retry > MAX_RETRY) {
+                    Log.w(TAG, String.format("Unexpected S-block [%02x]", pcb));
+                    this.resynchronize(io);
+                    return null;
+                }
+
+                continue;
+            }
+
+            if ((pcb & 0xc0) == 0x80) {
+                // acknowledge of a chained block, N(R) point to the next one
+                if (sending && offset + length < apdu.length && ((pcb >> 4) & 1) != this.sendSequence) {
+                    this.sendSequence ^= 1;
+                    offset += length;
+                    length = Math.min(this.ifsc, apdu.length - offset);
+                    block = this.getIBlock(apdu, offset, length, offset + length < apdu.length);
+                    lastBlock = block;
+                    retry = 0;
+                    continue;
+                }
+
+                if (++retry > MAX_RETRY) {
+                    Log.w(TAG, "Too many retransmission requests");
+                    this.resynchronize(io);
+                    return null;
+                }
+
+                block = lastBlock;
+                continue;
+            }
+
+            if (sending) {
+                if (offset + length < apdu.length) {
+                    Log.w(TAG, "Card answer before the end of the chain");
+                    this.resynchronize(io);
+                    return null;
+                }
+
+                // card I-block acknowledge our last block
+                this.sendSequence ^= 1;
+                sending = false;
+            }
+
+            if (((pcb >> 6) & 1) != this.receiveSequence) {
+                if (++retry > MAX_RETRY) {
+                    Log.w(TAG, "Unexpected I-block sequence");
+                    this.resynchronize(io);
+                    return null;
+                }
+
+                block = this.getRBlock(0);
+                continue;
+            }
+
+            response.write(received, 3, received[2] & 0xff);
+            this.receiveSequence ^= 1;
+            retry = 0;
+
+            if ((pcb & 0x20) == 0) {
+                return response.toByteArray();
+            }
+
+            block = this.getRBlock(0);
+            lastBlock = block;
+        }
+    }
+
+    // S(RESYNCH) reset both sequence numbers, the exchange in progress is lost
+    private void resynchronize(BlockExchange io) {
+        byte[] received;
+
+        for (int retry = 0; retry < MAX_RETRY; retry++) {
+            if ((received = io.exchange(this.getBlock(0xc0 | S_RESYNCH, null, 0, 0), 0)) == null) {
+                break;
+            }
+
+            if (this.isValidBlock(received) && (received[1] & 0xff) == (0xc0 | S_RESPONSE | S_RESYNCH)) {
+                break;
+            }
+        }
+
+        this.sendSequence = 0;
+        this.receiveSequence = 0;
+    }
+
+    private byte[] getIBlock(byte[] apdu, int offset, int length, boolean more) {
+        return this.getBlock((this.sendSequence << 6) | (more ? 0x20 : 0x00), apdu, offset, length);
+    }
+
+    // N(R) is the sequence of the I-block we expect, error 1 = EDC or parity, 2 = other
+    private byte[] getRBlock(int error) {
+        return this.getBlock(0x80 | (this.receiveSequence << 4) | error, null, 0, 0);
+    }
+
+    private byte[] getBlock(int pcb, byte[] inf, int offset, int length) {
+        byte[] block = new byte[3 + length + (this.crc ? 2 : 1)];
+        int edc;
+
+        block[0] = (byte)this.nad;
+        block[1] = (byte)pcb;
+        block[2] = (byte)length;
+
+        if (length > 0) {
+            System.arraycopy(inf, offset, block, 3, length);
+        }
+
+        if (this.crc) {
+            edc = getCrc(block, 3 + length);
+            block[3 + length] = (byte)(edc >> 8);
+            block[4 + length] = (byte)edc;
+        } else {
+            block[3 + length] = getLrc(block, 3 + length);
+        }
+
+        return block;
+    }
+
+    private boolean isValidBlock(byte[] block) {
+        int length, edc;
+
+        if (block.length < 4) {
+            return false;
+        }
+
+        length = block[2] & 0xff;
+
+        if (length > this.ifsd || block.length != 3 + length + (this.crc ? 2 : 1)) {
+            return false;
+        }
+
+        if (this.crc) {
+            edc = getCrc(block, 3 + length);
+            return block[3 + length] == (byte)(edc >> 8) && block[4 + length] == (byte)edc;
+        }
+
+        return block[3 + length] == getLrc(block, 3 + length);
+    }
+
+    static byte getLrc(byte[] data, int length) {
+        byte lrc = 0;
+
+        for (int i = 0; i < length; i++) {
+            lrc ^= data[i];
+        }
+
+        return lrc;
+    }
+
+    // CRC-16 of ISO/IEC 13239, polynomial 0x1021 with 0xffff preset
+    static int getCrc(byte[] data, int length) {
+        int crc = 0xffff;
+
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xff) << 8;
+
+            for (int bit = 0; bit < 8; bit++) {
+                crc = ((crc & 0x8000) != 0) ? ((crc << 1) ^ 0x1021) : (crc << 1);
+            }
+        }
+
+        return crc & 0xffff;
+    }
+}
@@ -0,0 +1,32 @@
+package co.advancedlogic.thainationalidcard;
+
+public interface SmartCardTransport {
+    boolean open();
+    void close();
+    boolean claim();
+    void release();
+
+    // abort transfers in progress, may be called from another thread
+    void cancel();
+
+    String getProductName();
+    int getMaxPacketSize();
+
+    // host to reader (bulk-OUT), return transferred length or negative on error
+    int send(byte[] buffer, int offset, int length, int timeout);
+
+    // reader to host (bulk-IN), return received length or negative on error
+    int receive(byte[] buffer, int offset, int length, int timeout);
+
+    // reader interrupt-IN endpoint used for RDR_to_PC_NotifySlotChange, not every reader has one
+    boolean hasInterruptEndpoint();
+
+    // return received length or negative on error or timeout
+    int receiveInterrupt(byte[] buffer, int offset, int length, int timeout);
+
+    // CCID functional descriptor of the reader interface, null when not available
+    byte[] getClassDescriptor();
+
+    // control pipe request to the reader interface, return transferred length or negative on error
+    int controlTransfer(int requestType, int request, int value, byte[] buffer, int length, int timeout);
+}
@@ -10,8 +10,19 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -23,8 +34,29 @@ import javax.crypto.spec.SecretKeySpec;
 
 public final class ThaiSmartCard {
     private static final String TAG = "ThaiSmartCard";
+    private static final int PERSONAL_PIC_OFFSET = 0x017b;
+    private static final int PERSONAL_PIC_LENGTH = 5118;
+    // a picture block is retried after 20 then 40 milliseconds
+    private static final int PICTURE_BLOCK_RETRY = 2;
+    private static final int PICTURE_BLOCK_RETRY_DELAY = 20;
+
+    // personal data and address area of the storage applet file
+    private static final int[] INFO_AREA_OFFSETS = new int[]{0x0000, 0x1579};
+    private static final int[] INFO_AREA_LENGTHS = new int[]{377, 174};
+
+    private static final byte[] SELECT_APPLET_CHIP_DATA = new byte[]{(byte)0x00, (byte)0xa4, (byte)0x04, (byte)0x00};
+    private static final byte[] SELECT_APPLET_STORAGE_DATA = new byte[]{(byte)0x00, (byte)0xa4, (byte)0x04, (byte)0x00, (byte)0x08, (byte)0xa0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x54, (byte)0x48, (byte)0x00, (byte)0x01};
+    private static final byte[] SELECT_APPLET_EXTENSION = new byte[]{(byte)0x00, (byte)0xa4, (byte)0x04, (byte)0x00, (byte)0x08, (byte)0xa0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x84, (byte)0x06, (byte)0x00, (byte)0x02};
 
     private SmartCardDevice device;
+    private volatile PictureReadMode pictureReadMode = PictureReadMode.AUTO;
+    // card read by the last getCardID(), its profile is used while the same ATR stay powered
+    private volatile SmartCardAtr chipIdAtr = null;
+    private volatile String chipId = null;
+    private volatile boolean pictureResume = false;
+    private volatile PictureCheckpoint pictureCheckpoint = null;
+    // used when the ATR could not be parsed
+    private final SmartCardProfileCache.Profile localProfile = new SmartCardProfileCache.Profile();
 
     public ThaiSmartCard(SmartCardDevice device) {
         if (device == null) {
@@ -38,21 +70,274 @@ public final class ThaiSmartCard {
         this.device = device;
     }
 
+    public interface ResultCallback<T> {
+        void onSuccess(T result);
+        void onError();
+    }
+
+    // run task on the reader I/O thread, callback is run on callbackExecutor or on the I/O thread when null
+    private <T> Future<T> submit(final Callable<T> task, final Executor callbackExecutor, final ResultCallback<T> callback) {
+        return this.device.submit(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                T result = null;
+
+                try {
+                    result = task.call();
+                } finally {
+                    ThaiSmartCard.this.deliver(result, callbackExecutor, callback);
+                }
+
+                return result;
+            }
+        });
+    }
+
+    private <T> void deliver(final T result, Executor callbackExecutor, final ResultCallback<T> callback) {
+        Runnable runnable;
+
+        if (callback == null) {
+            return;
+        }
+
+        runnable = new Runnable() {
+            @Override
+            public void run() {
+                if (result != null) {
+                    callback.onSuccess(result);
+                } else {
+                    callback.onError();
+                }
+            }
+        };
+
+        if (callbackExecutor != null) {
+            callbackExecutor.execute(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    public Future<Boolean> isInsertedAsync(Executor callbackExecutor, ResultCallback<Boolean> callback) {
+        return this.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return ThaiSmartCard.this.isInserted();
+            }
+        }, callbackExecutor, callback);
+    }
+
+    public Future<String> readCardIDAsync(Executor callbackExecutor, ResultCallback<String> callback) {
+        return this.readCardIDAsync(0, null, callbackExecutor, callback);
+    }
+
+    public Future<String> readCardIDAsync(final long timeout, final SmartCardCancellationToken cancellationToken, Executor callbackExecutor, ResultCallback<String> callback) {
+        return this.submit(new Callable<String>() {
+            @Override
+            public String call() {
+                return ThaiSmartCard.this.getCardID(timeout, cancellationToken);
+            }
+        }, callbackExecutor, callback);
+    }
+
+    public Future<PersonalInformation> readPersonalInformationAsync(Executor callbackExecutor, ResultCallback<PersonalInformation> callback) {
+        return this.readPersonalInformationAsync(0, null, callbackExecutor, callback);
+    }
+
+    public Future<PersonalInformation> readPersonalInformationAsync(final long timeout, final SmartCardCancellationToken cancellationToken, Executor callbackExecutor, ResultCallback<PersonalInformation> callback) {
+        return this.submit(new Callable<PersonalInformation>() {
+            @Override
+            public PersonalInformation call() {
+                return ThaiSmartCard.this.getPersonalInformation(timeout, cancellationToken);
+            }
+        }, callbackExecutor, callback);
+    }
+
+    public Future<ChipCardADM> readChipCardADMAsync(Executor callbackExecutor, ResultCallback<ChipCardADM> callback) {
+        return this.submit(new Callable<ChipCardADM>() {
+            @Override
+            public ChipCardADM call() {
+                return ThaiSmartCard.this.getChipCardADM();
+            }
+        }, callbackExecutor, callback);
+    }
+
+    public Future<CardData> readCardAsync(final Set<Part> parts, final long timeout, final SmartCardCancellationToken cancellationToken, Executor callbackExecutor, ResultCallback<CardData> callback) {
+        return this.submit(new Callable<CardData>() {
+            @Override
+            public CardData call() {
+                return ThaiSmartCard.this.readCard(parts, timeout, cancellationToken);
+            }
+        }, callbackExecutor, callback);
+    }
+
+    public Future<Bitmap> readPictureAsync(Executor callbackExecutor, ResultCallback<Bitmap> callback) {
+        return this.readPictureAsync(0, null, callbackExecutor, callback);
+    }
+
+    public Future<Bitmap> readPictureAsync(final long timeout, final SmartCardCancellationToken cancellationToken, Executor callbackExecutor, ResultCallback<Bitmap> callback) {
+        return this.submit(new Callable<Bitmap>() {
+            @Override
+            public Bitmap call() {
+                return ThaiSmartCard.this.getPersonalPicture(timeout, cancellationToken);
+            }
+        }, callbackExecutor, callback);
+    }
+
+    public Future<byte[]> readPictureDataAsync(final long timeout, final SmartCardCancellationToken cancellationToken, Executor callbackExecutor, ResultCallback<byte[]> callback) {
+        return this.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return ThaiSmartCard.this.getPersonalPictureData(timeout, cancellationToken);
+            }
+        }, callbackExecutor, callback);
+    }
+
+    // JPEG read on the reader I/O thread then decoded by the decoder executor, the reader is free for the next read while decoding
+    // the future complete with the decoded bitmap, or null when the read or the decode failed
+    public Future<Bitmap> readPictureAsync(final SmartCardPictureDecoder decoder, final int sampleSize, long timeout, SmartCardCancellationToken cancellationToken, final Executor callbackExecutor, final ResultCallback<Bitmap> callback) {
+        final PictureFuture picture = new PictureFuture();
+
+        if (decoder == null) {
+            throw new NullPointerException("Invalid picture decoder");
+        }
+
+        final ResultCallback<Bitmap> decoded = new ResultCallback<Bitmap>() {
+            @Override
+            public void onSuccess(Bitmap result) {
+                picture.complete(result);
+                ThaiSmartCard.this.deliver(result, callbackExecutor, callback);
+            }
+
+            @Override
+            public void onError() {
+                picture.complete(null);
+                ThaiSmartCard.this.deliver(null, callbackExecutor, callback);
+            }
+        };
+
+        picture.read = this.readPictureDataAsync(timeout, cancellationToken, null, new ResultCallback<byte[]>() {
+            @Override
+            public void onSuccess(byte[] result) {
+                if (picture.isCancelled()) {
+                    return;
+                }
+
+                try {
+                    decoder.decodeAsync(result, sampleSize, null, decoded);
+                } catch (RejectedExecutionException e) {
+                    Log.w(TAG, "Picture decoder executor rejected the decode");
+                    decoded.onError();
+                }
+            }
+
+            @Override
+            public void onError() {
+                decoded.onError();
+            }
+        });
+
+        return picture;
+    }
+
+    public Future<Boolean> streamPictureAsync(final PictureListener listener, final long timeout, final SmartCardCancellationToken cancellationToken, Executor callbackExecutor, ResultCallback<Boolean> callback) {
+        return this.submit(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                // null so the callback onError is called on failure
+                return ThaiSmartCard.this.streamPersonalPicture(listener, timeout, cancellationToken) ? Boolean.TRUE : null;
+            }
+        }, callbackExecutor, callback);
+    }
+
     public boolean isInserted() {
+        SmartCardSession session;
+
+        if ((session = this.device.openSession()) == null) {
+            Log.w(TAG, "openSession() failed");
+            return false;
+        }
+
+        try {
+            return this.checkInserted();
+        } finally {
+            session.close();
+        }
+    }
+
+    // chip ID is forgotten once the card is seen removed, the next card may have the same ATR
+    private boolean checkInserted() {
         SmartCardMessage.DataBlock data;
-        return ((data = this.device.getATR()) != null && data.dataType == SmartCardMessage.DataType.ATR && data.status == 0 && data.error == 0);
+
+        if ((data = this.device.getATR()) != null && data.dataType == SmartCardMessage.DataType.ATR && data.status == 0 && data.error == 0) {
+            return true;
+        }
+
+        this.chipId = null;
+        this.chipIdAtr = null;
+
+        return false;
+    }
+
+    // a new power on parse the ATR again, the chip ID stay valid while the ATR is the same
+    private boolean isChipIdAtr(SmartCardAtr atr) {
+        SmartCardAtr chipIdAtr = this.chipIdAtr;
+
+        return atr != null && chipIdAtr != null && atr.getKey().equals(chipIdAtr.getKey());
+    }
+
+    // profile of the card when its chip ID is known then profile of the card type, learned values are read in this order
+    private SmartCardProfileCache.Profile[] getProfiles() {
+        SmartCardAtr atr = this.device.getParsedATR();
+        String chipId = this.chipId;
+
+        if (atr == null) {
+            return new SmartCardProfileCache.Profile[]{this.localProfile};
+        }
+
+        if (chipId != null && this.isChipIdAtr(atr)) {
+            return new SmartCardProfileCache.Profile[]{this.device.getProfileCache().get(atr, chipId), this.device.getProfileCache().get(atr)};
+        }
+
+        return new SmartCardProfileCache.Profile[]{this.device.getProfileCache().get(atr)};
     }
 
     private SmartCardMessage.DataBlock getCardData(byte[] requestMessage) {
+        return this.getCardData(requestMessage, -1);
+    }
+
+    // responseLength is the expected data length or -1, a known length is sent as Le so the card answer data+9000 at once
+    private SmartCardMessage.DataBlock getCardData(byte[] requestMessage, int responseLength) {
         SmartCardMessage.DataBlock data;
         byte[] dataRequestMessage = new byte[5];
+        byte[] message;
+        SmartCardProfileCache.Profile[] profiles;
+        Integer learned = null;
+        String key;
 
         if (requestMessage == null) {
             Log.d(TAG, "Invalid request message");
             return null;
         }
 
-        if ((data = this.device.sendAPDU(requestMessage)) == null) {
+        key = this.byteArrayToHexString(requestMessage);
+
+        profiles = this.getProfiles();
+
+        for (int i = 0; i < profiles.length && learned == null && responseLength < 0; i++) {
+            learned = profiles[i].responseLengths.get(key);
+        }
+
+        if (learned != null) {
+            responseLength = learned;
+        } else if (responseLength < 0 && requestMessage.length > 5 && this.device.isApduExchangeLevel()) {
+            // the reader do the GET RESPONSE itself, Le 00 take whatever the card return
+            responseLength = 256;
+        }
+
+        message = this.getRequestWithLength(requestMessage, responseLength);
+
+        if ((data = this.device.sendAPDU(message)) == null) {
             Log.w(TAG, "APDU header request fail");
             return null;
         }
@@ -62,11 +347,22 @@ public final class ThaiSmartCard {
             return null;
         }
 
+        if ((data.data.length > 2 || message != requestMessage) && data.data.length >= 2 && data.data[data.data.length - 2] == (byte)0x90 && data.data[data.data.length - 1] == (byte)0x00) {
+            return data;
+        }
+
         if (data.data.length != 2) {
             Log.w(TAG, "APDU header response invalid length: " + data.data.length);
             return null;
         }
 
+        // 6Cxx prove the command is outgoing and take Le, 61xx of a command with data is sent with Le only at APDU level
+        if (data.data[0] == (byte)0x6c || (data.data[0] == (byte)0x61 && requestMessage.length > 5 && this.device.isApduExchangeLevel())) {
+            for (SmartCardProfileCache.Profile profile : profiles) {
+                profile.responseLengths.put(key, ((data.data[1] & 0xff) == 0) ? 256 : (data.data[1] & 0xff));
+            }
+        }
+
         if (data.data[0] == (byte)0x61) {
             dataRequestMessage[0] = (byte)0x00;
             dataRequestMessage[1] = (byte)0xc0;
@@ -89,32 +385,60 @@ public final class ThaiSmartCard {
         return data;
     }
 
-    private boolean selectAppletChipData() {
-        byte[] message = new byte[]{(byte)0x00, (byte)0xa4, (byte)0x04, (byte)0x00};
-        SmartCardMessage.DataBlock data;
+    // case 1/2 command get Le in P3, case 3 command become case 4 only when the reader fetch the response itself
+    private byte[] getRequestWithLength(byte[] requestMessage, int responseLength) {
+        byte[] message;
+
+        if (responseLength < 0 || responseLength > 256) {
+            return requestMessage;
+        }
+
+        if (requestMessage.length == 4 || requestMessage.length == 5) {
+            message = Arrays.copyOf(requestMessage, 5);
+        } else if (requestMessage.length == 5 + (requestMessage[4] & 0xff) && this.device.isApduExchangeLevel()) {
+            message = Arrays.copyOf(requestMessage, requestMessage.length + 1);
+        } else {
+            return requestMessage;
+        }
 
-        return ((data = this.getCardData(message)) != null && data.status == 0 && data.error == 0);
+        message[message.length - 1] = (byte)responseLength;
+
+        return message;
     }
 
-    private boolean selectAppletStorageData() {
-        byte[] message = new byte[]{(byte)0x00, (byte)0xa4, (byte)0x04, (byte)0x00, (byte)0x08, (byte)0xa0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x54, (byte)0x48, (byte)0x00, (byte)0x01};
+    // SELECT is skipped when the applet is still selected since the last power on, reset or removal
+    private boolean selectApplet(byte[] message) {
         SmartCardMessage.DataBlock data;
 
-        return ((data = this.getCardData(message)) != null && data.status == 0 && data.error == 0);
+        if (Arrays.equals(message, this.device.getSelectedApplet())) {
+            return true;
+        }
+
+        if ((data = this.getCardData(message)) == null || data.status != 0 || data.error != 0) {
+            return false;
+        }
+
+        this.device.setSelectedApplet(message);
+
+        return true;
     }
 
-    private boolean selectAppletExtension() {
-        byte[] message = new byte[]{(byte)0x00, (byte)0xa4, (byte)0x04, (byte)0x00, (byte)0x08, (byte)0xa0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x84, (byte)0x06, (byte)0x00, (byte)0x02};
-        SmartCardMessage.DataBlock data;
+    private boolean selectAppletChipData() {
+        return this.selectApplet(SELECT_APPLET_CHIP_DATA);
+    }
+
+    private boolean selectAppletStorageData() {
+        return this.selectApplet(SELECT_APPLET_STORAGE_DATA);
+    }
 
-        return ((data = this.getCardData(message)) != null && data.status == 0 && data.error == 0);
+    private boolean selectAppletExtension() {
+        return this.selectApplet(SELECT_APPLET_EXTENSION);
     }
 
     private boolean selectAppletBio() {
         byte[] message = new byte[]{(byte)0x00, (byte)0xa4, (byte)0x04, (byte)0x00, (byte)0x08, (byte)0xa0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x84, (byte)0x06, (byte)0x00, (byte)0x00};
-        SmartCardMessage.DataBlock data;
 
-        return ((data = this.getCardData(message)) != null && data.status == 0 && data.error == 0);
+        return this.selectApplet(message);
     }
 
     private String byteArrayToHexString(byte[] input) {
@@ -158,6 +482,26 @@ public final class ThaiSmartCard {
     }
 
     public String getCardID() {
+        return this.getCardID(0, null);
+    }
+
+    // timeout in milliseconds for the whole operation, 0 = no deadline
+    public String getCardID(long timeout, SmartCardCancellationToken cancellationToken) {
+        SmartCardSession session;
+
+        if ((session = this.device.openSession(timeout, cancellationToken)) == null) {
+            Log.w(TAG, "openSession() failed");
+            return null;
+        }
+
+        try {
+            return this.readCardID();
+        } finally {
+            session.close();
+        }
+    }
+
+    private String readCardID() {
         SmartCardMessage.DataBlock data;
 
         if (!this.selectAppletChipData()) {
@@ -167,7 +511,7 @@ public final class ThaiSmartCard {
 
         byte[] requestMessage = new byte[]{(byte)0x80, (byte)0xca, (byte)0x9f, (byte)0x7f};
 
-        if ((data = this.getCardData(requestMessage)) == null) {
+        if ((data = this.getCardData(requestMessage, 45)) == null) {
             Log.d(TAG, "Get chip card information fail");
             return null;
         }
@@ -177,7 +521,10 @@ public final class ThaiSmartCard {
             return null;
         }
 
-        return this.byteArrayToHexString(data.data, 13, 8);
+        this.chipId = this.byteArrayToHexString(data.data, 13, 8);
+        this.chipIdAtr = this.device.getParsedATR();
+
+        return this.chipId;
     }
 
     public class PersonalInformation {
@@ -194,132 +541,259 @@ public final class ThaiSmartCard {
         public String ExpireDate;
     }
 
+    // field of PersonalInformation with its area and {offset, length} in the area, CardInfo is made of 4 parts
+    public enum Field {
+        CARD_INFO(0, 375, 2, 0, 4, 226, 11, 238, 8),
+        PERSONAL_ID(0, 4, 13),
+        NAME_TH(0, 17, 100),
+        NAME_EN(0, 117, 100),
+        BIRTH_DATE(0, 217, 8),
+        ISSUER(0, 246, 100),
+        ISSUER_CODE(0, 346, 13),
+        ISSUE_DATE(0, 359, 8),
+        EXPIRE_DATE(0, 367, 8),
+        ADDRESS(1, 0, 160),
+        PICTURE_TAG(1, 160, 14);
+
+        private final int area;
+        private final int[] ranges;
+
+        Field(int area, int... ranges) {
+            this.area = area;
+            this.ranges = ranges;
+        }
+    }
+
     public PersonalInformation getPersonalInformation() {
-        SmartCardMessage.DataBlock data;
-        PersonalInformation personalInformation;
+        return this.getPersonalInformation(0, null);
+    }
 
-        byte[] block1_1 = new byte[]{(byte)0x80, (byte)0xb0, (byte)0x00, (byte)0x00, (byte)0x02, (byte)0x00, (byte)0xff};
-        byte[] block1_2 = new byte[]{(byte)0x80, (byte)0xb0, (byte)0x00, (byte)0xff, (byte)0x02, (byte)0x00, (byte)0x7a};
-        byte[] block2 = new byte[]{(byte)0x80, (byte)0xb0, (byte)0x15, (byte)0x79, (byte)0x02, (byte)0x00, (byte)0xae};
+    // timeout in milliseconds for the whole operation, 0 = no deadline
+    public PersonalInformation getPersonalInformation(long timeout, SmartCardCancellationToken cancellationToken) {
+        return this.getPersonalInformation(EnumSet.allOf(Field.class), timeout, cancellationToken);
+    }
 
-        if (!this.selectAppletStorageData()) {
-            Log.d(TAG, "selectAppletStorageData fail");
-            return null;
-        }
+    // only the fields asked are read, the others are left null
+    public PersonalInformation getPersonalInformation(Set<Field> fields) {
+        return this.getPersonalInformation(fields, 0, null);
+    }
 
-        byte[] buffer = new byte[377];
+    public PersonalInformation getPersonalInformation(Set<Field> fields, long timeout, SmartCardCancellationToken cancellationToken) {
+        SmartCardSession session;
 
-        if ((data = this.getCardData(block1_1)) == null) {
-            Log.d(TAG, "Get personal information block 1-1 failed");
-            return null;
+        if (fields == null) {
+            throw new NullPointerException("Invalid fields");
         }
 
-        if (data.status != 0 || data.error != 0 || data.data.length != 0xff + 2) {
-            Log.w(TAG, String.format("Invalid personal information block 1-1 [%d][%d][%d][%s]", data.status, data.error, data.data.length, this.byteArrayToHexString(data.data)));
+        if ((session = this.device.openSession(timeout, cancellationToken)) == null) {
+            Log.w(TAG, "openSession() failed");
             return null;
         }
 
-        System.arraycopy(data.data, 0, buffer,0, 0xff);
+        try {
+            return this.readPersonalInformation(fields);
+        } finally {
+            session.close();
+        }
+    }
+
+    private PersonalInformation readPersonalInformation() {
+        return this.readPersonalInformation(EnumSet.allOf(Field.class));
+    }
+
+    private PersonalInformation readPersonalInformation(Set<Field> fields) {
+        SmartCardMessage.DataBlock data;
+        PersonalInformation personalInformation;
+        byte[][] buffers = new byte[INFO_AREA_OFFSETS.length][];
+        byte[] message;
+        int offset;
 
-        if ((data = this.getCardData(block1_2)) == null) {
-            Log.w(TAG, "Get personal information block 1-2 failed");
+        if (!this.selectAppletStorageData()) {
+            Log.d(TAG, "selectAppletStorageData fail");
             return null;
         }
 
-        if (data.status != 0 || data.error != 0 || data.data.length != 0x7a + 2) {
-            Log.w(TAG, String.format("Invalid personal information block 1-2 [%d][%d][%d][%s]", data.status, data.error, data.data.length, this.byteArrayToHexString(data.data)));
-            return null;
+        for (int area = 0; area < buffers.length; area++) {
+            buffers[area] = new byte[INFO_AREA_LENGTHS[area]];
         }
 
-        System.arraycopy(data.data, 0, buffer,0xff, 0x7a);
+        for (int[] range : planRead(fields)) {
+            offset = INFO_AREA_OFFSETS[range[0]] + range[1];
+            message = new byte[]{(byte)0x80, (byte)0xb0, (byte)(offset >> 8), (byte)offset, (byte)0x02, (byte)0x00, (byte)range[2]};
 
-        if ((data = this.getCardData(block2)) == null) {
-            Log.w(TAG, "Get personal information block 2 failed");
-            return null;
+            if ((data = this.getCardData(message, range[2])) == null) {
+                Log.w(TAG, String.format("Get personal information [%04x] failed", offset));
+                return null;
+            }
+
+            if (data.status != 0 || data.error != 0 || data.data.length != range[2] + 2) {
+                Log.w(TAG, String.format("Invalid personal information [%04x] [%d][%d][%d][%s]", offset, data.status, data.error, data.data.length, this.byteArrayToHexString(data.data)));
+                return null;
+            }
+
+            System.arraycopy(data.data, 0, buffers[range[0]], range[1], range[2]);
         }
 
-        if (data.status != 0 || data.error != 0 || data.data.length != 0xae + 2) {
-            Log.w(TAG, String.format("Invalid personal information block 2 [%d][%d][%d][%s]", data.status, data.error, data.data.length, this.byteArrayToHexString(data.data)));
+        // return object
+        personalInformation = new PersonalInformation();
+
+        try {
+            for (Field field : fields) {
+                if (!this.decodeField(personalInformation, field, buffers)) {
+                    return null;
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            Log.w(TAG, "Cannot decode TIS620 string");
             return null;
         }
 
-        // NameTH split
-        byte[] nameTHBuffer;
-        int length;
+        return personalInformation;
+    }
 
-        nameTHBuffer = Arrays.copyOfRange(buffer, 17, 117);
-        for (length = 100; length > 0 && nameTHBuffer[length - 1] == 0x20; length--);
+    private boolean decodeField(PersonalInformation personalInformation, Field field, byte[][] buffers) throws UnsupportedEncodingException {
+        byte[] buffer = buffers[field.area];
+        byte[] value;
+        int index;
 
-        for (int i = 0; i < length; i++) {
-            if (nameTHBuffer[i] == 0x23) {
-                nameTHBuffer[i] = 0x20;
-            }
+        switch (field) {
+            case CARD_INFO:
+                personalInformation.CardInfo = String.format("%s-%s-%s-%s", this.getFieldString(field, buffer, 0), this.getFieldString(field, buffer, 1), this.getFieldString(field, buffer, 2), this.getFieldString(field, buffer, 3));
+                return true;
+
+            case NAME_TH:
+                personalInformation.NameTH = new String(getName(field, buffer), "TIS620");
+                return true;
+
+            case NAME_EN:
+                personalInformation.NameEN = new String(getName(field, buffer), "TIS620");
+                return true;
+
+            case ADDRESS:
+                personalInformation.Address = new String(getName(field, buffer), "TIS620");
+                return true;
+
+            case ISSUER:
+                // issuer split
+                for (index = field.ranges[0]; index < field.ranges[0] + field.ranges[1]; index++) {
+                    if (buffer[index] == 0x20) {
+                        break;
+                    }
+                }
+                if (index >= field.ranges[0] + field.ranges[1]) {
+                    Log.w(TAG, "Invalid issuer data split");
+                    return false;
+                }
+
+                value = Arrays.copyOfRange(buffer, field.ranges[0], index);
+                personalInformation.Issuer = new String(value, "TIS620");
+                return true;
+
+            case PERSONAL_ID:
+                personalInformation.PersonalID = this.getFieldString(field, buffer, 0);
+                return true;
+
+            case BIRTH_DATE:
+                personalInformation.BirthDate = this.getFieldString(field, buffer, 0);
+                return true;
+
+            case ISSUER_CODE:
+                personalInformation.IssuerCode = this.getFieldString(field, buffer, 0);
+                return true;
+
+            case ISSUE_DATE:
+                personalInformation.IssueDate = this.getFieldString(field, buffer, 0);
+                return true;
+
+            case EXPIRE_DATE:
+                personalInformation.ExpireDate = this.getFieldString(field, buffer, 0);
+                return true;
+
+            default:
+                personalInformation.PictureTag = this.getFieldString(field, buffer, 0);
+                return true;
         }
-        nameTHBuffer = Arrays.copyOf(nameTHBuffer, length);
+    }
+
+    private String getFieldString(Field field, byte[] buffer, int part) throws UnsupportedEncodingException {
+        return new String(Arrays.copyOfRange(buffer, field.ranges[part * 2], field.ranges[part * 2] + field.ranges[part * 2 + 1]), "TIS620");
+    }
 
-        // NameTH split
-        byte[] nameENBuffer;
+    // name and address are padded with space, '#' separate the name parts
+    private static byte[] getName(Field field, byte[] buffer) {
+        byte[] name = Arrays.copyOfRange(buffer, field.ranges[0], field.ranges[0] + field.ranges[1]);
+        int length;
 
-        nameENBuffer = Arrays.copyOfRange(buffer, 117, 217);
-        for (length = 100; length > 0 && nameENBuffer[length - 1] == 0x20; length--);
+        for (length = name.length; length > 0 && name[length - 1] == 0x20; length--);
 
         for (int i = 0; i < length; i++) {
-            if (nameENBuffer[i] == 0x23) {
-                nameENBuffer[i] = 0x20;
+            if (name[i] == 0x23) {
+                name[i] = 0x20;
             }
         }
-        nameENBuffer = Arrays.copyOf(nameENBuffer, length);
 
-        // issuer split
-        byte[] issuerBuffer;
-        int index;
+        return Arrays.copyOf(name, length);
+    }
 
-        for (index = 246; index < 346; index++) {
-            if (buffer[index] == 0x20) {
-                break;
+    // {area, offset, length} READ BINARY ranges of at most 255 bytes covering the fields
+    // two ranges of an area are joined when it save a READ BINARY, the bytes between them are read for nothing
+    static ArrayList<int[]> planRead(Set<Field> fields) {
+        ArrayList<int[]> plan = new ArrayList<int[]>();
+        ArrayList<int[]> ranges = new ArrayList<int[]>();
+        int[] merged;
+
+        for (int area = 0; area < INFO_AREA_OFFSETS.length; area++) {
+            ranges.clear();
+
+            for (Field field : fields) {
+                if (field.area != area) {
+                    continue;
+                }
+
+                for (int i = 0; i < field.ranges.length; i += 2) {
+                    ranges.add(new int[]{field.ranges[i], field.ranges[i] + field.ranges[i + 1]});
+                }
             }
-        }
-        if (index >= 346) {
-            Log.w(TAG, "Invalid issuer data split");
-            return null;
-        }
 
-        issuerBuffer = Arrays.copyOfRange(buffer, 246, index);
+            Collections.sort(ranges, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] left, int[] right) {
+                    return left[0] - right[0];
+                }
+            });
 
-        // Address split
-        byte[] addressBuffer;
+            merged = null;
 
-        addressBuffer = Arrays.copyOfRange(data.data, 0, 160);
-        for (length = 160; length > 0 && addressBuffer[length - 1] == 0x20; length--);
+            for (int[] range : ranges) {
+                if (merged != null && (range[0] <= merged[1]
+                        || getReadCount(range[1] - merged[0]) < getReadCount(merged[1] - merged[0]) + getReadCount(range[1] - range[0]))) {
+                    merged[1] = Math.max(merged[1], range[1]);
+                    continue;
+                }
 
-        for (int i = 0; i < length; i++) {
-            if (addressBuffer[i] == 0x23) {
-                addressBuffer[i] = 0x20;
+                if (merged != null) {
+                    addRead(plan, area, merged);
+                }
+
+                merged = new int[]{range[0], range[1]};
+            }
+
+            if (merged != null) {
+                addRead(plan, area, merged);
             }
         }
-        addressBuffer = Arrays.copyOf(addressBuffer, length);
 
-        // return object
-        personalInformation = new PersonalInformation();
+        return plan;
+    }
 
-        try {
-            personalInformation.CardInfo = String.format("%s-%s-%s-%s", new String(Arrays.copyOfRange(buffer, 375, 377), "TIS620"), new String(Arrays.copyOfRange(buffer, 0, 4), "TIS620"), new String(Arrays.copyOfRange(buffer, 226, 237), "TIS620"), new String(Arrays.copyOfRange(buffer, 238, 246), "TIS620"));
-            personalInformation.PersonalID = new String(Arrays.copyOfRange(buffer, 4, 17), "TIS620");
-            personalInformation.NameTH = new String(nameTHBuffer, "TIS620");
-            personalInformation.NameEN = new String(nameENBuffer, "TIS620");
-            personalInformation.BirthDate = new String(Arrays.copyOfRange(buffer, 217, 225), "TIS620");
-            personalInformation.Issuer = new String(issuerBuffer, "TIS620");
-            personalInformation.IssuerCode = new String(Arrays.copyOfRange(buffer, 346, 359), "TIS620");
-            personalInformation.IssueDate = new String(Arrays.copyOfRange(buffer, 359, 367), "TIS620");
-            personalInformation.ExpireDate = new String(Arrays.copyOfRange(buffer, 367, 375), "TIS620");
-            personalInformation.Address = new String(addressBuffer, "TIS620");
-            personalInformation.PictureTag = new String(Arrays.copyOfRange(data.data, 160, 174), "TIS620");
-        } catch (UnsupportedEncodingException e) {
-            Log.w(TAG, "Cannot decode TIS620 string");
-            return null;
-        }
+    private static int getReadCount(int length) {
+        return (length + 0xff - 1) / 0xff;
+    }
 
-        return personalInformation;
+    private static void addRead(ArrayList<int[]> plan, int area, int[] range) {
+        for (int offset = range[0]; offset < range[1]; offset += 0xff) {
+            plan.add(new int[]{area, offset, Math.min(0xff, range[1] - offset)});
+        }
     }
 
     public class ChipCardADM {
@@ -330,6 +804,21 @@ public final class ThaiSmartCard {
     }
 
     public ChipCardADM getChipCardADM() {
+        SmartCardSession session;
+
+        if ((session = this.device.openSession()) == null) {
+            Log.w(TAG, "openSession() failed");
+            return null;
+        }
+
+        try {
+            return this.readChipCardADM();
+        } finally {
+            session.close();
+        }
+    }
+
+    private ChipCardADM readChipCardADM() {
         SmartCardMessage.DataBlock data;
         ChipCardADM chipCardADM;
 
@@ -340,7 +829,7 @@ public final class ThaiSmartCard {
             return null;
         }
 
-        if ((data = this.getCardData(message)) == null) {
+        if ((data = this.getCardData(message, 0x17)) == null) {
             Log.d(TAG, "Get card information block 1-1 failed");
             return null;
         }
@@ -360,58 +849,649 @@ public final class ThaiSmartCard {
         return chipCardADM;
     }
 
-    public Bitmap getPersonalPicture() {
-        SmartCardMessage.DataBlock data;
-        byte[] message = new byte[]{(byte)0x80, (byte)0xb0, (byte)0x00, (byte)0x00, (byte)0x02, (byte)0x00, (byte)0x00};
-        byte[] pictureBuffer;
-
-        if (!this.selectAppletStorageData()) {
-            Log.d(TAG, "selectAppletStorageData fail");
-            return null;
-        }
+    // part of the card read by readCard()
+    public enum Part {
+        CARD_ID,
+        CHIP_CARD_ADM,
+        PERSONAL_INFORMATION,
+        PICTURE
+    }
 
-        int offset = 0x017b, blockNumber = 1, blockLength, index = 0;
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    // field of a part not read or failed is null, time in milliseconds
+    public class CardData {
+        public String CardID;
+        public ChipCardADM ChipCardADM;
+        public PersonalInformation PersonalInformation;
+        // JPEG data without the space padding
+        public byte[] PictureData;
+        public Bitmap Picture;
+        public final EnumMap<Part, Long> Timings = new EnumMap<Part, Long>(Part.class);
+        public final EnumSet<Part> Failed = EnumSet.noneOf(Part.class);
+        public long TotalTime;
+    }
 
-        int PERSONAL_PIC_LENGTH = 5118;
+    public CardData readAll() {
+        return this.readCard(EnumSet.allOf(Part.class), 0, null);
+    }
 
-        while (index < PERSONAL_PIC_LENGTH) {
-            blockLength = ((PERSONAL_PIC_LENGTH - index) > 0xff) ? 0xff:(PERSONAL_PIC_LENGTH - index);
+    public CardData readCard(Set<Part> parts) {
+        return this.readCard(parts, 0, null);
+    }
 
-            message[2] = (byte)((offset >> 8) & 0xff);
-            message[3] = (byte)(offset & 0xff);
-            message[6] = (byte)blockLength;
+    // every part is read in one session, parts of the same applet are read together starting from the applet already selected
+    // timeout in milliseconds for the whole operation, 0 = no deadline, null only when the session can not be opened
+    public CardData readCard(Set<Part> parts, long timeout, SmartCardCancellationToken cancellationToken) {
+        SmartCardSession session;
+        CardData cardData = new CardData();
+        long start = System.nanoTime(), partStart;
+        boolean aborted = false;
 
-            if ((data = this.getCardData(message)) == null) {
-                Log.w(TAG, "Get personal picture block [" + blockNumber + "] failed");
-                return null;
-            }
+        if (parts == null) {
+            throw new NullPointerException("Invalid parts");
+        }
 
-            if (data.status != 0 || data.error != 0) {
-                Log.w(TAG, String.format("Invalid personal picture response [%d][%d][%d][%d][%s]", blockNumber, data.status, data.error, data.data.length, this.byteArrayToHexString(data.data)));
-                return null;
-            }
+        if ((session = this.device.openSession(timeout, cancellationToken)) == null) {
+            Log.w(TAG, "openSession() failed");
+            return null;
+        }
 
-            if (data.data.length != blockLength + 2) {
-                Log.w(TAG, "Get personal picture block [" + blockNumber + "] return invalid length [" + data.data.length + "/" + blockLength + "]");
-                return null;
+        try {
+            for (Part part : this.getReadOrder(parts)) {
+                // transfer error or deadline, the parts left fail without touching the reader
+                if (aborted || this.device.isRecoveryRequired() || this.device.getTransferTimeout() < 0) {
+                    aborted = true;
+                    cardData.Failed.add(part);
+                    continue;
+                }
+
+                partStart = System.nanoTime();
+
+                if (!this.readPart(cardData, part)) {
+                    Log.w(TAG, "Read " + part + " failed");
+                    cardData.Failed.add(part);
+                    continue;
+                }
+
+                cardData.Timings.put(part, (System.nanoTime() - partStart) / 1000000L);
             }
+        } finally {
+            session.close();
+        }
 
-            buffer.write(data.data, 0, blockLength);
-
-            offset += blockLength;
-            index += blockLength;
-            blockNumber++;
+        // decoded once the reader is free for another read
+        if (cardData.PictureData != null) {
+            cardData.Picture = BitmapFactory.decodeByteArray(cardData.PictureData, 0, cardData.PictureData.length);
         }
 
-        pictureBuffer = buffer.toByteArray();
+        cardData.TotalTime = (System.nanoTime() - start) / 1000000L;
 
-        while (index >= 0 && pictureBuffer[index - 1] == 0x20) index--;
+        return cardData;
+    }
 
-        return BitmapFactory.decodeByteArray(pictureBuffer, 0, index);
+    private static byte[] getPartApplet(Part part) {
+        switch (part) {
+            case CARD_ID:
+                return SELECT_APPLET_CHIP_DATA;
+            case CHIP_CARD_ADM:
+                return SELECT_APPLET_EXTENSION;
+            default:
+                return SELECT_APPLET_STORAGE_DATA;
+        }
     }
 
-    private abstract class SimpleRequest {
+    private ArrayList<Part> getReadOrder(Set<Part> parts) {
+        ArrayList<Part> order = new ArrayList<Part>();
+        EnumSet<Part> sorted = EnumSet.noneOf(Part.class);
+        byte[] selected = this.device.getSelectedApplet();
+
+        // enum order keep parts of the same applet next to each other
+        sorted.addAll(parts);
+
+        for (Part part : sorted) {
+            if (Arrays.equals(getPartApplet(part), selected)) {
+                order.add(part);
+            }
+        }
+
+        for (Part part : sorted) {
+            if (!order.contains(part)) {
+                order.add(part);
+            }
+        }
+
+        return order;
+    }
+
+    private boolean readPart(CardData cardData, Part part) {
+        switch (part) {
+            case CARD_ID:
+                return (cardData.CardID = this.readCardID()) != null;
+            case CHIP_CARD_ADM:
+                return (cardData.ChipCardADM = this.readChipCardADM()) != null;
+            case PERSONAL_INFORMATION:
+                return (cardData.PersonalInformation = this.readPersonalInformation()) != null;
+            default:
+                return (cardData.PictureData = this.readPersonalPictureData()) != null;
+        }
+    }
+
+    // how the picture is read from the storage applet, AUTO try the fewest exchanges first
+    public enum PictureReadMode {
+        AUTO,
+        // one READ BINARY, whole response fetched by one GET RESPONSE with extended Le
+        EXTENDED,
+        // one READ BINARY, response fetched by 256 bytes GET RESPONSE while the card return 61xx
+        CHAINED,
+        // READ BINARY of 255 bytes each
+        SHORT
+    }
+
+    public void setPictureReadMode(PictureReadMode mode) {
+        if (mode == null) {
+            throw new NullPointerException("Invalid picture read mode");
+        }
+
+        this.pictureReadMode = mode;
+
+        for (SmartCardProfileCache.Profile profile : this.getProfiles()) {
+            profile.pictureReadMode = null;
+        }
+    }
+
+    public PictureReadMode getPictureReadMode() {
+        return this.pictureReadMode;
+    }
+
+    public Bitmap getPersonalPicture() {
+        return this.getPersonalPicture(0, null);
+    }
+
+    // timeout in milliseconds for the whole operation, 0 = no deadline
+    public Bitmap getPersonalPicture(long timeout, SmartCardCancellationToken cancellationToken) {
+        SmartCardSession session;
+
+        if ((session = this.device.openSession(timeout, cancellationToken)) == null) {
+            Log.w(TAG, "openSession() failed");
+            return null;
+        }
+
+        try {
+            return this.readPersonalPicture();
+        } finally {
+            session.close();
+        }
+    }
+
+    // JPEG data without the space padding, not decoded
+    public byte[] getPersonalPictureData() {
+        return this.getPersonalPictureData(0, null);
+    }
+
+    public byte[] getPersonalPictureData(long timeout, SmartCardCancellationToken cancellationToken) {
+        SmartCardSession session;
+
+        if ((session = this.device.openSession(timeout, cancellationToken)) == null) {
+            Log.w(TAG, "openSession() failed");
+            return null;
+        }
+
+        try {
+            return this.readPersonalPictureData();
+        } finally {
+            session.close();
+        }
+    }
+
+    // chunks are given to the listener on the reading thread while the next ones are read
+    public boolean streamPersonalPicture(PictureListener listener) {
+        return this.streamPersonalPicture(listener, 0, null);
+    }
+
+    public boolean streamPersonalPicture(PictureListener listener, long timeout, SmartCardCancellationToken cancellationToken) {
+        SmartCardSession session;
+
+        if (listener == null) {
+            throw new NullPointerException("Invalid picture listener");
+        }
+
+        if ((session = this.device.openSession(timeout, cancellationToken)) == null) {
+            Log.w(TAG, "openSession() failed");
+            return false;
+        }
+
+        try {
+            return this.streamPictureData(listener);
+        } finally {
+            session.close();
+        }
+    }
+
+    private Bitmap readPersonalPicture() {
+        byte[] picture;
+
+        if ((picture = this.readPersonalPictureData()) == null) {
+            return null;
+        }
+
+        return BitmapFactory.decodeByteArray(picture, 0, picture.length);
+    }
+
+    private byte[] readPersonalPictureData() {
+        PictureSink sink = new PictureSink(new ByteArrayOutputStream(PERSONAL_PIC_LENGTH), null);
+        byte[] picture;
+        int length;
+
+        if (!this.selectAppletStorageData()) {
+            Log.d(TAG, "selectAppletStorageData fail");
+            return null;
+        }
+
+        if (!this.readPictureData(sink)) {
+            return null;
+        }
+
+        picture = sink.buffer.toByteArray();
+
+        length = picture.length;
+        while (length > 0 && picture[length - 1] == 0x20) length--;
+
+        return Arrays.copyOf(picture, length);
+    }
+
+    private boolean streamPictureData(PictureListener listener) {
+        PictureSink sink = new PictureSink(null, listener);
+
+        if (!this.selectAppletStorageData()) {
+            Log.d(TAG, "selectAppletStorageData fail");
+            return false;
+        }
+
+        return this.readPictureData(sink);
+    }
+
+    // AUTO fall back to the next mode only when the card or reader rejected the command, not on transfer error
+    private boolean readPictureData(PictureSink sink) {
+        PictureReadMode mode = this.pictureReadMode;
+        PictureReadMode[] modes = PictureReadMode.values();
+        SmartCardProfileCache.Profile[] profiles;
+        PictureCheckpoint checkpoint = this.pictureCheckpoint;
+        boolean extended = this.device.getExchangeLevel() == SmartCardDevice.ExchangeLevel.EXTENDED_APDU;
+        String chipId;
+
+        // a 7 bytes GET RESPONSE is not a valid T=0 TPDU, only a reader at extended APDU level carry it
+        if (mode == PictureReadMode.EXTENDED && !extended) {
+            Log.w(TAG, "Extended picture read need an extended APDU reader, read chained");
+            mode = PictureReadMode.CHAINED;
+        }
+
+        if (mode != PictureReadMode.AUTO) {
+            return this.readPictureData(mode, sink);
+        }
+
+        // only the short read resume, the learned mode is kept for the next cards
+        if (this.pictureResume && checkpoint != null && (chipId = this.getCurrentChipId()) != null && chipId.equals(checkpoint.chipId)) {
+            return this.readPictureData(PictureReadMode.SHORT, sink);
+        }
+
+        profiles = this.getProfiles();
+        mode = null;
+
+        for (int i = 0; i < profiles.length && mode == null; i++) {
+            mode = profiles[i].pictureReadMode;
+        }
+
+        // mode learned on an extended APDU reader is not usable on this one
+        if ((mode == null || mode == PictureReadMode.EXTENDED) && !extended) {
+            mode = PictureReadMode.CHAINED;
+        }
+
+        for (int i = (mode != null) ? mode.ordinal() : PictureReadMode.EXTENDED.ordinal(); i < modes.length; i++) {
+            if (this.readPictureData(modes[i], sink)) {
+                for (SmartCardProfileCache.Profile profile : profiles) {
+                    profile.pictureReadMode = modes[i];
+                }
+                return true;
+            }
+
+            if (sink.aborted || this.device.isRecoveryRequired() || this.device.getTransferTimeout() < 0) {
+                return false;
+            }
+
+            Log.d(TAG, "Picture read mode " + modes[i] + " not supported");
+        }
+
+        return false;
+    }
+
+    private boolean readPictureData(PictureReadMode mode, PictureSink sink) {
+        sink.reset();
+
+        switch (mode) {
+            case EXTENDED:
+                return this.readBinaryChained(PERSONAL_PIC_OFFSET, PERSONAL_PIC_LENGTH, true, sink);
+            case CHAINED:
+                return this.readBinaryChained(PERSONAL_PIC_OFFSET, PERSONAL_PIC_LENGTH, false, sink);
+            default:
+                return this.readBinaryShort(PERSONAL_PIC_OFFSET, PERSONAL_PIC_LENGTH, sink);
+        }
+    }
+
+    // one READ BINARY for the whole length, the card answer 61xx and the data is fetched by GET RESPONSE
+    private boolean readBinaryChained(int offset, int length, boolean extended, PictureSink sink) {
+        SmartCardMessage.DataBlock data;
+        byte[] message = new byte[]{(byte)0x80, (byte)0xb0, (byte)(offset >> 8), (byte)offset, (byte)0x02, (byte)(length >> 8), (byte)length};
+        int sw, remain;
+
+        if ((data = this.device.sendAPDU(message)) == null) {
+            Log.w(TAG, "READ BINARY request fail");
+            return false;
+        }
+
+        while (true) {
+            if (data.status != 0 || data.error != 0 || data.data.length < 2) {
+                Log.w(TAG, "READ BINARY response abnormal [" + data.status + ":" + data.error + "]");
+                return false;
+            }
+
+            if (data.data.length - 2 > length - sink.size) {
+                Log.w(TAG, "READ BINARY return invalid length [" + (sink.size + data.data.length - 2) + "/" + length + "]");
+                return false;
+            }
+
+            if (!sink.write(data.data, 0, data.data.length - 2)) {
+                Log.d(TAG, "READ BINARY aborted by listener");
+                return false;
+            }
+
+            sw = ((data.data[data.data.length - 2] & 0xff) << 8) | (data.data[data.data.length - 1] & 0xff);
+
+            if (sw == 0x9000) {
+                break;
+            }
+
+            remain = length - sink.size;
+
+            if ((sw & 0xff00) != 0x6100 || remain <= 0) {
+                Log.w(TAG, String.format("READ BINARY response invalid code: %04x", sw));
+                return false;
+            }
+
+            if (extended) {
+                message = new byte[]{(byte)0x00, (byte)0xc0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)(remain >> 8), (byte)remain};
+            } else {
+                message = new byte[]{(byte)0x00, (byte)0xc0, (byte)0x00, (byte)0x00, (byte)sw};
+            }
+
+            if ((data = this.device.sendAPDU(message)) == null) {
+                Log.w(TAG, "GET RESPONSE request fail");
+                return false;
+            }
+        }
+
+        if (sink.size != length) {
+            Log.w(TAG, "READ BINARY return invalid length [" + sink.size + "/" + length + "]");
+            return false;
+        }
+
+        return sink.finish();
+    }
+
+    private boolean readBinaryShort(int offset, int length, PictureSink sink) {
+        SmartCardMessage.DataBlock data;
+        byte[] message = new byte[]{(byte)0x80, (byte)0xb0, (byte)0x00, (byte)0x00, (byte)0x02, (byte)0x00, (byte)0x00};
+        int blockNumber = 1, blockLength, index = 0;
+        String chipId = this.getCurrentChipId();
+        PictureCheckpoint checkpoint = this.pictureCheckpoint;
+        byte[] received = null;
+
+        if (this.pictureResume && chipId != null) {
+            received = new byte[length];
+
+            // blocks read before a failure of the same card are not read again
+            if (checkpoint != null && chipId.equals(checkpoint.chipId) && checkpoint.data.length < length) {
+                Log.d(TAG, "Resume personal picture at [" + checkpoint.data.length + "]");
+
+                if (!sink.write(checkpoint.data, 0, checkpoint.data.length)) {
+                    return false;
+                }
+
+                System.arraycopy(checkpoint.data, 0, received, 0, checkpoint.data.length);
+                index = checkpoint.data.length;
+                offset += index;
+                blockNumber += index / 0xff;
+            }
+        }
+
+        while (index < length) {
+            blockLength = ((length - index) > 0xff) ? 0xff:(length - index);
+
+            message[2] = (byte)((offset >> 8) & 0xff);
+            message[3] = (byte)(offset & 0xff);
+            message[6] = (byte)blockLength;
+
+            if ((data = this.readPictureBlock(message, blockLength, blockNumber)) == null) {
+                if (received != null && index > 0) {
+                    this.pictureCheckpoint = new PictureCheckpoint(chipId, Arrays.copyOf(received, index));
+                }
+                return false;
+            }
+
+            if (!sink.write(data.data, 0, blockLength)) {
+                Log.d(TAG, "Get personal picture aborted by listener");
+                return false;
+            }
+
+            if (received != null) {
+                System.arraycopy(data.data, 0, received, index, blockLength);
+            }
+
+            offset += blockLength;
+            index += blockLength;
+            blockNumber++;
+        }
+
+        this.pictureCheckpoint = null;
+
+        return sink.finish();
+    }
+
+    // a failing block is read again after a short wait instead of the whole picture
+    private SmartCardMessage.DataBlock readPictureBlock(byte[] message, int blockLength, int blockNumber) {
+        SmartCardMessage.DataBlock data;
+
+        for (int retry = 0; ; retry++) {
+            if ((data = this.getCardData(message, blockLength)) == null) {
+                Log.w(TAG, "Get personal picture block [" + blockNumber + "] failed");
+            } else if (data.status != 0 || data.error != 0) {
+                Log.w(TAG, String.format("Invalid personal picture response [%d][%d][%d][%d][%s]", blockNumber, data.status, data.error, data.data.length, this.byteArrayToHexString(data.data)));
+            } else if (data.data.length != blockLength + 2) {
+                Log.w(TAG, "Get personal picture block [" + blockNumber + "] return invalid length [" + data.data.length + "/" + blockLength + "]");
+            } else {
+                return data;
+            }
+
+            if (retry >= PICTURE_BLOCK_RETRY || !this.prepareBlockRetry(PICTURE_BLOCK_RETRY_DELAY << retry)) {
+                return null;
+            }
+
+            Log.d(TAG, "Retry personal picture block [" + blockNumber + "]");
+        }
+    }
+
+    // wait within the deadline then bring the reader and the storage applet back when the exchange failed
+    private boolean prepareBlockRetry(int delay) {
+        int timeout;
+
+        if ((timeout = this.device.getTransferTimeout()) < 0 || (timeout > 0 && timeout <= delay)) {
+            return false;
+        }
+
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+
+        if (this.device.isRecoveryRequired() && !this.device.recover()) {
+            Log.w(TAG, "recover() failed");
+            return false;
+        }
+
+        return this.selectAppletStorageData();
+    }
+
+    // chip ID of the card in the reader, null when it was not read since the card was powered
+    private String getCurrentChipId() {
+        SmartCardAtr atr = this.device.getParsedATR();
+
+        return this.isChipIdAtr(atr) ? this.chipId : null;
+    }
+
+    // resume the picture of the same card from the last block read before a failure, the card must be identified by getCardID() first
+    public void setPictureResume(boolean resume) {
+        this.pictureResume = resume;
+
+        if (!resume) {
+            this.pictureCheckpoint = null;
+        }
+    }
+
+    public boolean isPictureResume() {
+        return this.pictureResume;
+    }
+
+    // picture blocks read from a card before a failure
+    private static final class PictureCheckpoint {
+        final String chipId;
+        final byte[] data;
+
+        PictureCheckpoint(String chipId, byte[] data) {
+            this.chipId = chipId;
+            this.data = data;
+        }
+    }
+
+    // bitmap of readPictureAsync() with a decoder, set once the JPEG is read and decoded
+    private static final class PictureFuture extends FutureTask<Bitmap> {
+        volatile Future<byte[]> read = null;
+
+        PictureFuture() {
+            super(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    return null;
+                }
+            });
+        }
+
+        void complete(Bitmap bitmap) {
+            this.set(bitmap);
+        }
+
+        // a read not started yet is dropped, the decode is skipped
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            Future<byte[]> read = this.read;
+
+            if (read != null) {
+                read.cancel(mayInterruptIfRunning);
+            }
+
+            return super.cancel(mayInterruptIfRunning);
+        }
+    }
+
+    // picture bytes as they are received from the card, the space padding at the end is not given
+    public interface PictureListener {
+        // position of the data in the JPEG, total is the picture area length and an upper bound of the JPEG length
+        // return false to abort the read
+        boolean onPictureData(byte[] data, int offset, int length, int position, int total);
+        // whole JPEG given, length is its real length
+        void onPictureComplete(int length);
+    }
+
+    // collect the picture of one read attempt, a fallback read start again at 0 and only the bytes not yet given reach the listener
+    private static final class PictureSink {
+        final ByteArrayOutputStream buffer;
+        final PictureListener listener;
+        // bytes received by the current attempt
+        int size = 0;
+        // bytes given to the listener, spaces after it are kept until data follow them
+        int delivered = 0;
+        boolean aborted = false;
+
+        PictureSink(ByteArrayOutputStream buffer, PictureListener listener) {
+            this.buffer = buffer;
+            this.listener = listener;
+        }
+
+        void reset() {
+            this.size = 0;
+
+            if (this.buffer != null) {
+                this.buffer.reset();
+            }
+        }
+
+        boolean write(byte[] data, int offset, int length) {
+            int start = this.size;
+            int end;
+
+            if (this.buffer != null) {
+                this.buffer.write(data, offset, length);
+            }
+
+            this.size += length;
+
+            if (this.listener == null) {
+                return true;
+            }
+
+            for (end = length; end > 0 && data[offset + end - 1] == 0x20; end--);
+
+            // only spaces, they may be the padding
+            if (end == 0 || start + end <= this.delivered) {
+                return true;
+            }
+
+            // spaces held back from the previous data are part of the JPEG
+            if (this.delivered < start) {
+                byte[] spaces = new byte[start - this.delivered];
+
+                Arrays.fill(spaces, (byte)0x20);
+
+                if (!this.deliver(spaces, 0, spaces.length)) {
+                    return false;
+                }
+            }
+
+            return this.deliver(data, offset + this.delivered - start, start + end - this.delivered);
+        }
+
+        private boolean deliver(byte[] data, int offset, int length) {
+            int position = this.delivered;
+
+            this.delivered += length;
+
+            if (!this.listener.onPictureData(data, offset, length, position, PERSONAL_PIC_LENGTH)) {
+                this.aborted = true;
+                return false;
+            }
+
+            return true;
+        }
+
+        boolean finish() {
+            if (this.listener != null) {
+                this.listener.onPictureComplete(this.delivered);
+            }
+
+            return true;
+        }
+    }
+
+    private abstract class SimpleRequest {
         String url;
         String response = null;
 
@@ -429,10 +1509,7 @@ public final class ThaiSmartCard {
         void onError();
     }
 
-    // true = done, false = error or exception
-    public boolean verifyPinCode(String pin, final VerifyPinCallback verifyPinCallback) {
-        SmartCardMessage.DataBlock data;
-        byte[] message;
+    static byte[] getPinChallengeAnswer(String pin, byte[] challenge) {
         byte[] expandPin = new byte[] {
                 (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff,
                 (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff,
@@ -454,37 +1531,9 @@ public final class ThaiSmartCard {
         IvParameterSpec ivParam;
         Cipher cipher;
 
-        if (pin == null || pin.length() != 4) {
-            Log.w(TAG, "Invalid pin code");
-            return false;
-        }
-
-        if (verifyPinCallback == null) {
-            Log.w(TAG, "Invalid callback");
-            return false;
-        }
-
-        if (!this.selectAppletExtension()) {
-            Log.d(TAG, "selectAppletExtension fail");
-            return false;
-        }
-
-        // pin challenge
-        message = new byte[]{(byte)0x80, (byte)0xb4, (byte)0x00, (byte)0x00};
-
-        if ((data = this.getCardData(message)) == null) {
-            Log.w(TAG, "Get pin challenge failed");
-            return false;
-        }
-
-        if (data.status != 0 || data.error != 0) {
-            Log.w(TAG, String.format("Invalid pin challenge response [%d][%d][%d][%s]", data.status, data.error, data.data.length, this.byteArrayToHexString(data.data)));
-            return false;
-        }
-
-        if (data.data.length != 0x20 + 2) {
-            Log.w(TAG, String.format("Invalid pin challenge length [%d]", data.data.length));
-            return false;
+        if (pin == null || pin.length() != 4 || challenge == null || challenge.length < 0x20) {
+            Log.w(TAG, "Invalid pin code or challenge");
+            return null;
         }
 
         for (int i = 0; i < 4; i++) {
@@ -497,14 +1546,14 @@ public final class ThaiSmartCard {
             sha1Hash = digest.digest(expandPin);
         } catch (NoSuchAlgorithmException e) {
             Log.w(TAG, "SHA-1 algorithm not support");
-            return false;
+            return null;
         }
 
         for (int i = 0, j = 0; i < 20; i += 4, j += 7) {
             System.arraycopy(sha1Hash, i, deriveKey, j, 4);
         }
 
-        System.arraycopy(data.data,0, inputData, 0, 0x20);
+        System.arraycopy(challenge,0, inputData, 0, 0x20);
 
         for (int i = 0; i <= 16; i += 8) {
             Arrays.fill(iv, (byte)0);
@@ -519,30 +1568,30 @@ public final class ThaiSmartCard {
                 cipher = Cipher.getInstance("DESede/CBC/NoPadding");
             } catch (NoSuchPaddingException e) {
                 Log.w(TAG, "NoSuchPaddingException");
-                return false;
+                return null;
             } catch (NoSuchAlgorithmException e) {
                 Log.w(TAG, "NoSuchAlgorithmException");
-                return false;
+                return null;
             }
 
             try {
                 cipher.init(Cipher.ENCRYPT_MODE, secretKey, ivParam);
             } catch (InvalidAlgorithmParameterException e) {
                 Log.w(TAG, "InvalidAlgorithmParameterException");
-                return false;
+                return null;
             } catch (InvalidKeyException e) {
                 Log.w(TAG, "InvalidKeyException");
-                return false;
+                return null;
             }
 
             try {
                 answerData = cipher.doFinal(inputData);
             } catch (IllegalBlockSizeException e) {
                 Log.w(TAG, "IllegalBlockSizeException");
-                return false;
+                return null;
             } catch (BadPaddingException e) {
                 Log.w(TAG, "BadPaddingException");
-                return false;
+                return null;
             }
 
             if (answerData.length == 32){
@@ -551,10 +1600,77 @@ public final class ThaiSmartCard {
                 System.arraycopy(answerData, 8, inputData, 0, 0x20);
             } else {
                 Log.w(TAG, "Invalid cipher caculate");
-                return false;
+                return null;
             }
         }
 
+        return answerData;
+    }
+
+    // true = done, false = error or exception
+    public boolean verifyPinCode(String pin, final VerifyPinCallback verifyPinCallback) {
+        return this.verifyPinCode(pin, verifyPinCallback, 0, null);
+    }
+
+    // timeout in milliseconds for the whole operation, 0 = no deadline
+    public boolean verifyPinCode(String pin, final VerifyPinCallback verifyPinCallback, long timeout, SmartCardCancellationToken cancellationToken) {
+        SmartCardSession session;
+
+        if ((session = this.device.openSession(timeout, cancellationToken)) == null) {
+            Log.w(TAG, "openSession() failed");
+            return false;
+        }
+
+        try {
+            return this.verifyPinCodeChallenge(pin, verifyPinCallback);
+        } finally {
+            session.close();
+        }
+    }
+
+    private boolean verifyPinCodeChallenge(String pin, final VerifyPinCallback verifyPinCallback) {
+        SmartCardMessage.DataBlock data;
+        byte[] message;
+        byte[] answerData;
+
+        if (pin == null || pin.length() != 4) {
+            Log.w(TAG, "Invalid pin code");
+            return false;
+        }
+
+        if (verifyPinCallback == null) {
+            Log.w(TAG, "Invalid callback");
+            return false;
+        }
+
+        if (!this.selectAppletExtension()) {
+            Log.d(TAG, "selectAppletExtension fail");
+            return false;
+        }
+
+        // pin challenge
+        message = new byte[]{(byte)0x80, (byte)0xb4, (byte)0x00, (byte)0x00};
+
+        if ((data = this.getCardData(message)) == null) {
+            Log.w(TAG, "Get pin challenge failed");
+            return false;
+        }
+
+        if (data.status != 0 || data.error != 0) {
+            Log.w(TAG, String.format("Invalid pin challenge response [%d][%d][%d][%s]", data.status, data.error, data.data.length, this.byteArrayToHexString(data.data)));
+            return false;
+        }
+
+        if (data.data.length != 0x20 + 2) {
+            Log.w(TAG, String.format("Invalid pin challenge length [%d]", data.data.length));
+            return false;
+        }
+
+        if ((answerData = ThaiSmartCard.getPinChallengeAnswer(pin, data.data)) == null) {
+            Log.w(TAG, "Pin challenge answer failed");
+            return false;
+        }
+
         message = new byte[]{(byte)0x80, (byte)0x20, (byte)0x01, (byte)0x00, (byte)0x20,
                 (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
                 (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00,
@@ -598,6 +1714,21 @@ public final class ThaiSmartCard {
     }
 
     public VerifyResult verifyFingerPrint(int maxRetry) {
+        SmartCardSession session;
+
+        if ((session = this.device.openSession()) == null) {
+            Log.w(TAG, "openSession() failed");
+            return VerifyResult.ERROR;
+        }
+
+        try {
+            return this.verifyFingerPrintParameter(maxRetry);
+        } finally {
+            session.close();
+        }
+    }
+
+    private VerifyResult verifyFingerPrintParameter(int maxRetry) {
         int i = 0;
         SmartCardMessage.DataBlock data;
         SmartCardMessage.EscapeResponseBlock escape;
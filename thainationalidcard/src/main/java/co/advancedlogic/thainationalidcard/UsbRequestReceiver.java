@@ -0,0 +1,495 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// keep a small queue of bulk-IN UsbRequest in flight, each one own a pooled direct buffer
+final class UsbRequestReceiver {
+    private static final String TAG = "UsbRequestReceiver";
+    // longest wait for a cancelled request to come back in cancel()
+    private static final int CANCEL_REAP_TIMEOUT = 100;
+    // cancel the requests at the deadline when requestWait() has no timeout
+    private static ScheduledThreadPoolExecutor deadlineScheduler = null;
+
+    private final Endpoint endpoint;
+    private final SmartCardBufferPool pool;
+    private final Slot[] slots;
+    private final ArrayDeque<Slot> queued;
+    private final ArrayDeque<Slot> idle;
+    private volatile boolean aborted = false;
+    private boolean closed = false;
+    private final Object waitLock = new Object();
+    // wait in progress and if its deadline cancelled the requests, guarded by waitLock
+    private Object waitToken = null;
+    private boolean expired = false;
+
+    // bulk-IN requests of one endpoint, request is known by its index
+    interface Endpoint {
+        boolean initialize(int index);
+        boolean queue(int index, ByteBuffer buffer);
+        void cancel(int index);
+        void close(int index);
+        // index of the next completed request or -1, timeout is only used when isTimeoutSupported()
+        int requestWait(int timeout) throws TimeoutException;
+        boolean isTimeoutSupported();
+    }
+
+    private static final class Slot {
+        final int index;
+        ByteBuffer buffer = null;
+        volatile boolean queued = false;
+        boolean completed = false;
+        // cancelled and not returned by requestWait() yet, it can not be queued again
+        boolean cancelling = false;
+        // transfer partly copied out, the rest is returned by the next receive()
+        boolean reading = false;
+
+        Slot(int index) {
+            this.index = index;
+        }
+    }
+
+    UsbRequestReceiver(UsbDeviceConnection deviceConnection, UsbEndpoint endpoint, SmartCardBufferPool pool, int depth) {
+        this(new UsbEndpointRequests(deviceConnection, endpoint, depth), pool, depth);
+    }
+
+    UsbRequestReceiver(Endpoint endpoint, SmartCardBufferPool pool, int depth) {
+        this.endpoint = endpoint;
+        this.pool = pool;
+        this.slots = new Slot[depth];
+        this.queued = new ArrayDeque<Slot>(depth);
+        this.idle = new ArrayDeque<Slot>(depth);
+
+        for (int i = 0; i < depth; i++) {
+            Slot slot = new Slot(i);
+
+            this.slots[i] = slot;
+
+            if (!endpoint.initialize(i)) {
+                Log.w(TAG, "UsbRequest initialize failed");
+                continue;
+            }
+
+            slot.buffer = pool.acquire();
+            this.idle.add(slot);
+        }
+    }
+
+    boolean isValid() {
+        return !this.closed && (this.idle.size() + this.queued.size()) > 0;
+    }
+
+    private boolean queueIdle() {
+        Slot slot;
+
+        while ((slot = this.idle.pollFirst()) != null) {
+            slot.buffer.clear();
+            slot.completed = false;
+
+            if (!this.endpoint.queue(slot.index, slot.buffer)) {
+                Log.w(TAG, "UsbRequest queue failed");
+                this.idle.addFirst(slot);
+                return false;
+            }
+
+            slot.queued = true;
+            this.queued.addLast(slot);
+        }
+
+        return true;
+    }
+
+    private boolean hasCancelling() {
+        for (Slot slot : this.slots) {
+            if (slot.cancelling) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // wait until a queued request complete, a cancelled request coming back is made idle again
+    // return without a completed request when nothing is queued
+    private boolean waitRequest(int timeout) {
+        long start = System.nanoTime();
+        int remain = timeout;
+        int index;
+        Slot slot;
+
+        while (true) {
+            try {
+                index = this.requestWait(remain);
+            } catch (TimeoutException e) {
+                Log.w(TAG, "receive timeout");
+                return false;
+            }
+
+            if (index < 0 || index >= this.slots.length) {
+                Log.w(TAG, "requestWait() return invalid request");
+                return false;
+            }
+
+            slot = this.slots[index];
+
+            if (!slot.cancelling) {
+                slot.completed = true;
+                return true;
+            }
+
+            slot.cancelling = false;
+            this.idle.addLast(slot);
+
+            if (this.queued.isEmpty()) {
+                return true;
+            }
+
+            if (timeout > 0 && (remain = timeout - (int)((System.nanoTime() - start) / 1000000L)) <= 0) {
+                return false;
+            }
+        }
+    }
+
+    private static synchronized ScheduledThreadPoolExecutor getDeadlineScheduler() {
+        if (deadlineScheduler == null) {
+            deadlineScheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "UsbRequestReceiver-Deadline");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            deadlineScheduler.setRemoveOnCancelPolicy(true);
+        }
+
+        return deadlineScheduler;
+    }
+
+    // before Oreo requestWait() has no timeout, the queued requests are cancelled at the deadline so it return
+    private int requestWait(int timeout) throws TimeoutException {
+        final Object token = new Object();
+        ScheduledFuture<?> deadline;
+        boolean timedOut;
+        int index;
+
+        if (timeout <= 0 || this.endpoint.isTimeoutSupported()) {
+            return this.endpoint.requestWait(timeout);
+        }
+
+        synchronized (this.waitLock) {
+            this.waitToken = token;
+            this.expired = false;
+        }
+
+        deadline = getDeadlineScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                UsbRequestReceiver.this.expire(token);
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        try {
+            index = this.endpoint.requestWait(0);
+        } finally {
+            deadline.cancel(false);
+
+            synchronized (this.waitLock) {
+                this.waitToken = null;
+                timedOut = this.expired;
+            }
+        }
+
+        if (!timedOut) {
+            return index;
+        }
+
+        // request returned came back, every other queued one is cancelled and set aside
+        if (index >= 0 && index < this.slots.length) {
+            if (this.slots[index].cancelling) {
+                this.slots[index].cancelling = false;
+                this.idle.addLast(this.slots[index]);
+            } else {
+                this.slots[index].completed = true;
+            }
+        }
+
+        this.discardQueued();
+
+        throw new TimeoutException();
+    }
+
+    // run on the deadline thread, only while the wait is still in progress
+    private void expire(Object token) {
+        synchronized (this.waitLock) {
+            if (this.waitToken != token) {
+                return;
+            }
+
+            this.expired = true;
+
+            for (Slot slot : this.slots) {
+                if (slot.queued) {
+                    this.endpoint.cancel(slot.index);
+                }
+            }
+        }
+    }
+
+    // abort is cleared once receive() report it, an abort() just before receive() is not lost
+    private boolean isAborted() {
+        if (!this.aborted) {
+            return false;
+        }
+
+        this.aborted = false;
+        this.discardQueued();
+        Log.w(TAG, "receive is aborted");
+
+        return true;
+    }
+
+    // queue the idle requests, false when none can be queued
+    private boolean queueRequests(int timeout) {
+        while (true) {
+            if (!this.queueIdle() && this.queued.isEmpty()) {
+                return false;
+            }
+
+            if (!this.queued.isEmpty()) {
+                return true;
+            }
+
+            // every request is cancelled and not returned yet
+            if (!this.hasCancelling() || !this.waitRequest(timeout)) {
+                return false;
+            }
+        }
+    }
+
+    // copy one completed transfer into buffer, return received length or negative on error/timeout
+    synchronized int receive(byte[] buffer, int offset, int length, int timeout) {
+        int empty = 0;
+        Slot slot;
+        int size;
+
+        if (this.closed || this.isAborted()) {
+            return -1;
+        }
+
+        while (true) {
+            if (!this.queueRequests(timeout)) {
+                return -1;
+            }
+
+            slot = this.queued.peekFirst();
+
+            while (!slot.completed) {
+                if (!this.waitRequest(timeout)) {
+                    this.isAborted();
+                    return -1;
+                }
+            }
+
+            if (this.isAborted()) {
+                return -1;
+            }
+
+            // request cancelled or killed by usbfs complete without data, a CCID message is never empty
+            if (slot.reading || slot.buffer.position() > 0) {
+                break;
+            }
+
+            this.release(slot);
+
+            if (++empty > this.slots.length) {
+                Log.w(TAG, "Every request complete without data");
+                return -1;
+            }
+
+            Log.d(TAG, "Empty transfer dropped, request queued again");
+        }
+
+        if (!slot.reading) {
+            slot.buffer.flip();
+            slot.reading = true;
+        }
+
+        size = Math.min(length, slot.buffer.remaining());
+        slot.buffer.get(buffer, offset, size);
+
+        if (!slot.buffer.hasRemaining()) {
+            this.release(slot);
+        }
+
+        return size;
+    }
+
+    private void release(Slot slot) {
+        this.queued.pollFirst();
+        slot.queued = false;
+        slot.reading = false;
+        this.idle.addLast(slot);
+    }
+
+    // called from another thread, queued request complete as cancelled and requestWait() return
+    void abort() {
+        this.aborted = true;
+
+        for (Slot slot : this.slots) {
+            if (slot.queued) {
+                this.endpoint.cancel(slot.index);
+            }
+        }
+    }
+
+    // queued requests are dropped, a request not completed is cancelled and kept aside until it come back
+    private void discardQueued() {
+        Slot slot;
+
+        while ((slot = this.queued.pollFirst()) != null) {
+            slot.queued = false;
+            slot.reading = false;
+
+            if (slot.completed) {
+                slot.completed = false;
+                this.idle.addLast(slot);
+            } else {
+                this.endpoint.cancel(slot.index);
+                slot.cancelling = true;
+            }
+        }
+    }
+
+    synchronized void cancel() {
+        int index;
+
+        this.discardQueued();
+
+        // requestWait() has no timeout before Oreo, cancelled requests are then reaped by the next receive()
+        if (!this.endpoint.isTimeoutSupported()) {
+            return;
+        }
+
+        while (this.hasCancelling()) {
+            try {
+                index = this.endpoint.requestWait(CANCEL_REAP_TIMEOUT);
+            } catch (TimeoutException e) {
+                Log.w(TAG, "Cancelled request not returned");
+                return;
+            }
+
+            if (index < 0 || index >= this.slots.length) {
+                Log.w(TAG, "requestWait() return invalid request");
+                return;
+            }
+
+            if (this.slots[index].cancelling) {
+                this.slots[index].cancelling = false;
+                this.idle.addLast(this.slots[index]);
+            }
+        }
+    }
+
+    synchronized void close() {
+        if (this.closed) {
+            return;
+        }
+
+        this.cancel();
+        this.closed = true;
+
+        for (Slot slot : this.slots) {
+            if (slot.buffer == null) {
+                continue;
+            }
+
+            // the request may still write its buffer until the connection is closed
+            if (slot.cancelling) {
+                Log.w(TAG, "UsbRequest not returned before close");
+                continue;
+            }
+
+            this.endpoint.close(slot.index);
+            this.pool.release(slot.buffer);
+        }
+
+        this.idle.clear();
+    }
+
+    // UsbRequest of the bulk-IN endpoint, client data is the slot index
+    private static final class UsbEndpointRequests implements Endpoint {
+        private final UsbDeviceConnection deviceConnection;
+        private final UsbEndpoint endpoint;
+        private final UsbRequest[] requests;
+
+        UsbEndpointRequests(UsbDeviceConnection deviceConnection, UsbEndpoint endpoint, int depth) {
+            this.deviceConnection = deviceConnection;
+            this.endpoint = endpoint;
+            this.requests = new UsbRequest[depth];
+        }
+
+        @Override
+        public boolean initialize(int index) {
+            UsbRequest request = new UsbRequest();
+
+            if (!request.initialize(this.deviceConnection, this.endpoint)) {
+                request.close();
+                return false;
+            }
+
+            request.setClientData(index);
+            this.requests[index] = request;
+
+            return true;
+        }
+
+        @Override
+        public boolean queue(int index, ByteBuffer buffer) {
+            return this.requests[index].queue(buffer, buffer.capacity());
+        }
+
+        @Override
+        public void cancel(int index) {
+            this.requests[index].cancel();
+        }
+
+        @Override
+        public void close(int index) {
+            this.requests[index].close();
+        }
+
+        @Override
+        public int requestWait(int timeout) throws TimeoutException {
+            UsbRequest request;
+
+            if (timeout > 0 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                request = this.deviceConnection.requestWait(timeout);
+            } else {
+                request = this.deviceConnection.requestWait();
+            }
+
+            if (request == null || !(request.getClientData() instanceof Integer)) {
+                return -1;
+            }
+
+            return (Integer)request.getClientData();
+        }
+
+        @Override
+        public boolean isTimeoutSupported() {
+            return Build.VERSION.SDK_INT >= Build.VERSION_CODES.O;
+        }
+    }
+}
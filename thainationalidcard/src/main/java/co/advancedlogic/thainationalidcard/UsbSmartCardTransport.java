@@ -0,0 +1,211 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.hardware.usb.UsbConstants;
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+import android.util.Log;
+
+public class UsbSmartCardTransport implements SmartCardTransport {
+    private static final String TAG = "UsbSmartCardTransport";
+    private static final int RECEIVE_QUEUE_DEPTH = 2;
+    private static final int RECEIVE_MESSAGE_LENGTH = 10 + 256 + 2;
+    // usbfs limit of one request on old kernels
+    private static final int MAX_RECEIVE_LENGTH = 16384;
+
+    private UsbDevice device;
+    private UsbDeviceConnection deviceConnection;
+    private UsbInterface deviceInterface;
+    private UsbEndpoint inputEndpoint;
+    private UsbEndpoint outputEndpoint;
+    private UsbEndpoint interruptEndpoint = null;
+    private UsbRequestReceiver receiver = null;
+
+    // input/output endpoint are named from the reader side, input receive our request message
+    public UsbSmartCardTransport(UsbDevice device, UsbDeviceConnection deviceConnection, UsbInterface deviceInterface, UsbEndpoint inputEndpoint, UsbEndpoint outputEndpoint) {
+        if (device == null || deviceConnection == null || deviceInterface == null || inputEndpoint == null || outputEndpoint == null) {
+            throw new NullPointerException("Invalid USB device connection, interface or endpoint");
+        }
+
+        this.device = device;
+        this.deviceConnection = deviceConnection;
+        this.deviceInterface = deviceInterface;
+        this.inputEndpoint = inputEndpoint;
+        this.outputEndpoint = outputEndpoint;
+
+        for (int i = 0; i < deviceInterface.getEndpointCount(); i++) {
+            UsbEndpoint endpoint = deviceInterface.getEndpoint(i);
+
+            if (endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_INT && endpoint.getDirection() == UsbConstants.USB_DIR_IN) {
+                this.interruptEndpoint = endpoint;
+                break;
+            }
+        }
+
+        this.setReceiveBufferPool(new SmartCardBufferPool(this.getReceiveLength(), RECEIVE_QUEUE_DEPTH));
+    }
+
+    // a whole CCID message fit in one bulk-IN request, multiple of the packet size
+    private int getReceiveLength() {
+        byte[] data = this.getClassDescriptor();
+        SmartCardDescriptor descriptor = (data != null) ? SmartCardDescriptor.parse(data) : null;
+        int packetSize = this.outputEndpoint.getMaxPacketSize();
+        int length = RECEIVE_MESSAGE_LENGTH;
+
+        if (descriptor != null && descriptor.getMaxMessageLength() > length) {
+            length = Math.min(descriptor.getMaxMessageLength(), MAX_RECEIVE_LENGTH);
+        }
+
+        return ((length + packetSize - 1) / packetSize) * packetSize;
+    }
+
+    // use bulk-IN UsbRequest on buffers from the pool, null pool fallback to synchronous bulkTransfer()
+    public synchronized void setReceiveBufferPool(SmartCardBufferPool pool) {
+        if (this.receiver != null) {
+            this.receiver.close();
+            this.receiver = null;
+        }
+
+        if (pool == null) {
+            return;
+        }
+
+        if (pool.getBufferSize() < this.outputEndpoint.getMaxPacketSize()) {
+            Log.w(TAG, "Receive buffer smaller than endpoint max packet size");
+            return;
+        }
+
+        this.receiver = new UsbRequestReceiver(this.deviceConnection, this.outputEndpoint, pool, RECEIVE_QUEUE_DEPTH);
+        if (!this.receiver.isValid()) {
+            Log.w(TAG, "UsbRequest receiver not available, use bulkTransfer()");
+            this.receiver.close();
+            this.receiver = null;
+        }
+    }
+
+    public UsbDevice getDevice() {
+        return this.device;
+    }
+
+    public UsbDeviceConnection getDeviceConnection() {
+        return this.deviceConnection;
+    }
+
+    public UsbInterface getDeviceInterface() {
+        return this.deviceInterface;
+    }
+
+    @Override
+    public boolean open() {
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (this.receiver != null) {
+            this.receiver.close();
+            this.receiver = null;
+        }
+
+        this.deviceConnection.close();
+    }
+
+    @Override
+    public boolean claim() {
+        if (!this.deviceConnection.claimInterface(this.deviceInterface, true)) {
+            Log.w(TAG, "claimInterface() failed");
+            return false;
+        }
+
+        return true;
+    }
+
+    // bulk-IN requests still queued would be killed by releaseInterface() and come back empty in the next session
+    @Override
+    public void release() {
+        UsbRequestReceiver receiver;
+
+        synchronized (this) {
+            receiver = this.receiver;
+        }
+
+        if (receiver != null) {
+            receiver.cancel();
+        }
+
+        if (!this.deviceConnection.releaseInterface(this.deviceInterface)) {
+            Log.w(TAG, "releaseInterface() failed");
+        }
+    }
+
+    @Override
+    public void cancel() {
+        UsbRequestReceiver receiver;
+
+        synchronized (this) {
+            receiver = this.receiver;
+        }
+
+        if (receiver != null) {
+            receiver.abort();
+        }
+    }
+
+    @Override
+    public String getProductName() {
+        return this.device.getProductName();
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return this.outputEndpoint.getMaxPacketSize();
+    }
+
+    @Override
+    public int send(byte[] buffer, int offset, int length, int timeout) {
+        return this.deviceConnection.bulkTransfer(this.inputEndpoint, buffer, offset, length, timeout);
+    }
+
+    @Override
+    public int receive(byte[] buffer, int offset, int length, int timeout) {
+        UsbRequestReceiver receiver;
+
+        synchronized (this) {
+            receiver = this.receiver;
+        }
+
+        if (receiver != null) {
+            return receiver.receive(buffer, offset, length, timeout);
+        }
+
+        return this.deviceConnection.bulkTransfer(this.outputEndpoint, buffer, offset, length, timeout);
+    }
+
+    @Override
+    public boolean hasInterruptEndpoint() {
+        return this.interruptEndpoint != null;
+    }
+
+    // bulkTransfer() also work on interrupt endpoint and does not share requestWait() with the bulk-IN receiver
+    @Override
+    public int receiveInterrupt(byte[] buffer, int offset, int length, int timeout) {
+        if (this.interruptEndpoint == null) {
+            return -1;
+        }
+
+        return this.deviceConnection.bulkTransfer(this.interruptEndpoint, buffer, offset, length, timeout);
+    }
+
+    @Override
+    public byte[] getClassDescriptor() {
+        SmartCardDescriptor descriptor = SmartCardDescriptor.find(this.deviceConnection.getRawDescriptors(), this.deviceInterface.getId());
+
+        return (descriptor != null) ? descriptor.getBytes() : null;
+    }
+
+    @Override
+    public int controlTransfer(int requestType, int request, int value, byte[] buffer, int length, int timeout) {
+        return this.deviceConnection.controlTransfer(requestType, request, value, this.deviceInterface.getId(), buffer, length, timeout);
+    }
+}
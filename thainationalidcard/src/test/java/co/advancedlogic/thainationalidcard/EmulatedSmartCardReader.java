@@ -0,0 +1,704 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+public class EmulatedSmartCardReader implements SmartCardTransport {
+    private static final String TAG = "EmulatedSmartCardReader";
+
+    private static final int ICC_STATUS_ACTIVE = 0x00;
+    private static final int ICC_STATUS_INACTIVE = 0x01;
+    private static final int ICC_STATUS_ABSENT = 0x02;
+    private static final int COMMAND_STATUS_FAILED = 0x40;
+
+    private static final int ERROR_CMD_NOT_SUPPORTED = 0x00;
+    private static final int ERROR_BAD_SLOT = 0x05;
+    private static final int ERROR_ICC_MUTE = 0xfe;
+
+    private String productName = "Emulated Smart Card Reader";
+    private int maxPacketSize = 64;
+    private byte[] classDescriptor = null;
+    private long exchangeLatency = 0;
+    private int exchangeCount = 0;
+    private int transferCount = 0;
+    private int receiveCount = 0;
+    private int claimCount = 0;
+    private boolean claimed = false;
+    private int releaseCount = 0;
+    private boolean opened = false;
+
+    private Slot[] slots = new Slot[]{new Slot()};
+    private boolean interruptEndpoint = true;
+    private LinkedList<byte[]> notifications = new LinkedList<byte[]>();
+
+    private ByteArrayOutputStream requestBuffer = new ByteArrayOutputStream();
+    private LinkedList<Response> responseQueue = new LinkedList<Response>();
+    private int responseIndex = 0;
+    private boolean aborted = false;
+    private long stallTime = 0;
+    private int abortCount = 0;
+    private boolean dataRateSupported = true;
+    private SmartCardDevice.ExchangeLevel exchangeLevel = SmartCardDevice.ExchangeLevel.TPDU;
+
+    // every slot process its request in order, request of different slot is processed concurrently
+    private static final class Slot {
+        EmulatedThaiSmartCard card = null;
+        boolean powered = false;
+        int protocol = 0;
+        byte[] parameters = null;
+        // rate the reader talk to the card, a card at another rate look mute
+        int fiDi = SmartCardAtr.DEFAULT_FIDI;
+        // extended APDU level command parts received and response parts left to send
+        ByteArrayOutputStream command = new ByteArrayOutputStream();
+        byte[] response = null;
+        int responseOffset = 0;
+        long latency = 0;
+        long busyTime = 0;
+    }
+
+    private static final class Response {
+        byte[] data;
+        long readyTime;
+
+        Response(byte[] data, long readyTime) {
+            this.data = data;
+            this.readyTime = readyTime;
+        }
+    }
+
+    public EmulatedSmartCardReader() {
+    }
+
+    public EmulatedSmartCardReader(EmulatedThaiSmartCard card) {
+        this.slots[0].card = card;
+    }
+
+    public synchronized void setSlotCount(int count) {
+        Slot[] slots = Arrays.copyOf(this.slots, Math.max(1, count));
+
+        for (int i = this.slots.length; i < slots.length; i++) {
+            slots[i] = new Slot();
+            slots[i].latency = this.exchangeLatency;
+        }
+
+        this.slots = slots;
+    }
+
+    public synchronized int getSlotCount() {
+        return this.slots.length;
+    }
+
+    public void insertCard(EmulatedThaiSmartCard card) {
+        this.insertCard(0, card);
+    }
+
+    public synchronized void insertCard(int slot, EmulatedThaiSmartCard card) {
+        this.slots[slot].card = card;
+        this.slots[slot].powered = false;
+        this.notifySlotChange(slot);
+    }
+
+    public void removeCard() {
+        this.removeCard(0);
+    }
+
+    public synchronized void removeCard(int slot) {
+        this.slots[slot].card = null;
+        this.slots[slot].powered = false;
+        this.notifySlotChange(slot);
+    }
+
+    // reader without interrupt endpoint never notify slot change
+    public synchronized void setInterruptEndpoint(boolean available) {
+        this.interruptEndpoint = available;
+    }
+
+    private void notifySlotChange(int slot) {
+        byte[] notification = new byte[1 + (this.slots.length + 3) / 4];
+
+        if (!this.interruptEndpoint || !this.opened) {
+            return;
+        }
+
+        notification[0] = (byte)0x50;
+        for (int i = 0; i < this.slots.length; i++) {
+            int state = ((this.slots[i].card != null) ? 0x01 : 0x00) | ((i == slot) ? 0x02 : 0x00);
+
+            notification[1 + (i / 4)] |= (byte)(state << ((i % 4) * 2));
+        }
+
+        this.notifications.add(notification);
+        this.notifyAll();
+    }
+
+    public synchronized EmulatedThaiSmartCard getCard() {
+        return this.slots[0].card;
+    }
+
+    // delay before the response of every request message is available, emulate the USB and card round trip
+    public synchronized void setExchangeLatency(long millis) {
+        this.exchangeLatency = millis;
+
+        for (Slot slot : this.slots) {
+            slot.latency = millis;
+        }
+    }
+
+    public synchronized void setExchangeLatency(int slot, long millis) {
+        this.slots[slot].latency = millis;
+    }
+
+    public synchronized int getExchangeCount() {
+        return this.exchangeCount;
+    }
+
+    public synchronized void resetExchangeCount() {
+        this.exchangeCount = 0;
+        this.transferCount = 0;
+        this.receiveCount = 0;
+        this.claimCount = 0;
+    }
+
+    // bulk-OUT transfer, more than one per message when it is sent in fragments
+    public synchronized int getTransferCount() {
+        return this.transferCount;
+    }
+
+    // bulk-IN transfer, a response longer than the read length take more than one
+    public synchronized int getReceiveCount() {
+        return this.receiveCount;
+    }
+
+    // delay the response of the next request message, emulate a stuck card or reader
+    public synchronized void stallNextResponse(long millis) {
+        this.stallTime = millis;
+    }
+
+    public synchronized int getAbortCount() {
+        return this.abortCount;
+    }
+
+    public synchronized int getClaimCount() {
+        return this.claimCount;
+    }
+
+    public synchronized boolean isClaimed() {
+        return this.claimed;
+    }
+
+    public synchronized void setProductName(String productName) {
+        this.productName = productName;
+    }
+
+    // APDU level complete case 2 and case 4 command with the card like a short APDU reader
+    public synchronized void setExchangeLevel(SmartCardDevice.ExchangeLevel exchangeLevel) {
+        this.exchangeLevel = exchangeLevel;
+    }
+
+    // abProtocolDataStructure set by the host, null until PC_to_RDR_SetParameters
+    public synchronized byte[] getParameters(int slot) {
+        return this.slots[slot].parameters;
+    }
+
+    public synchronized void setMaxPacketSize(int maxPacketSize) {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    // CCID functional descriptor read by the device when it start, null like a reader without one
+    public synchronized void setClassDescriptor(byte[] classDescriptor) {
+        this.classDescriptor = classDescriptor;
+    }
+
+    // reader rejecting PC_to_RDR_SetDataRateAndClockFrequency stay at the default rate
+    public synchronized void setDataRateSupported(boolean supported) {
+        this.dataRateSupported = supported;
+    }
+
+    @Override
+    public synchronized boolean open() {
+        this.opened = true;
+        this.requestBuffer.reset();
+        this.responseQueue.clear();
+        this.responseIndex = 0;
+
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        this.opened = false;
+        this.claimed = false;
+        this.notifications.clear();
+        this.notifyAll();
+    }
+
+    @Override
+    public synchronized boolean claim() {
+        if (!this.opened) {
+            return false;
+        }
+
+        this.claimCount++;
+        this.claimed = true;
+
+        return true;
+    }
+
+    // like usbfs the transfers in progress on the interface are killed
+    @Override
+    public synchronized void release() {
+        this.claimed = false;
+        this.releaseCount++;
+        this.notifyAll();
+    }
+
+    @Override
+    public synchronized String getProductName() {
+        return this.productName;
+    }
+
+    @Override
+    public synchronized int getMaxPacketSize() {
+        return this.maxPacketSize;
+    }
+
+    @Override
+    public synchronized int send(byte[] buffer, int offset, int length, int timeout) {
+        byte[] request, response;
+        int messageLength, slotNumber;
+        long readyTime;
+        Slot slot;
+
+        if (!this.opened || !this.claimed) {
+            Log.w(TAG, "Reader is not opened or interface is not claimed");
+            return -1;
+        }
+
+        this.transferCount++;
+        this.requestBuffer.write(buffer, offset, length);
+
+        while (this.requestBuffer.size() >= 10) {
+            request = this.requestBuffer.toByteArray();
+            messageLength = getLength(request) + 10;
+
+            if (request.length < messageLength) {
+                break;
+            }
+
+            this.requestBuffer.reset();
+            this.requestBuffer.write(request, messageLength, request.length - messageLength);
+
+            this.exchangeCount++;
+
+            response = this.process(Arrays.copyOf(request, messageLength));
+
+            slotNumber = request[5] & 0xff;
+            slot = (slotNumber < this.slots.length) ? this.slots[slotNumber] : this.slots[0];
+            readyTime = Math.max(System.nanoTime(), slot.busyTime) + (slot.latency + this.stallTime) * 1000000L;
+            slot.busyTime = readyTime;
+
+            this.queueResponse(new Response(response, readyTime));
+            this.stallTime = 0;
+        }
+
+        return length;
+    }
+
+    // response is sent when it is ready, the one partially sent stay at the head
+    private void queueResponse(Response response) {
+        int index = this.responseQueue.size();
+
+        while (index > ((this.responseIndex > 0) ? 1 : 0) && this.responseQueue.get(index - 1).readyTime - response.readyTime > 0) {
+            index--;
+        }
+
+        this.responseQueue.add(index, response);
+        this.notifyAll();
+    }
+
+    @Override
+    public synchronized int receive(byte[] buffer, int offset, int length, int timeout) {
+        Response response;
+        int size;
+
+        if (!this.opened || this.responseQueue.isEmpty()) {
+            Log.w(TAG, "No response message queued");
+            return -1;
+        }
+
+        this.aborted = false;
+        if (!this.waitResponse(timeout)) {
+            Log.w(TAG, this.aborted ? "Receive is cancelled" : "Receive timeout");
+            return -1;
+        }
+
+        response = this.responseQueue.getFirst();
+        this.receiveCount++;
+
+        size = Math.min(length, response.data.length - this.responseIndex);
+
+        System.arraycopy(response.data, this.responseIndex, buffer, offset, size);
+        this.responseIndex += size;
+
+        if (this.responseIndex >= response.data.length) {
+            this.responseQueue.removeFirst();
+            this.responseIndex = 0;
+        }
+
+        return size;
+    }
+
+    @Override
+    public synchronized byte[] getClassDescriptor() {
+        return this.classDescriptor;
+    }
+
+    @Override
+    public synchronized boolean hasInterruptEndpoint() {
+        return this.interruptEndpoint;
+    }
+
+    @Override
+    public synchronized int receiveInterrupt(byte[] buffer, int offset, int length, int timeout) {
+        long timeoutTime = System.nanoTime() + timeout * 1000000L;
+        int releaseCount = this.releaseCount;
+        byte[] notification;
+        long wait;
+
+        while (this.opened && this.notifications.isEmpty()) {
+            if (this.releaseCount != releaseCount) {
+                return -1;
+            }
+
+            wait = (timeoutTime - System.nanoTime()) / 1000000L;
+            if (timeout > 0 && wait <= 0) {
+                return -1;
+            }
+
+            try {
+                this.wait((timeout > 0) ? wait : 0);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+
+        if (!this.opened) {
+            return -1;
+        }
+
+        notification = this.notifications.removeFirst();
+        length = Math.min(length, notification.length);
+        System.arraycopy(notification, 0, buffer, offset, length);
+
+        return length;
+    }
+
+    @Override
+    public synchronized int controlTransfer(int requestType, int request, int value, byte[] buffer, int length, int timeout) {
+        if (!this.opened) {
+            return -1;
+        }
+
+        if (requestType == SmartCardMessage.REQUEST_TYPE_CLASS_OUT && request == SmartCardMessage.REQUEST_ABORT) {
+            this.abortCount++;
+            return 0;
+        }
+
+        Log.w(TAG, String.format("Unsupported control request %02x:%02x", requestType, request));
+        return -1;
+    }
+
+    @Override
+    public synchronized void cancel() {
+        this.aborted = true;
+        this.notifyAll();
+    }
+
+    // wait with the monitor released so cancel() or a new response can wake it up, false on timeout or cancel
+    private boolean waitResponse(int timeout) {
+        long now = System.nanoTime();
+        long timeoutTime = now + timeout * 1000000L;
+        long readyTime;
+
+        while (!this.responseQueue.isEmpty() && (readyTime = this.responseQueue.getFirst().readyTime) - now > 0) {
+            if (this.aborted || (timeout > 0 && timeoutTime - now <= 0)) {
+                return false;
+            }
+
+            long wait = (timeout > 0 && timeoutTime - readyTime < 0) ? timeoutTime - now : readyTime - now;
+
+            try {
+                this.wait(Math.max(1, wait / 1000000L), (int)(wait % 1000000L));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            now = System.nanoTime();
+        }
+
+        return !this.aborted && !this.responseQueue.isEmpty();
+    }
+
+    private byte[] process(byte[] request) {
+        int type = request[0] & 0xff;
+        byte[] data = Arrays.copyOfRange(request, 10, request.length);
+        Slot slot;
+
+        if ((request[5] & 0xff) >= this.slots.length) {
+            return this.response((type == 0x62 || type == 0x6f) ? 0x80 : 0x81, request, COMMAND_STATUS_FAILED | ICC_STATUS_ABSENT, ERROR_BAD_SLOT, 0x00, null);
+        }
+
+        slot = this.slots[request[5] & 0xff];
+
+        switch (type) {
+            case 0x62: // PC_to_RDR_IccPowerOn
+                if (slot.card == null) {
+                    return this.response(0x80, request, COMMAND_STATUS_FAILED | ICC_STATUS_ABSENT, ERROR_ICC_MUTE, 0x00, null);
+                }
+
+                slot.powered = true;
+                slot.parameters = null;
+                slot.fiDi = SmartCardAtr.DEFAULT_FIDI;
+                return this.response(0x80, request, ICC_STATUS_ACTIVE, 0x00, 0x00, slot.card.powerOn());
+
+            case 0x63: // PC_to_RDR_IccPowerOff
+                slot.powered = false;
+                slot.parameters = null;
+                return this.response(0x81, request, this.iccStatus(slot), 0x00, 0x00, null);
+
+            case 0x65: // PC_to_RDR_GetSlotStatus
+                return this.response(0x81, request, this.iccStatus(slot), 0x00, 0x00, null);
+
+            case 0x61: // PC_to_RDR_SetParameters
+                slot.protocol = request[7] & 0xff;
+                slot.parameters = data;
+
+                // reader without automatic baud rate wait for PC_to_RDR_SetDataRateAndClockFrequency
+                if (data.length > 0 && this.hasFeature(SmartCardDescriptor.FEATURE_AUTO_BAUD_RATE)) {
+                    slot.fiDi = data[0] & 0xff;
+                }
+                return this.response(0x82, request, this.iccStatus(slot), 0x00, slot.protocol, data);
+
+            case 0x6c: // PC_to_RDR_GetParameters
+                if (slot.parameters != null) {
+                    return this.response(0x82, request, this.iccStatus(slot), 0x00, slot.protocol, slot.parameters);
+                }
+
+                if (slot.card != null && slot.card.isProtocolT1()) {
+                    return this.response(0x82, request, this.iccStatus(slot), 0x00, 0x01, new byte[]{(byte)0x11, (byte)(slot.card.isCrc() ? 0x11 : 0x10), (byte)0x00, (byte)0x4d, (byte)0x00, (byte)slot.card.getIfsc(), (byte)0x00});
+                }
+
+                return this.response(0x82, request, this.iccStatus(slot), 0x00, 0x00, new byte[]{(byte)0x11, (byte)0x00, (byte)0x00, (byte)0x0a, (byte)0x00});
+
+            case 0x6d: // PC_to_RDR_ResetParameters
+                return this.response(0x82, request, this.iccStatus(slot), 0x00, 0x00, new byte[]{(byte)0x11, (byte)0x00, (byte)0x00, (byte)0x0a, (byte)0x00});
+
+            case 0x73: // PC_to_RDR_SetDataRateAndClockFrequency
+                if (!this.dataRateSupported || data.length < 8) {
+                    return this.response(0x84, request, COMMAND_STATUS_FAILED | this.iccStatus(slot), ERROR_CMD_NOT_SUPPORTED, 0x00, null);
+                }
+
+                int dataRate = (data[4] & 0xff) | ((data[5] & 0xff) << 8) | ((data[6] & 0xff) << 16) | ((data[7] & 0xff) << 24);
+                SmartCardDescriptor descriptor = (this.classDescriptor != null) ? SmartCardDescriptor.parse(this.classDescriptor) : null;
+
+                // only the rate of the card Fi/Di at the default clock let the reader follow the card
+                if (slot.card != null && descriptor != null && descriptor.getDataRate(slot.card.getFiDi()) == dataRate) {
+                    slot.fiDi = slot.card.getFiDi();
+                } else {
+                    slot.fiDi = -1;
+                }
+
+                return this.response(0x84, request, this.iccStatus(slot), 0x00, 0x00, Arrays.copyOf(data, 8));
+
+            case 0x6b: // PC_to_RDR_Escape
+                return this.response(0x83, request, this.iccStatus(slot), 0x00, 0x00, new byte[]{(byte)0x00, (byte)0x00, (byte)0x00});
+
+            case 0x72: // PC_to_RDR_Abort
+                // response of an aborted command is never sent, the one already on the pipe must be drained by the host
+                long now = System.nanoTime();
+                Iterator<Response> iterator = this.responseQueue.iterator();
+
+                while (iterator.hasNext()) {
+                    Response response = iterator.next();
+
+                    if (response.data[5] == request[5] && response.readyTime - now > 0 && !(response == this.responseQueue.peekFirst() && this.responseIndex > 0)) {
+                        iterator.remove();
+                    }
+                }
+
+                slot.busyTime = now;
+                return this.response(0x81, request, this.iccStatus(slot), 0x00, 0x00, null);
+
+            case 0x6f: // PC_to_RDR_XfrBlock
+                if (slot.card == null || !slot.powered) {
+                    return this.response(0x80, request, COMMAND_STATUS_FAILED | this.iccStatus(slot), ERROR_ICC_MUTE, 0x00, null);
+                }
+
+                // PPS exchange right after the ATR, a card that refuse it does not answer
+                if (slot.card.isPpsAllowed() && data.length >= 3 && data[0] == (byte)0xff && !this.isApduLevel()) {
+                    byte[] pps = slot.card.pps(data);
+
+                    if (pps == null) {
+                        return this.response(0x80, request, COMMAND_STATUS_FAILED | ICC_STATUS_ACTIVE, ERROR_ICC_MUTE, 0x00, null);
+                    }
+
+                    return this.response(0x80, request, ICC_STATUS_ACTIVE, 0x00, 0x00, pps);
+                }
+
+                // reader APDU level negotiate the rate itself
+                if (!this.isApduLevel() && slot.fiDi != slot.card.getFiDi()) {
+                    return this.response(0x80, request, COMMAND_STATUS_FAILED | ICC_STATUS_ACTIVE, ERROR_ICC_MUTE, 0x00, null);
+                }
+
+                if (this.exchangeLevel == SmartCardDevice.ExchangeLevel.EXTENDED_APDU) {
+                    return this.transmitChained(slot, request, data);
+                }
+
+                return this.response(0x80, request, ICC_STATUS_ACTIVE, 0x00, 0x00, this.transmit(slot.card, data));
+
+            default:
+                Log.w(TAG, String.format("Unsupported message type %02x", type));
+                return this.response(0x81, request, COMMAND_STATUS_FAILED | this.iccStatus(slot), ERROR_CMD_NOT_SUPPORTED, 0x00, null);
+        }
+    }
+
+    // TPDU level pass the command or the T=1 block as is, 61xx and 6Cxx are left to the host
+    private byte[] transmit(EmulatedThaiSmartCard card, byte[] apdu) {
+        byte[] response, command;
+        int le, available;
+
+        if (!this.isApduLevel()) {
+            return card.isProtocolT1() ? card.transmitBlock(apdu) : card.transmit(apdu);
+        }
+
+        if (apdu.length == 5) {
+            response = card.transmit(apdu);
+
+            if (response.length == 2 && response[0] == (byte)0x6c) {
+                command = Arrays.copyOf(apdu, 5);
+                command[4] = response[1];
+                response = card.transmit(command);
+            }
+
+            return response;
+        }
+
+        if (apdu.length > 5 && apdu[4] != 0x00 && apdu.length == 6 + (apdu[4] & 0xff)) {
+            le = ((apdu[apdu.length - 1] & 0xff) == 0) ? 256 : (apdu[apdu.length - 1] & 0xff);
+            response = card.transmit(Arrays.copyOf(apdu, apdu.length - 1));
+
+            if (response.length == 2 && response[0] == (byte)0x61) {
+                available = ((response[1] & 0xff) == 0) ? 256 : (response[1] & 0xff);
+                response = card.transmit(new byte[]{(byte)0x00, (byte)0xc0, (byte)0x00, (byte)0x00, (byte)Math.min(le, available)});
+            }
+
+            return response;
+        }
+
+        return card.transmit(apdu);
+    }
+
+    // wLevelParameter chain the command, response longer than dwMaxCCIDMessageLength is sent in parts
+    private byte[] transmitChained(Slot slot, byte[] request, byte[] data) {
+        SmartCardDescriptor descriptor = (this.classDescriptor != null) ? SmartCardDescriptor.parse(this.classDescriptor) : null;
+        int levelParameter = (request[8] & 0xff) | ((request[9] & 0xff) << 8);
+        int maxLength = (descriptor != null && descriptor.getMaxMessageLength() > 10) ? descriptor.getMaxMessageLength() - 10 : Integer.MAX_VALUE;
+        int length, chainParameter;
+
+        switch (levelParameter) {
+            case SmartCardMessage.CHAIN_BEGIN:
+                slot.command.reset();
+                slot.command.write(data, 0, data.length);
+                return this.response(0x80, request, ICC_STATUS_ACTIVE, 0x00, SmartCardMessage.CHAIN_EMPTY_CONTINUE, null);
+
+            case SmartCardMessage.CHAIN_CONTINUE:
+                slot.command.write(data, 0, data.length);
+                return this.response(0x80, request, ICC_STATUS_ACTIVE, 0x00, SmartCardMessage.CHAIN_EMPTY_CONTINUE, null);
+
+            case SmartCardMessage.CHAIN_END:
+                slot.command.write(data, 0, data.length);
+                slot.response = this.transmit(slot.card, slot.command.toByteArray());
+                slot.responseOffset = 0;
+                slot.command.reset();
+                break;
+
+            case SmartCardMessage.CHAIN_EMPTY_CONTINUE:
+                if (slot.response == null) {
+                    return this.response(0x80, request, COMMAND_STATUS_FAILED | ICC_STATUS_ACTIVE, ERROR_CMD_NOT_SUPPORTED, 0x00, null);
+                }
+                break;
+
+            default:
+                slot.response = this.transmit(slot.card, data);
+                slot.responseOffset = 0;
+                break;
+        }
+
+        length = Math.min(maxLength, slot.response.length - slot.responseOffset);
+
+        if (slot.responseOffset == 0) {
+            chainParameter = (length < slot.response.length) ? SmartCardMessage.CHAIN_BEGIN : SmartCardMessage.CHAIN_COMPLETE;
+        } else {
+            chainParameter = (slot.responseOffset + length < slot.response.length) ? SmartCardMessage.CHAIN_CONTINUE : SmartCardMessage.CHAIN_END;
+        }
+
+        data = Arrays.copyOfRange(slot.response, slot.responseOffset, slot.responseOffset + length);
+        slot.responseOffset += length;
+
+        if (slot.responseOffset >= slot.response.length) {
+            slot.response = null;
+        }
+
+        return this.response(0x80, request, ICC_STATUS_ACTIVE, 0x00, chainParameter, data);
+    }
+
+    private boolean hasFeature(int feature) {
+        SmartCardDescriptor descriptor = (this.classDescriptor != null) ? SmartCardDescriptor.parse(this.classDescriptor) : null;
+
+        return descriptor != null && descriptor.hasFeature(feature);
+    }
+
+    private boolean isApduLevel() {
+        return this.exchangeLevel == SmartCardDevice.ExchangeLevel.SHORT_APDU || this.exchangeLevel == SmartCardDevice.ExchangeLevel.EXTENDED_APDU;
+    }
+
+    private int iccStatus(Slot slot) {
+        if (slot.card == null) {
+            return ICC_STATUS_ABSENT;
+        }
+
+        return slot.powered ? ICC_STATUS_ACTIVE : ICC_STATUS_INACTIVE;
+    }
+
+    private byte[] response(int type, byte[] request, int status, int error, int specific, byte[] data) {
+        int length = (data != null) ? data.length : 0;
+        byte[] response = new byte[length + 10];
+
+        response[0] = (byte)type;
+        response[1] = (byte)(length & 0xff);
+        response[2] = (byte)((length >> 8) & 0xff);
+        response[3] = (byte)((length >> 16) & 0xff);
+        response[4] = (byte)((length >> 24) & 0xff);
+        response[5] = request[5];
+        response[6] = request[6];
+        response[7] = (byte)status;
+        response[8] = (byte)error;
+        response[9] = (byte)specific;
+
+        if (length > 0) {
+            System.arraycopy(data, 0, response, 10, length);
+        }
+
+        return response;
+    }
+
+    private static int getLength(byte[] message) {
+        return ((message[4] & 0xff) << 24) | ((message[3] & 0xff) << 16) | ((message[2] & 0xff) << 8) | (message[1] & 0xff);
+    }
+}
@@ -0,0 +1,1067 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.graphics.Bitmap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EmulatedSmartCardReaderTest {
+    private EmulatedThaiSmartCard card;
+    private EmulatedSmartCardReader reader;
+    private SmartCardDevice device;
+    private ThaiSmartCard thaiSmartCard;
+
+    @Before
+    public void setUp() {
+        this.card = new EmulatedThaiSmartCard();
+        this.reader = new EmulatedSmartCardReader(this.card);
+        this.device = SmartCardDevice.getSmartCardDevice(this.reader, null);
+        this.thaiSmartCard = new ThaiSmartCard(this.device);
+
+        SmartCardProfileCache.getDefault().clear();
+    }
+
+    @Test
+    public void isInserted_followsCardPresence() {
+        assertTrue(this.thaiSmartCard.isInserted());
+
+        this.reader.removeCard();
+        assertFalse(this.thaiSmartCard.isInserted());
+
+        this.reader.insertCard(this.card);
+        assertTrue(this.thaiSmartCard.isInserted());
+    }
+
+    @Test
+    public void getPersonalInformation_readsStorageApplet() {
+        this.card.setPersonalID("3100600123456");
+        this.card.setNameEN("Miss#Suda##Rakthai");
+
+        assertTrue(this.thaiSmartCard.isInserted());
+
+        ThaiSmartCard.PersonalInformation info = this.thaiSmartCard.getPersonalInformation();
+
+        assertNotNull(info);
+        assertEquals("3100600123456", info.PersonalID);
+        assertEquals("Miss Suda  Rakthai", info.NameEN);
+        assertEquals("25300101", info.BirthDate);
+        assertEquals("25700101", info.ExpireDate);
+    }
+
+    @Test
+    public void getCardID_handlesWrongLengthStatus() {
+        byte[] chipData = new byte[45];
+
+        chipData[13] = (byte)0xde;
+        chipData[20] = (byte)0xad;
+        this.card.setChipData(chipData);
+
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals("de000000000000ad", this.thaiSmartCard.getCardID());
+    }
+
+    @Test
+    public void verifyPinCode_answersChallenge() {
+        final int[] result = new int[]{-1};
+        ThaiSmartCard.VerifyPinCallback callback = new ThaiSmartCard.VerifyPinCallback() {
+            @Override
+            public void onSuccess() {
+                result[0] = 0;
+            }
+
+            @Override
+            public void onFailed(int remain) {
+                result[0] = remain;
+            }
+
+            @Override
+            public void onError() {
+                result[0] = -2;
+            }
+        };
+
+        this.card.setPinCode("4321", 3);
+        assertTrue(this.thaiSmartCard.isInserted());
+
+        assertTrue(this.thaiSmartCard.verifyPinCode("0000", callback));
+        assertEquals(2, result[0]);
+
+        assertTrue(this.thaiSmartCard.verifyPinCode("4321", callback));
+        assertEquals(0, result[0]);
+    }
+
+    @Test
+    public void session_claimsInterfaceOnce() {
+        SmartCardSession session;
+
+        // reader without interrupt endpoint, the interface is claimed by the sessions only
+        this.device.stop();
+        this.reader = new EmulatedSmartCardReader(this.card);
+        this.reader.setInterruptEndpoint(false);
+        this.device = SmartCardDevice.getSmartCardDevice(this.reader, null);
+        this.thaiSmartCard = new ThaiSmartCard(this.device);
+
+        session = this.device.openSession();
+
+        assertNotNull(session);
+        this.reader.resetExchangeCount();
+
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+        assertNotNull(this.thaiSmartCard.getCardID());
+
+        assertEquals(0, this.reader.getClaimCount());
+        assertTrue(this.reader.isClaimed());
+
+        session.close();
+        assertFalse(this.reader.isClaimed());
+
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(1, this.reader.getClaimCount());
+        assertFalse(this.reader.isClaimed());
+    }
+
+    @Test
+    public void slotChangeListener_keepsInterfaceClaimed() throws Exception {
+        final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        EmulatedSmartCardReader reader = new EmulatedSmartCardReader(this.card);
+        SmartCardDevice device = SmartCardDevice.getSmartCardDevice(reader, new SmartCardDevice.SmartCardSlotEvent() {
+            @Override
+            public void OnReady(SmartCardDevice device) {
+            }
+
+            @Override
+            public void OnDetached(SmartCardDevice device) {
+            }
+
+            @Override
+            public void OnCardInserted(SmartCardDevice device) {
+                events.add("inserted");
+            }
+
+            @Override
+            public void OnCardRemoved(SmartCardDevice device) {
+                events.add("removed");
+            }
+        });
+        ThaiSmartCard thaiSmartCard = new ThaiSmartCard(device);
+
+        try {
+            // sessions do not claim again nor release the interface, the interrupt transfer is never killed
+            reader.resetExchangeCount();
+            for (int i = 0; i < 10; i++) {
+                assertTrue(thaiSmartCard.isInserted());
+            }
+            assertEquals(0, reader.getClaimCount());
+            assertTrue(reader.isClaimed());
+
+            reader.removeCard();
+            assertEquals("removed", events.poll(1, TimeUnit.SECONDS));
+        } finally {
+            device.stop();
+        }
+    }
+
+    @Test
+    public void deadlineAndCancellation_boundReadTime() throws InterruptedException {
+        final SmartCardCancellationToken token = new SmartCardCancellationToken();
+        long start;
+
+        assertTrue(this.thaiSmartCard.isInserted());
+        this.reader.setExchangeLatency(20);
+
+        start = System.nanoTime();
+        assertNull(this.thaiSmartCard.getPersonalInformation(50, null));
+        assertTrue((System.nanoTime() - start) / 1000000 < 100);
+
+        Thread canceller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(30);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                token.cancel();
+            }
+        });
+
+        start = System.nanoTime();
+        canceller.start();
+        assertNull(this.thaiSmartCard.getPersonalPicture(0, token));
+        assertTrue((System.nanoTime() - start) / 1000000 < 100);
+        canceller.join();
+
+        assertNull(this.thaiSmartCard.getCardID(0, token));
+    }
+
+    @Test
+    public void recover_abortsStaleExchange() {
+        assertTrue(this.thaiSmartCard.isInserted());
+
+        this.reader.stallNextResponse(500);
+        assertNull(this.thaiSmartCard.getPersonalInformation(100, null));
+        assertTrue(this.device.isRecoveryRequired());
+
+        ThaiSmartCard.PersonalInformation info = this.thaiSmartCard.getPersonalInformation();
+
+        assertNotNull(info);
+        assertEquals("1234567890123", info.PersonalID);
+        assertEquals(1, this.reader.getAbortCount());
+        assertFalse(this.device.isRecoveryRequired());
+    }
+
+    @Test
+    public void readPersonalInformationAsync_runsOnReaderThread() throws Exception {
+        final String[] threadName = new String[1];
+        final ThaiSmartCard.PersonalInformation[] result = new ThaiSmartCard.PersonalInformation[1];
+
+        assertTrue(this.thaiSmartCard.isInsertedAsync(null, null).get());
+
+        ThaiSmartCard.PersonalInformation info = this.thaiSmartCard.readPersonalInformationAsync(null, new ThaiSmartCard.ResultCallback<ThaiSmartCard.PersonalInformation>() {
+            @Override
+            public void onSuccess(ThaiSmartCard.PersonalInformation info) {
+                threadName[0] = Thread.currentThread().getName();
+                result[0] = info;
+            }
+
+            @Override
+            public void onError() {
+            }
+        }).get();
+
+        assertNotNull(info);
+        assertSame(info, result[0]);
+        assertTrue(threadName[0].startsWith("SmartCardDevice-IO-"));
+    }
+
+    @Test
+    public void cancelledSession_sendsNothingAndNeedsNoRecovery() {
+        SmartCardCancellationToken token = new SmartCardCancellationToken();
+        SmartCardSession session;
+
+        assertTrue(this.thaiSmartCard.isInserted());
+        session = this.device.openSession(0, token);
+
+        try {
+            token.cancel();
+            this.reader.resetExchangeCount();
+
+            assertNull(this.device.sendAPDU(new byte[]{(byte)0x00, (byte)0xa4, (byte)0x04, (byte)0x00, (byte)0x00}));
+            assertEquals(0, this.reader.getTransferCount());
+            assertFalse(this.device.isRecoveryRequired());
+        } finally {
+            session.close();
+        }
+    }
+
+    @Test
+    public void stoppedDevice_doesNotStartIoThread() throws Exception {
+        assertTrue(this.thaiSmartCard.isInsertedAsync(null, null).get());
+
+        this.device.stop();
+        assertNull(this.device.getExecutor());
+
+        try {
+            this.thaiSmartCard.isInsertedAsync(null, null);
+            fail();
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+
+        // started again, the I/O thread come back
+        this.device.start();
+        assertTrue(this.thaiSmartCard.isInsertedAsync(null, null).get());
+    }
+
+    @Test
+    public void readerPool_routesJobToReaderWithCard() throws Exception {
+        EmulatedSmartCardReader firstReader = new EmulatedSmartCardReader();
+        EmulatedSmartCardReader secondReader = new EmulatedSmartCardReader(new EmulatedThaiSmartCard());
+        SmartCardReaderPool pool = SmartCardReaderPool.getSmartCardReaderPool(new SmartCardTransport[]{firstReader, secondReader}, null);
+
+        firstReader.setProductName("Reader 1");
+        secondReader.setProductName("Reader 2");
+        pool.setPollInterval(5);
+
+        try {
+            assertEquals(2, pool.getReaderCount());
+
+            assertNotNull(pool.readPersonalInformation(null, null).get());
+            assertEquals(0, pool.getStatistics().Readers[0].CardsRead);
+            assertEquals(1, pool.getStatistics().Readers[1].CardsRead);
+
+            firstReader.insertCard(new EmulatedThaiSmartCard());
+            assertNotNull(pool.readPersonalInformation(null, null).get());
+
+            SmartCardReaderPool.Statistics statistics = pool.getStatistics();
+
+            assertEquals(2, statistics.CardsRead);
+            assertEquals(0, statistics.CardsFailed);
+            assertEquals(1, statistics.Readers[0].CardsRead);
+            assertEquals(1, statistics.Readers[1].CardsRead);
+            assertTrue(statistics.CardsPerMinute > 0);
+
+            // worker wait for cards on its own thread, the reader I/O thread is free for other tasks
+            assertEquals("done", pool.getReaders()[0].submit(new Callable<String>() {
+                @Override
+                public String call() {
+                    return "done";
+                }
+            }).get(1, TimeUnit.SECONDS));
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void slotDevices_exchangeConcurrentlyOnOneInterface() throws Exception {
+        EmulatedThaiSmartCard secondCard = new EmulatedThaiSmartCard();
+        SmartCardDevice secondSlot;
+        long start;
+
+        secondCard.setPersonalID("3100600123456");
+        this.reader.setSlotCount(2);
+        this.reader.insertCard(1, secondCard);
+
+        // slot 1 answer first, responses are received out of request order
+        this.reader.setExchangeLatency(0, 20);
+        this.reader.setExchangeLatency(1, 5);
+
+        secondSlot = this.device.getSlotDevice(1);
+        assertNotNull(secondSlot);
+        assertSame(this.device, secondSlot.getSlotDevice(0));
+        assertEquals(1, secondSlot.getSlotNumber());
+
+        ThaiSmartCard firstCard = this.thaiSmartCard;
+        ThaiSmartCard otherCard = new ThaiSmartCard(secondSlot);
+
+        start = System.nanoTime();
+        Future<Boolean> firstInserted = firstCard.isInsertedAsync(null, null);
+        Future<Boolean> otherInserted = otherCard.isInsertedAsync(null, null);
+        assertTrue(firstInserted.get());
+        assertTrue(otherInserted.get());
+
+        Future<ThaiSmartCard.PersonalInformation> first = firstCard.readPersonalInformationAsync(null, null);
+        Future<ThaiSmartCard.PersonalInformation> other = otherCard.readPersonalInformationAsync(null, null);
+
+        assertEquals("1234567890123", first.get().PersonalID);
+        assertEquals("3100600123456", other.get().PersonalID);
+
+        // 9 exchanges on slot 0 and 9 on slot 1 overlap instead of adding up
+        assertTrue((System.nanoTime() - start) / 1000000 < 9 * 20 + 9 * 5);
+        // still claimed by the slot change listener
+        assertTrue(this.reader.isClaimed());
+    }
+
+    @Test
+    public void slotChange_raisesEventsAndAbortsRead() throws Exception {
+        final LinkedBlockingQueue<String> events = new LinkedBlockingQueue<String>();
+        EmulatedSmartCardReader reader = new EmulatedSmartCardReader(new EmulatedThaiSmartCard());
+        SmartCardDevice device = SmartCardDevice.getSmartCardDevice(reader, new SmartCardDevice.SmartCardSlotEvent() {
+            @Override
+            public void OnReady(SmartCardDevice device) {
+            }
+
+            @Override
+            public void OnDetached(SmartCardDevice device) {
+            }
+
+            @Override
+            public void OnCardInserted(SmartCardDevice device) {
+                events.add("inserted " + device.getSlotNumber());
+            }
+
+            @Override
+            public void OnCardRemoved(SmartCardDevice device) {
+                events.add("removed " + device.getSlotNumber());
+            }
+        });
+        ThaiSmartCard thaiSmartCard = new ThaiSmartCard(device);
+        long start;
+
+        try {
+            reader.removeCard();
+            assertEquals("removed 0", events.poll(1, TimeUnit.SECONDS));
+
+            reader.insertCard(new EmulatedThaiSmartCard());
+            assertEquals("inserted 0", events.poll(1, TimeUnit.SECONDS));
+            assertTrue(thaiSmartCard.isInserted());
+
+            reader.setExchangeLatency(40);
+            Future<Bitmap> picture = thaiSmartCard.readPictureAsync(null, null);
+
+            Thread.sleep(60);
+            start = System.nanoTime();
+            reader.removeCard();
+
+            assertNull(picture.get());
+            assertTrue((System.nanoTime() - start) / 1000000 < 40);
+            assertEquals("removed 0", events.poll(1, TimeUnit.SECONDS));
+        } finally {
+            device.stop();
+        }
+    }
+
+    @Test
+    public void personalPictureData_trimsPaddingOnly() {
+        byte[] jpeg = new byte[600];
+
+        // spaces inside the JPEG, one of them at the end of the first 255 bytes block
+        Arrays.fill(jpeg, (byte)0x20);
+        jpeg[0] = (byte)0xff;
+        jpeg[1] = (byte)0xd8;
+        jpeg[300] = (byte)0x01;
+        jpeg[jpeg.length - 2] = (byte)0xff;
+        jpeg[jpeg.length - 1] = (byte)0xd9;
+        this.card.setPicture(jpeg);
+
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertArrayEquals(jpeg, this.thaiSmartCard.getPersonalPictureData());
+
+        // picture area with only the padding
+        this.card.setPicture(new byte[0]);
+        assertEquals(0, this.thaiSmartCard.getPersonalPictureData().length);
+    }
+
+    @Test
+    public void readPictureAsync_decoderFutureGivesBitmap() throws Exception {
+        final LinkedBlockingQueue<String> results = new LinkedBlockingQueue<String>();
+        SmartCardPictureDecoder decoder = new SmartCardPictureDecoder(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, null);
+        Future<Bitmap> picture;
+
+        // read failure complete the future with null and call onError once
+        this.reader.removeCard();
+        picture = this.thaiSmartCard.readPictureAsync(decoder, 1, 0, null, null, new ThaiSmartCard.ResultCallback<Bitmap>() {
+            @Override
+            public void onSuccess(Bitmap result) {
+                results.add("success");
+            }
+
+            @Override
+            public void onError() {
+                results.add("error");
+            }
+        });
+
+        assertNull(picture.get(1, TimeUnit.SECONDS));
+        assertEquals("error", results.poll(1, TimeUnit.SECONDS));
+        assertNull(results.poll(50, TimeUnit.MILLISECONDS));
+
+        try {
+            this.thaiSmartCard.readPictureAsync(null, 1, 0, null, null, null);
+            fail();
+        } catch (NullPointerException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void cardStatus_probesSlotWithoutPowerOn() {
+        EmulatedSmartCardReader reader = new EmulatedSmartCardReader(new EmulatedThaiSmartCard());
+        SmartCardDevice device;
+
+        reader.setInterruptEndpoint(false);
+        device = SmartCardDevice.getSmartCardDevice(reader, null);
+
+        assertEquals(SmartCardMessage.IccStatus.INACTIVE, device.getCardStatus());
+        assertEquals(SmartCardMessage.IccStatus.INACTIVE, device.getCardStatus());
+        assertEquals(1, reader.getExchangeCount());
+
+        assertTrue(new ThaiSmartCard(device).isInserted());
+        assertEquals(SmartCardMessage.IccStatus.ACTIVE, device.getCardStatus());
+        assertEquals(2, reader.getExchangeCount());
+
+        reader.removeCard();
+        assertEquals(SmartCardMessage.IccStatus.ACTIVE, device.getCardStatus());
+        assertEquals(SmartCardMessage.IccStatus.ABSENT, device.getCardStatus(0));
+        assertFalse(device.isCardPresent());
+        assertEquals(3, reader.getExchangeCount());
+    }
+
+    @Test
+    public void exchangeLatency_isAppliedPerExchange() {
+        long start;
+
+        assertTrue(this.thaiSmartCard.isInserted());
+
+        this.reader.setExchangeLatency(2);
+        this.reader.resetExchangeCount();
+
+        start = System.nanoTime();
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+
+        // select + 3 read binary, each one command and one get response
+        assertEquals(8, this.reader.getExchangeCount());
+        assertTrue((System.nanoTime() - start) / 1000000 >= 8 * 2);
+    }
+
+    @Test
+    public void pictureReadMode_usesExtendedLengthOnlyAtExtendedApduLevel() {
+        byte[] jpeg = new byte[4000];
+
+        for (int i = 0; i < jpeg.length; i++) {
+            jpeg[i] = (byte)(i * 7);
+        }
+        jpeg[jpeg.length - 1] = (byte)0xd9;
+        this.card.setPicture(jpeg);
+
+        assertTrue(this.thaiSmartCard.isInserted());
+
+        // card limited to 255 bytes READ BINARY, fall back to the chunked read and remember it
+        this.reader.resetExchangeCount();
+        assertArrayEquals(jpeg, this.thaiSmartCard.getPersonalPictureData(0, null));
+        assertEquals(2 + 1 + 21 * 2, this.reader.getExchangeCount());
+
+        // applet still selected
+        this.reader.resetExchangeCount();
+        assertArrayEquals(jpeg, this.thaiSmartCard.getPersonalPictureData(0, null));
+        assertEquals(21 * 2, this.reader.getExchangeCount());
+
+        // card accepting extended Le, a TPDU reader still fetch the 5118 bytes by 20 short GET RESPONSE
+        this.card.setMaxReadLength(0xffff);
+        this.card.setExtendedLengthSupported(true);
+        this.thaiSmartCard.setPictureReadMode(ThaiSmartCard.PictureReadMode.AUTO);
+
+        this.reader.resetExchangeCount();
+        assertArrayEquals(jpeg, this.thaiSmartCard.getPersonalPictureData(0, null));
+        assertEquals(1 + 20, this.reader.getExchangeCount());
+
+        // extended mode asked on a TPDU reader is read chained
+        this.thaiSmartCard.setPictureReadMode(ThaiSmartCard.PictureReadMode.EXTENDED);
+
+        this.reader.resetExchangeCount();
+        assertArrayEquals(jpeg, this.thaiSmartCard.getPersonalPictureData(0, null));
+        assertEquals(1 + 20, this.reader.getExchangeCount());
+    }
+
+    @Test
+    public void knownResponseLength_skipsGetResponse() {
+        assertTrue(this.thaiSmartCard.isInserted());
+
+        // select + GET DATA sent with its exact Le
+        this.reader.resetExchangeCount();
+        assertNotNull(this.thaiSmartCard.getCardID());
+        assertEquals(2 + 1, this.reader.getExchangeCount());
+
+        // APDU level reader fetch the response of select and READ BINARY sent with Le
+        this.reader.setExchangeLevel(SmartCardDevice.ExchangeLevel.SHORT_APDU);
+        this.device.setExchangeLevel(SmartCardDevice.ExchangeLevel.SHORT_APDU);
+
+        this.reader.resetExchangeCount();
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+        assertEquals(1 + 3, this.reader.getExchangeCount());
+
+        this.reader.resetExchangeCount();
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+        assertEquals(3, this.reader.getExchangeCount());
+    }
+
+    @Test
+    public void protocolT1_chainsBlocksAndRecoversErrors() {
+        final int[] result = new int[]{-1};
+        byte[] jpeg = new byte[3000];
+
+        Arrays.fill(jpeg, (byte)0x5a);
+        this.card.setPicture(jpeg);
+        this.card.setPersonalID("3100600123456");
+
+        // T=0 and T=1 offered, small IFSC chain the PIN verify command
+        this.card.setATR(new byte[]{(byte)0x3b, (byte)0x81, (byte)0x80, (byte)0x01, (byte)0x80, (byte)0x80});
+        this.card.setProtocolT1(true);
+        this.card.setT1Parameters(16, true);
+
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(254, this.card.getIfsd());
+
+        this.card.setWaitingTimeExtension(1);
+        this.card.corruptNextBlocks(1);
+        assertEquals("3100600123456", this.thaiSmartCard.getPersonalInformation().PersonalID);
+
+        // 3 read binary without GET RESPONSE, the first block is 255 bytes and take two blocks
+        this.reader.resetExchangeCount();
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+        assertEquals(2 + 1 + 1, this.reader.getExchangeCount());
+
+        assertTrue(this.thaiSmartCard.verifyPinCode("1234", new ThaiSmartCard.VerifyPinCallback() {
+            @Override
+            public void onSuccess() {
+                result[0] = 0;
+            }
+
+            @Override
+            public void onFailed(int remain) {
+                result[0] = remain;
+            }
+
+            @Override
+            public void onError() {
+                result[0] = -2;
+            }
+        }));
+        assertEquals(0, result[0]);
+
+        this.card.setMaxReadLength(0xffff);
+        assertArrayEquals(jpeg, this.thaiSmartCard.getPersonalPictureData(0, null));
+    }
+
+    // TPDU reader with a CCID descriptor, the card rate can only be raised when the reader rates are known
+    private void setTpduReader(int features) {
+        this.reader = new EmulatedSmartCardReader(this.card);
+        this.reader.setClassDescriptor(getClassDescriptor(SmartCardDescriptor.FEATURE_LEVEL_TPDU | features, 271));
+        this.device = SmartCardDevice.getSmartCardDevice(this.reader, null);
+        this.thaiSmartCard = new ThaiSmartCard(this.device);
+    }
+
+    @Test
+    public void atrTA1_negotiatesFasterRate() {
+        // TA1 Fi=512 Di=32, T=0 only
+        this.card.setATR(new byte[]{(byte)0x3b, (byte)0x90, (byte)0x96, (byte)0x00});
+        this.setTpduReader(0);
+
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(0x96, this.card.getFiDi());
+        assertEquals((byte)0x96, this.reader.getParameters(0)[0]);
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+
+        // power on, known PPS not answered, power off, power on
+        this.card.setPpsSupported(false);
+        this.reader.resetExchangeCount();
+
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(SmartCardAtr.DEFAULT_FIDI, this.card.getFiDi());
+        assertEquals(4, this.reader.getExchangeCount());
+
+        // a PPS failing again is retried with get parameters first, then no PPS anymore on this reader
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(4 + 5 + 5, this.reader.getExchangeCount());
+
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(4 + 5 + 5 + 1, this.reader.getExchangeCount());
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+
+        // failures are kept by reader, another reader still try the PPS
+        this.device.stop();
+        this.setTpduReader(0);
+        this.reader.setProductName("Other Smart Card Reader");
+        this.card.setPpsSupported(true);
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(0x96, this.card.getFiDi());
+    }
+
+    @Test
+    public void profileCache_skipsNegotiationForKnownCard() {
+        SmartCardAtr atr;
+        ThaiSmartCard other;
+
+        this.card.setATR(new byte[]{(byte)0x3b, (byte)0x90, (byte)0x96, (byte)0x00});
+        this.setTpduReader(0);
+
+        // power on, get parameters, PPS, set parameters, set data rate
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(5, this.reader.getExchangeCount());
+
+        atr = this.device.getParsedATR();
+        assertNotNull(atr);
+        assertEquals(SmartCardAtr.Convention.DIRECT, atr.getConvention());
+        assertEquals(512, atr.getFi());
+        assertEquals(32, atr.getDi());
+        assertEquals(0, atr.getHistoricalBytes().length);
+        assertTrue(Arrays.equals(new int[]{0}, atr.getProtocols()));
+
+        // known card type go straight to the PPS
+        this.reader.resetExchangeCount();
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(4, this.reader.getExchangeCount());
+        assertEquals(0x96, this.card.getFiDi());
+
+        // card limited to 255 bytes READ BINARY, the short read is learned by the card type
+        // the reader message length leave out the extended GET RESPONSE
+        this.reader.resetExchangeCount();
+        assertNotNull(this.thaiSmartCard.getPersonalPictureData(0, null));
+        assertEquals(2 + 1 + 21 * 2, this.reader.getExchangeCount());
+
+        // another instance start with the learned mode
+        other = new ThaiSmartCard(this.device);
+        this.reader.resetExchangeCount();
+        assertNotNull(other.getPersonalPictureData(0, null));
+        assertEquals(21 * 2, this.reader.getExchangeCount());
+
+        // the cache is per device when set, a new cache learn again
+        this.device.setProfileCache(new SmartCardProfileCache(4));
+        assertTrue(other.isInserted());
+        this.reader.resetExchangeCount();
+        assertNotNull(other.getPersonalPictureData(0, null));
+        assertEquals(2 + 1 + 21 * 2, this.reader.getExchangeCount());
+        assertEquals(1, this.device.getProfileCache().size());
+    }
+
+    @Test
+    public void xfrBlock_sentInOneTransfer() {
+        byte[] apdu = new byte[5 + 100];
+
+        apdu[1] = (byte)0xa4;
+        apdu[2] = (byte)0x04;
+        apdu[4] = (byte)100;
+
+        assertTrue(this.thaiSmartCard.isInserted());
+
+        // 110 bytes message, one transfer whatever the 64 bytes packet size
+        this.reader.resetExchangeCount();
+        assertNotNull(this.device.sendAPDU(apdu));
+        assertEquals(1, this.reader.getExchangeCount());
+        assertEquals(1, this.reader.getTransferCount());
+
+        // compatibility mode send one transfer per packet
+        this.device.setMessageFragmented(true);
+        this.reader.resetExchangeCount();
+        assertNotNull(this.device.sendAPDU(apdu));
+        assertEquals(1, this.reader.getExchangeCount());
+        assertEquals(2, this.reader.getTransferCount());
+    }
+
+    @Test
+    public void selectedApplet_skipsRedundantSelect() {
+        assertTrue(this.thaiSmartCard.isInserted());
+
+        // select storage applet, 3 info blocks then the picture without another select
+        this.reader.resetExchangeCount();
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+        assertNotNull(this.thaiSmartCard.getPersonalPictureData(0, null));
+        assertEquals(2 + 3 * 2 + 1 + 21 * 2, this.reader.getExchangeCount());
+
+        // another applet is selected again
+        this.reader.resetExchangeCount();
+        assertNotNull(this.thaiSmartCard.getCardID());
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+        assertEquals(2 + 1 + 2 + 3 * 2, this.reader.getExchangeCount());
+
+        // power on forget the selected applet
+        assertTrue(this.thaiSmartCard.isInserted());
+        this.reader.resetExchangeCount();
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+        assertEquals(2 + 3 * 2, this.reader.getExchangeCount());
+
+        // removal too
+        this.reader.removeCard();
+        assertFalse(this.thaiSmartCard.isInserted());
+        this.reader.insertCard(this.card);
+        assertTrue(this.thaiSmartCard.isInserted());
+        this.reader.resetExchangeCount();
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+        assertEquals(2 + 3 * 2, this.reader.getExchangeCount());
+    }
+
+    @Test
+    public void readCard_selectsEachAppletOnce() {
+        ThaiSmartCard.CardData cardData;
+
+        this.card.setPersonalID("3100600123456");
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+
+        // storage applet already selected is read first, then chip data and extension applet
+        this.reader.resetExchangeCount();
+        cardData = this.thaiSmartCard.readAll();
+        assertEquals(3 * 2 + 1 + 21 * 2 + 2 + 1 + 2 + 1, this.reader.getExchangeCount());
+
+        assertNotNull(cardData.CardID);
+        assertNotNull(cardData.ChipCardADM);
+        assertEquals("3100600123456", cardData.PersonalInformation.PersonalID);
+        assertNotNull(cardData.PictureData);
+        assertTrue(cardData.Failed.isEmpty());
+        assertEquals(4, cardData.Timings.size());
+
+        // part not requested is not read
+        this.reader.resetExchangeCount();
+        cardData = this.thaiSmartCard.readCard(EnumSet.of(ThaiSmartCard.Part.CARD_ID));
+        assertEquals(2 + 1, this.reader.getExchangeCount());
+        assertNotNull(cardData.CardID);
+        assertNull(cardData.PersonalInformation);
+        assertEquals(1, cardData.Timings.size());
+
+        // the part failing is reported, others are still read
+        this.reader.removeCard();
+        cardData = this.thaiSmartCard.readAll();
+        assertEquals(4, cardData.Failed.size());
+        assertNull(cardData.CardID);
+    }
+
+    @Test
+    public void fieldProjection_readsOnlyCoalescedRanges() {
+        ThaiSmartCard.PersonalInformation personalInformation;
+        ArrayList<int[]> plan;
+
+        this.card.setPersonalID("3100600123456");
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+
+        // every field is the same 3 READ BINARY as before
+        plan = ThaiSmartCard.planRead(EnumSet.allOf(ThaiSmartCard.Field.class));
+        assertEquals(3, plan.size());
+        assertTrue(Arrays.equals(new int[]{0, 0, 0xff}, plan.get(0)));
+        assertTrue(Arrays.equals(new int[]{0, 0xff, 0x7a}, plan.get(1)));
+        assertTrue(Arrays.equals(new int[]{1, 0, 0xae}, plan.get(2)));
+
+        // close fields are joined in one READ BINARY, far ones are not
+        assertEquals(1, ThaiSmartCard.planRead(EnumSet.of(ThaiSmartCard.Field.PERSONAL_ID, ThaiSmartCard.Field.BIRTH_DATE)).size());
+        assertEquals(2, ThaiSmartCard.planRead(EnumSet.of(ThaiSmartCard.Field.PERSONAL_ID, ThaiSmartCard.Field.ISSUER_CODE)).size());
+
+        this.reader.resetExchangeCount();
+        personalInformation = this.thaiSmartCard.getPersonalInformation(EnumSet.of(ThaiSmartCard.Field.PERSONAL_ID, ThaiSmartCard.Field.BIRTH_DATE));
+        assertEquals(2, this.reader.getExchangeCount());
+        assertEquals("3100600123456", personalInformation.PersonalID);
+        assertNotNull(personalInformation.BirthDate);
+        assertNull(personalInformation.NameTH);
+        assertNull(personalInformation.Address);
+    }
+
+    @Test
+    public void streamPicture_givesChunksWithoutPadding() {
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        final int[] completeLength = new int[]{-1};
+        byte[] jpeg = new byte[1000];
+
+        for (int i = 0; i < jpeg.length; i++) {
+            jpeg[i] = (byte)(i * 7 + 1);
+        }
+        // spaces at the end of the first chunk are part of the JPEG, not padding
+        jpeg[253] = 0x20;
+        jpeg[254] = 0x20;
+        jpeg[jpeg.length - 1] = (byte)0xd9;
+        this.card.setPicture(jpeg);
+
+        assertTrue(this.thaiSmartCard.isInserted());
+
+        assertTrue(this.thaiSmartCard.streamPersonalPicture(new ThaiSmartCard.PictureListener() {
+            @Override
+            public boolean onPictureData(byte[] data, int offset, int length, int position, int total) {
+                assertEquals(stream.size(), position);
+                assertEquals(5118, total);
+                stream.write(data, offset, length);
+                return true;
+            }
+
+            @Override
+            public void onPictureComplete(int length) {
+                completeLength[0] = length;
+            }
+        }));
+        assertArrayEquals(jpeg, stream.toByteArray());
+        assertEquals(jpeg.length, completeLength[0]);
+
+        // abort after the first chunk, the other chunks are not read
+        this.thaiSmartCard.setPictureReadMode(ThaiSmartCard.PictureReadMode.SHORT);
+        this.reader.resetExchangeCount();
+        assertFalse(this.thaiSmartCard.streamPersonalPicture(new ThaiSmartCard.PictureListener() {
+            @Override
+            public boolean onPictureData(byte[] data, int offset, int length, int position, int total) {
+                return false;
+            }
+
+            @Override
+            public void onPictureComplete(int length) {
+                fail();
+            }
+        }));
+        assertEquals(2, this.reader.getExchangeCount());
+    }
+
+    @Test
+    public void pictureRead_retriesAndResumesFailingBlock() {
+        byte[] jpeg = new byte[3000];
+
+        for (int i = 0; i < jpeg.length; i++) {
+            jpeg[i] = (byte)(i * 3 + 1);
+        }
+        jpeg[jpeg.length - 1] = (byte)0xd9;
+        this.card.setPicture(jpeg);
+
+        assertTrue(this.thaiSmartCard.isInserted());
+        this.thaiSmartCard.setPictureReadMode(ThaiSmartCard.PictureReadMode.SHORT);
+        assertNotNull(this.thaiSmartCard.getPersonalPictureData());
+
+        // block 6 glitch once, only that block is read again
+        this.card.failNextReads(0x017b + 5 * 0xff, 1);
+        this.reader.resetExchangeCount();
+        assertArrayEquals(jpeg, this.thaiSmartCard.getPersonalPictureData());
+        assertEquals(21 * 2 + 1, this.reader.getExchangeCount());
+
+        // block 6 keep failing, the 5 blocks read are kept for the next read of the same card
+        this.thaiSmartCard.setPictureResume(true);
+        assertNotNull(this.thaiSmartCard.getCardID());
+        this.card.failNextReads(0x017b + 5 * 0xff, 3);
+        assertNull(this.thaiSmartCard.getPersonalPictureData());
+
+        // card powered again keep its chip ID, the ATR is compared by value
+        assertTrue(this.thaiSmartCard.isInserted());
+        this.reader.resetExchangeCount();
+        assertArrayEquals(jpeg, this.thaiSmartCard.getPersonalPictureData());
+        assertEquals(2 + 16 * 2, this.reader.getExchangeCount());
+
+        // chip ID is forgotten when the card is removed, another card with the same ATR read the whole picture
+        // removal seen by isInserted() only, a slot change handled later would make the applet selected again
+        this.reader.setInterruptEndpoint(false);
+        this.card.failNextReads(0x017b + 5 * 0xff, 3);
+        assertNull(this.thaiSmartCard.getPersonalPictureData());
+        this.reader.removeCard();
+        assertFalse(this.thaiSmartCard.isInserted());
+        this.reader.insertCard(this.card);
+        assertTrue(this.thaiSmartCard.isInserted());
+        this.reader.resetExchangeCount();
+        assertArrayEquals(jpeg, this.thaiSmartCard.getPersonalPictureData());
+        assertEquals(2 + 21 * 2, this.reader.getExchangeCount());
+
+        // checkpoint is dropped once the picture is complete
+        this.reader.resetExchangeCount();
+        assertArrayEquals(jpeg, this.thaiSmartCard.getPersonalPictureData());
+        assertEquals(21 * 2, this.reader.getExchangeCount());
+    }
+
+    @Test
+    public void bulkIn_readsWholeResponseAtOnce() {
+        assertTrue(this.thaiSmartCard.isInserted());
+        this.thaiSmartCard.setPictureReadMode(ThaiSmartCard.PictureReadMode.SHORT);
+
+        // 267 bytes READ BINARY response is read by one transfer instead of five 64 bytes packets
+        this.reader.resetExchangeCount();
+        assertNotNull(this.thaiSmartCard.getPersonalPictureData(0, null));
+        assertEquals(2 + 21 * 2, this.reader.getExchangeCount());
+        assertEquals(this.reader.getExchangeCount(), this.reader.getReceiveCount());
+    }
+
+    @Test
+    public void atrTA1_rateRaisedOnlyWhenReaderFollows() {
+        this.card.setATR(new byte[]{(byte)0x3b, (byte)0x90, (byte)0x96, (byte)0x00});
+
+        // reader without descriptor may stay at 372/1, the card is left at the default rate
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(SmartCardAtr.DEFAULT_FIDI, this.card.getFiDi());
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+        this.device.stop();
+
+        // reader switching its rate with the parameters, no PC_to_RDR_SetDataRateAndClockFrequency
+        SmartCardProfileCache.getDefault().clear();
+        this.setTpduReader(SmartCardDescriptor.FEATURE_AUTO_BAUD_RATE);
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(4, this.reader.getExchangeCount());
+        assertEquals(0x96, this.card.getFiDi());
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+        this.device.stop();
+
+        // reader refusing the new rate, the card is powered again at the default rate
+        SmartCardProfileCache.getDefault().clear();
+        this.setTpduReader(0);
+        this.reader.setDataRateSupported(false);
+        assertTrue(this.thaiSmartCard.isInserted());
+        assertEquals(SmartCardAtr.DEFAULT_FIDI, this.card.getFiDi());
+        assertNotNull(this.thaiSmartCard.getPersonalInformation());
+    }
+
+    // CCID functional descriptor of a one slot T=0/T=1 reader
+    private static byte[] getClassDescriptor(int features, int maxMessageLength) {
+        byte[] descriptor = new byte[SmartCardDescriptor.DESCRIPTOR_LENGTH];
+        int[][] values = new int[][]{{6, 0x03}, {10, 4000}, {14, 4000}, {19, 10752}, {23, 344086}, {28, 254}, {40, features}, {44, maxMessageLength}};
+
+        descriptor[0] = (byte)SmartCardDescriptor.DESCRIPTOR_LENGTH;
+        descriptor[1] = (byte)SmartCardDescriptor.DESCRIPTOR_TYPE;
+        descriptor[2] = (byte)0x10;
+        descriptor[3] = (byte)0x01;
+
+        for (int[] value : values) {
+            for (int i = 0; i < 4; i++) {
+                descriptor[value[0] + i] = (byte)(value[1] >> (i * 8));
+            }
+        }
+
+        return descriptor;
+    }
+
+    @Test
+    public void classDescriptor_configuresReader() {
+        EmulatedSmartCardReader reader = new EmulatedSmartCardReader(this.card);
+        SmartCardDevice device;
+        ThaiSmartCard thaiSmartCard;
+
+        this.card.setATR(new byte[]{(byte)0x3b, (byte)0x90, (byte)0x96, (byte)0x00});
+
+        // TPDU reader doing the PPS itself, only the power on is sent
+        reader.setClassDescriptor(getClassDescriptor(SmartCardDescriptor.FEATURE_LEVEL_TPDU | SmartCardDescriptor.FEATURE_AUTO_PPS, 271));
+        device = SmartCardDevice.getSmartCardDevice(reader, null);
+        thaiSmartCard = new ThaiSmartCard(device);
+
+        assertEquals(SmartCardDevice.ExchangeLevel.TPDU, device.getExchangeLevel());
+        assertEquals(271, device.getDescriptor().getMaxMessageLength());
+        assertTrue(device.getDescriptor().isProtocolSupported(1));
+        assertNull(device.getSlotDevice(1));
+
+        reader.resetExchangeCount();
+        assertTrue(thaiSmartCard.isInserted());
+        assertEquals(1, reader.getExchangeCount());
+        assertNull(reader.getParameters(0));
+        device.stop();
+
+        // short APDU reader, the picture is read without extended GET RESPONSE and without 61xx round trip
+        reader = new EmulatedSmartCardReader(this.card);
+        reader.setExchangeLevel(SmartCardDevice.ExchangeLevel.SHORT_APDU);
+        reader.setClassDescriptor(getClassDescriptor(SmartCardDescriptor.FEATURE_LEVEL_SHORT_APDU | SmartCardDescriptor.FEATURE_AUTO_PARAMETERS, 271));
+        device = SmartCardDevice.getSmartCardDevice(reader, null);
+        thaiSmartCard = new ThaiSmartCard(device);
+
+        assertEquals(SmartCardDevice.ExchangeLevel.SHORT_APDU, device.getExchangeLevel());
+        assertTrue(thaiSmartCard.isInserted());
+
+        reader.resetExchangeCount();
+        assertNotNull(thaiSmartCard.getPersonalPictureData(0, null));
+        assertEquals(1 + 1 + 21, reader.getExchangeCount());
+        device.stop();
+    }
+
+    @Test
+    public void extendedApduLevel_chainsLongResponse() {
+        EmulatedSmartCardReader reader = new EmulatedSmartCardReader(this.card);
+        SmartCardDevice device;
+        ThaiSmartCard thaiSmartCard;
+        byte[] jpeg = new byte[4000];
+
+        for (int i = 0; i < jpeg.length; i++) {
+            jpeg[i] = (byte)(i * 3);
+        }
+        this.card.setPicture(jpeg);
+        this.card.setMaxReadLength(0xffff);
+        this.card.setExtendedLengthSupported(true);
+
+        reader.setExchangeLevel(SmartCardDevice.ExchangeLevel.EXTENDED_APDU);
+        reader.setClassDescriptor(getClassDescriptor(SmartCardDescriptor.FEATURE_LEVEL_EXTENDED_APDU | SmartCardDescriptor.FEATURE_AUTO_PARAMETERS, 1034));
+        device = SmartCardDevice.getSmartCardDevice(reader, null);
+        thaiSmartCard = new ThaiSmartCard(device);
+
+        assertEquals(SmartCardDevice.ExchangeLevel.EXTENDED_APDU, device.getExchangeLevel());
+        assertTrue(thaiSmartCard.isInserted());
+
+        // select, READ BINARY, then the 5120 bytes response in 1024 bytes parts
+        reader.resetExchangeCount();
+        assertArrayEquals(jpeg, thaiSmartCard.getPersonalPictureData(0, null));
+        assertEquals(1 + 1 + 5, reader.getExchangeCount());
+        device.stop();
+    }
+}
@@ -0,0 +1,679 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+public class EmulatedThaiSmartCard {
+    private static final String TAG = "EmulatedThaiSmartCard";
+
+    private static final byte[] AID_STORAGE = new byte[]{(byte)0xa0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x54, (byte)0x48, (byte)0x00, (byte)0x01};
+    private static final byte[] AID_EXTENSION = new byte[]{(byte)0xa0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x84, (byte)0x06, (byte)0x00, (byte)0x02};
+    private static final byte[] AID_BIO = new byte[]{(byte)0xa0, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x84, (byte)0x06, (byte)0x00, (byte)0x00};
+
+    private static final int STORAGE_LENGTH = 0x1579 + 0xae;
+    private static final int PICTURE_OFFSET = 0x017b;
+    private static final int PICTURE_LENGTH = 5118;
+    private static final int ADDRESS_OFFSET = 0x1579;
+
+    public enum Applet {
+        NONE,
+        CHIP_DATA,
+        STORAGE,
+        EXTENSION,
+        BIO
+    }
+
+    private byte[] atr = new byte[]{(byte)0x3b, (byte)0x67, (byte)0x00, (byte)0x00, (byte)0x73, (byte)0x20, (byte)0x00, (byte)0x6c, (byte)0x68, (byte)0x90, (byte)0x00};
+    private byte[] storage = new byte[STORAGE_LENGTH];
+    private byte[] chipData = new byte[45];
+    private byte[] admData = new byte[0x17];
+    private byte[] fingerPrintParameter = new byte[0x76];
+    private String pinCode = "1234";
+    private int pinRemain = 3;
+
+    private int maxReadLength = 0xff;
+    private boolean extendedLength = false;
+
+    private boolean protocolT1 = false;
+    private boolean ppsSupported = true;
+    private int ifsc = SmartCardT1.DEFAULT_IFS;
+    private boolean crc = false;
+    private int waitingTimeExtension = 0;
+    private int corruptBlock = 0;
+    private int failReadOffset = -1;
+    private int failReadCount = 0;
+
+    // state reset on power on
+    private boolean activeT1 = false;
+    private boolean ppsAllowed = false;
+    private int fiDi = SmartCardAtr.DEFAULT_FIDI;
+    private int ifsd = SmartCardT1.DEFAULT_IFS;
+    private int sendSequence = 0;
+    private int receiveSequence = 0;
+    private ByteArrayOutputStream commandChain = new ByteArrayOutputStream();
+    private byte[] responseChain = null;
+    private int responseOffset = 0;
+    private int responseBlockLength = 0;
+    private byte[] lastBlock = null;
+
+    private Applet selected = Applet.NONE;
+    private byte[] pendingResponse = null;
+    private byte[] challenge = null;
+    private SecureRandom random = new SecureRandom();
+
+    public EmulatedThaiSmartCard() {
+        Arrays.fill(this.storage, (byte)0x20);
+
+        this.setStorageString(0, 4, "0003");
+        this.setPersonalID("1234567890123");
+        this.setNameTH("นาย#สมชาย##ใจดี");
+        this.setNameEN("Mr.#Somchai##Jaidee");
+        this.setBirthDate("25300101");
+        this.setStorageString(225, 1, "1");
+        this.setStorageString(226, 11, "12345678901");
+        this.setStorageString(238, 8, "20590101");
+        this.setIssuer("กรุงเทพมหานคร");
+        this.setStorageString(346, 13, "1234567890123");
+        this.setIssueDate("25600101");
+        this.setExpireDate("25700101");
+        this.setStorageString(375, 2, "01");
+        this.setAddress("1#ถนนราชดำเนิน####แขวงพระบรมมหาราชวัง#เขตพระนคร#กรุงเทพมหานคร");
+        this.setStorageString(ADDRESS_OFFSET + 160, 14, "12345678901234");
+
+        byte[] picture = new byte[PICTURE_LENGTH - 1024];
+        this.random.nextBytes(picture);
+        picture[0] = (byte)0xff;
+        picture[1] = (byte)0xd8;
+        picture[picture.length - 2] = (byte)0xff;
+        picture[picture.length - 1] = (byte)0xd9;
+        this.setPicture(picture);
+
+        for (int i = 0; i < this.chipData.length; i++) {
+            this.chipData[i] = (byte)i;
+        }
+
+        this.admData[0] = 0x01;
+        this.admData[1] = 0x02;
+        this.admData[2] = 0x01;
+        this.admData[3] = 0x00;
+        System.arraycopy("JT0-1234567-89AB".getBytes(), 0, this.admData, 7, 16);
+    }
+
+    // longest READ BINARY the card accept, longer response is fetched by GET RESPONSE chaining
+    public void setMaxReadLength(int length) {
+        this.maxReadLength = length;
+    }
+
+    // accept GET RESPONSE with extended Le (case 2E), the whole pending response in one exchange
+    public void setExtendedLengthSupported(boolean supported) {
+        this.extendedLength = supported;
+    }
+
+    // T=1 card, a TPDU level reader pass the blocks to transmitBlock()
+    public void setProtocolT1(boolean t1) {
+        this.protocolT1 = t1;
+        this.activeT1 = t1;
+    }
+
+    // protocol in use, the default one or the one selected by PPS
+    public boolean isProtocolT1() {
+        return this.activeT1;
+    }
+
+    public void setPpsSupported(boolean supported) {
+        this.ppsSupported = supported;
+    }
+
+    // PPS is accepted only as the first exchange after the ATR
+    public boolean isPpsAllowed() {
+        return this.ppsAllowed;
+    }
+
+    // Fi/Di in use, default until a PPS is accepted
+    public int getFiDi() {
+        return this.fiDi;
+    }
+
+    public void setT1Parameters(int ifsc, boolean crc) {
+        this.ifsc = ifsc;
+        this.crc = crc;
+    }
+
+    public int getIfsc() {
+        return this.ifsc;
+    }
+
+    public boolean isCrc() {
+        return this.crc;
+    }
+
+    // IFSD announced by the host with S(IFS request)
+    public int getIfsd() {
+        return this.ifsd;
+    }
+
+    // the next count responses are preceded by S(WTX request)
+    public void setWaitingTimeExtension(int count) {
+        this.waitingTimeExtension = count;
+    }
+
+    // the next count blocks sent by the card have a wrong EDC
+    public void corruptNextBlocks(int count) {
+        this.corruptBlock = count;
+    }
+
+    // the next count READ BINARY at the storage offset answer 6F00
+    public void failNextReads(int offset, int count) {
+        this.failReadOffset = offset;
+        this.failReadCount = count;
+    }
+
+    public void setATR(byte[] atr) {
+        this.atr = atr;
+    }
+
+    public byte[] getATR() {
+        return this.atr;
+    }
+
+    public void setPersonalID(String value) {
+        this.setStorageString(4, 13, value);
+    }
+
+    public void setNameTH(String value) {
+        this.setStorageString(17, 100, value);
+    }
+
+    public void setNameEN(String value) {
+        this.setStorageString(117, 100, value);
+    }
+
+    public void setBirthDate(String value) {
+        this.setStorageString(217, 8, value);
+    }
+
+    public void setIssuer(String value) {
+        this.setStorageString(246, 100, value);
+    }
+
+    public void setIssueDate(String value) {
+        this.setStorageString(359, 8, value);
+    }
+
+    public void setExpireDate(String value) {
+        this.setStorageString(367, 8, value);
+    }
+
+    public void setAddress(String value) {
+        this.setStorageString(ADDRESS_OFFSET, 160, value);
+    }
+
+    public void setPicture(byte[] jpeg) {
+        if (jpeg == null || jpeg.length > PICTURE_LENGTH) {
+            throw new IllegalArgumentException("Invalid picture length");
+        }
+
+        Arrays.fill(this.storage, PICTURE_OFFSET, PICTURE_OFFSET + PICTURE_LENGTH, (byte)0x20);
+        System.arraycopy(jpeg, 0, this.storage, PICTURE_OFFSET, jpeg.length);
+    }
+
+    public void setChipData(byte[] chipData) {
+        if (chipData == null || chipData.length != 45) {
+            throw new IllegalArgumentException("Invalid chip data length");
+        }
+
+        this.chipData = chipData;
+    }
+
+    public void setPinCode(String pinCode, int remain) {
+        this.pinCode = pinCode;
+        this.pinRemain = remain;
+    }
+
+    public byte[] getStorageData(int offset, int length) {
+        return Arrays.copyOfRange(this.storage, offset, offset + length);
+    }
+
+    public Applet getSelectedApplet() {
+        return this.selected;
+    }
+
+    private void setStorageString(int offset, int length, String value) {
+        byte[] data;
+
+        try {
+            data = value.getBytes("TIS620");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalArgumentException("Cannot encode TIS620 string");
+        }
+
+        Arrays.fill(this.storage, offset, offset + length, (byte)0x20);
+        System.arraycopy(data, 0, this.storage, offset, Math.min(data.length, length));
+    }
+
+    // called by the reader on ICC power on and reset
+    public byte[] powerOn() {
+        this.selected = Applet.NONE;
+        this.pendingResponse = null;
+        this.challenge = null;
+
+        this.activeT1 = this.protocolT1;
+        this.ppsAllowed = true;
+        this.fiDi = SmartCardAtr.DEFAULT_FIDI;
+        this.ifsd = SmartCardT1.DEFAULT_IFS;
+        this.sendSequence = 0;
+        this.receiveSequence = 0;
+        this.commandChain.reset();
+        this.responseChain = null;
+        this.lastBlock = null;
+
+        return this.atr;
+    }
+
+    // echo the request when the protocol is offered and the rate is not faster than TA1, null = no answer
+    public byte[] pps(byte[] request) {
+        SmartCardAtr atr = SmartCardAtr.parse(this.atr);
+        int protocol, requested;
+
+        this.ppsAllowed = false;
+
+        if (!this.ppsSupported || atr == null || atr.isSpecificMode() || request.length < 3 || request[0] != (byte)0xff) {
+            return null;
+        }
+
+        if (SmartCardT1.getLrc(request, request.length) != 0) {
+            return null;
+        }
+
+        protocol = request[1] & 0x0f;
+        requested = ((request[1] & 0x10) != 0 && request.length == 4) ? request[2] & 0xff : SmartCardAtr.DEFAULT_FIDI;
+
+        if (!atr.isProtocolOffered(protocol) || SmartCardAtr.getCyclesPerBit(requested) < SmartCardAtr.getCyclesPerBit(atr.getFiDi())) {
+            return null;
+        }
+
+        this.activeT1 = (protocol == 1);
+        this.fiDi = requested;
+
+        return Arrays.copyOf(request, request.length);
+    }
+
+    // card side of the T=1 block protocol
+    public byte[] transmitBlock(byte[] block) {
+        byte[] inf, response;
+        int pcb;
+
+        this.ppsAllowed = false;
+
+        if (!this.isValidBlock(block)) {
+            return this.sendBlock(this.getBlock(0x80 | (this.receiveSequence << 4) | 0x01, null), false);
+        }
+
+        pcb = block[1] & 0xff;
+        inf = Arrays.copyOfRange(block, 3, 3 + (block[2] & 0xff));
+
+        if ((pcb & 0xc0) == 0xc0) {
+            switch (pcb & 0x3f) {
+                case 0x00: // S(RESYNCH request)
+                    this.sendSequence = 0;
+                    this.receiveSequence = 0;
+                    this.commandChain.reset();
+                    this.responseChain = null;
+                    return this.sendBlock(this.getBlock(0xe0, null), true);
+
+                case 0x01: // S(IFS request)
+                    this.ifsd = inf[0] & 0xff;
+                    return this.sendBlock(this.getBlock(0xe1, inf), true);
+
+                case 0x23: // S(WTX response)
+                    if (this.responseChain != null) {
+                        return this.sendResponseBlock();
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+
+            return this.sendBlock(this.getBlock(0x80 | (this.receiveSequence << 4) | 0x02, null), false);
+        }
+
+        if ((pcb & 0xc0) == 0x80) {
+            // acknowledge of our chained block, otherwise the host ask for the last block again
+            if (this.responseChain != null && ((pcb >> 4) & 1) == this.sendSequence) {
+                this.responseOffset += this.responseBlockLength;
+                return this.sendResponseBlock();
+            }
+
+            return this.sendBlock(this.lastBlock, false);
+        }
+
+        if (((pcb >> 6) & 1) != this.receiveSequence) {
+            return this.sendBlock(this.lastBlock, false);
+        }
+
+        this.receiveSequence ^= 1;
+        this.responseChain = null;
+        this.commandChain.write(inf, 0, inf.length);
+
+        if ((pcb & 0x20) != 0) {
+            return this.sendBlock(this.getBlock(0x80 | (this.receiveSequence << 4), null), true);
+        }
+
+        response = this.transmit(this.commandChain.toByteArray());
+        this.commandChain.reset();
+
+        // T=1 card return the data at once, no GET RESPONSE
+        if (response.length == 2 && response[0] == (byte)0x61) {
+            response = this.getResponse(this.pendingResponse.length, true);
+        }
+
+        this.responseChain = response;
+        this.responseOffset = 0;
+        this.responseBlockLength = 0;
+
+        if (this.waitingTimeExtension > 0) {
+            this.waitingTimeExtension--;
+            return this.sendBlock(this.getBlock(0xc3, new byte[]{(byte)0x02}), true);
+        }
+
+        return this.sendResponseBlock();
+    }
+
+    private byte[] sendResponseBlock() {
+        byte[] response = this.responseChain;
+        boolean more;
+
+        this.responseBlockLength = Math.min(this.ifsd, response.length - this.responseOffset);
+        more = this.responseOffset + this.responseBlockLength < response.length;
+
+        byte[] block = this.getBlock((this.sendSequence << 6) | (more ? 0x20 : 0x00), Arrays.copyOfRange(response, this.responseOffset, this.responseOffset + this.responseBlockLength));
+
+        this.sendSequence ^= 1;
+
+        if (!more) {
+            this.responseChain = null;
+        }
+
+        return this.sendBlock(block, true);
+    }
+
+    private byte[] sendBlock(byte[] block, boolean remember) {
+        if (block == null) {
+            block = this.getBlock(0x80 | (this.receiveSequence << 4) | 0x02, null);
+        }
+
+        if (remember) {
+            this.lastBlock = block;
+        }
+
+        if (this.corruptBlock > 0) {
+            this.corruptBlock--;
+            block = Arrays.copyOf(block, block.length);
+            block[block.length - 1] ^= 0x5a;
+        }
+
+        return block;
+    }
+
+    private byte[] getBlock(int pcb, byte[] inf) {
+        int length = (inf != null) ? inf.length : 0;
+        byte[] block = new byte[3 + length + (this.crc ? 2 : 1)];
+        int edc;
+
+        block[1] = (byte)pcb;
+        block[2] = (byte)length;
+
+        if (length > 0) {
+            System.arraycopy(inf, 0, block, 3, length);
+        }
+
+        if (this.crc) {
+            edc = SmartCardT1.getCrc(block, 3 + length);
+            block[3 + length] = (byte)(edc >> 8);
+            block[4 + length] = (byte)edc;
+        } else {
+            block[3 + length] = SmartCardT1.getLrc(block, 3 + length);
+        }
+
+        return block;
+    }
+
+    private boolean isValidBlock(byte[] block) {
+        int length, edc;
+
+        if (block == null || block.length < 4) {
+            return false;
+        }
+
+        length = block[2] & 0xff;
+
+        if (length > this.ifsc || block.length != 3 + length + (this.crc ? 2 : 1)) {
+            return false;
+        }
+
+        if (this.crc) {
+            edc = SmartCardT1.getCrc(block, 3 + length);
+            return block[3 + length] == (byte)(edc >> 8) && block[4 + length] == (byte)edc;
+        }
+
+        return block[3 + length] == SmartCardT1.getLrc(block, 3 + length);
+    }
+
+    public byte[] transmit(byte[] apdu) {
+        int cla, ins, p1, p2, lc = 0, le = -1;
+        byte[] data = new byte[0];
+
+        this.ppsAllowed = false;
+
+        if (apdu == null || apdu.length < 4) {
+            return status(0x6700);
+        }
+
+        cla = apdu[0] & 0xff;
+        ins = apdu[1] & 0xff;
+        p1 = apdu[2] & 0xff;
+        p2 = apdu[3] & 0xff;
+
+        if (apdu.length == 5) {
+            le = apdu[4] & 0xff;
+        } else if (apdu.length == 7 && apdu[4] == 0x00) {
+            if (!this.extendedLength) {
+                return status(0x6700);
+            }
+
+            le = ((apdu[5] & 0xff) << 8) | (apdu[6] & 0xff);
+            if (le == 0) {
+                le = 65536;
+            }
+        } else if (apdu.length > 5) {
+            lc = apdu[4] & 0xff;
+            if (apdu.length < 5 + lc) {
+                return status(0x6700);
+            }
+            data = Arrays.copyOfRange(apdu, 5, 5 + lc);
+        }
+
+        if (ins != 0xc0) {
+            this.pendingResponse = null;
+        }
+
+        if (cla == 0x00 && ins == 0xa4) {
+            return this.select(p1, data);
+        }
+
+        if (cla == 0x00 && ins == 0xc0) {
+            if (this.pendingResponse == null) {
+                return status(0x6985);
+            }
+
+            return this.getResponse(le, apdu.length == 7);
+        }
+
+        switch (this.selected) {
+            case CHIP_DATA:
+                if (cla == 0x80 && ins == 0xca && p1 == 0x9f && p2 == 0x7f) {
+                    return this.responseWithLength(this.chipData, le);
+                }
+                break;
+
+            case STORAGE:
+                if (cla == 0x80 && ins == 0xb0 && lc == 2) {
+                    int offset = (p1 << 8) | p2;
+                    int length = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+
+                    if (length > this.maxReadLength) {
+                        return status(0x6700);
+                    }
+
+                    if (offset + length > this.storage.length) {
+                        return status(0x6b00);
+                    }
+
+                    if (offset == this.failReadOffset && this.failReadCount > 0) {
+                        this.failReadCount--;
+                        return status(0x6f00);
+                    }
+
+                    return this.pending(Arrays.copyOfRange(this.storage, offset, offset + length));
+                }
+                break;
+
+            case EXTENSION:
+                if (cla == 0x80 && ins == 0x00 && p1 == 0x00 && p2 == 0x00) {
+                    return this.responseWithLength(this.admData, le);
+                }
+
+                if (cla == 0x80 && ins == 0xb4) {
+                    this.challenge = new byte[0x20];
+                    this.random.nextBytes(this.challenge);
+
+                    return this.responseWithLength(this.challenge, le);
+                }
+
+                if (cla == 0x80 && ins == 0x20 && p1 == 0x01 && lc == 0x20) {
+                    return this.verify(data);
+                }
+                break;
+
+            case BIO:
+                if (cla == 0xb0 && ins == 0x34) {
+                    return this.responseWithLength(this.fingerPrintParameter, (le < 0) ? p2 : le);
+                }
+                break;
+
+            default:
+                break;
+        }
+
+        Log.d(TAG, String.format("Unsupported instruction %02x%02x in applet %s", cla, ins, this.selected));
+        return status(0x6d00);
+    }
+
+    private byte[] select(int p1, byte[] aid) {
+        if (p1 != 0x04) {
+            return status(0x6a86);
+        }
+
+        if (aid.length == 0) {
+            this.selected = Applet.CHIP_DATA;
+        } else if (Arrays.equals(aid, AID_STORAGE)) {
+            this.selected = Applet.STORAGE;
+        } else if (Arrays.equals(aid, AID_EXTENSION)) {
+            this.selected = Applet.EXTENSION;
+        } else if (Arrays.equals(aid, AID_BIO)) {
+            this.selected = Applet.BIO;
+        } else {
+            return status(0x6a82);
+        }
+
+        return this.pending(new byte[]{(byte)0x6f, (byte)0x08, (byte)0x84, (byte)0x06, aid.length > 0 ? aid[0] : 0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00, (byte)0x00});
+    }
+
+    private byte[] verify(byte[] answer) {
+        byte[] expected;
+
+        if (this.challenge == null) {
+            return status(0x6985);
+        }
+
+        if (this.pinRemain <= 0) {
+            return status(0x6983);
+        }
+
+        expected = ThaiSmartCard.getPinChallengeAnswer(this.pinCode, this.challenge);
+        this.challenge = null;
+
+        if (expected != null && Arrays.equals(expected, answer)) {
+            this.pinRemain = 3;
+            return status(0x9000);
+        }
+
+        this.pinRemain--;
+
+        return status(0x6300 | this.pinRemain);
+    }
+
+    // T=0 case 3/4 command, data is fetched by GET RESPONSE, 6100 when 256 bytes or more are available
+    private byte[] pending(byte[] response) {
+        this.pendingResponse = response;
+
+        return status(0x6100 | ((response.length < 256) ? response.length : 0));
+    }
+
+    // return up to Le bytes of the pending response, 61xx when more is left
+    private byte[] getResponse(int le, boolean extended) {
+        byte[] pending = this.pendingResponse;
+        int length, remain;
+        byte[] result;
+
+        if (le < 0) {
+            return status(0x6700);
+        }
+
+        length = (extended || le > 0) ? le : 256;
+        if (length > pending.length) {
+            if (extended || pending.length >= 256) {
+                length = pending.length;
+            } else {
+                return status(0x6c00 | pending.length);
+            }
+        }
+
+        remain = pending.length - length;
+        result = Arrays.copyOf(pending, length + 2);
+
+        if (remain > 0) {
+            this.pendingResponse = Arrays.copyOfRange(pending, length, pending.length);
+            result[length] = (byte)0x61;
+            result[length + 1] = (byte)((remain < 256) ? remain : 0);
+        } else {
+            this.pendingResponse = null;
+            result[length] = (byte)0x90;
+            result[length + 1] = (byte)0x00;
+        }
+
+        return result;
+    }
+
+    // T=0 case 2 command, P3 must match the available length
+    private byte[] responseWithLength(byte[] response, int le) {
+        if (le < 0 || (le == 0 ? 256 : le) != response.length) {
+            return status(0x6c00 | (response.length & 0xff));
+        }
+
+        byte[] result = Arrays.copyOf(response, response.length + 2);
+        result[response.length] = (byte)0x90;
+        result[response.length + 1] = (byte)0x00;
+
+        return result;
+    }
+
+    private static byte[] status(int sw) {
+        return new byte[]{(byte)((sw >> 8) & 0xff), (byte)(sw & 0xff)};
+    }
+}
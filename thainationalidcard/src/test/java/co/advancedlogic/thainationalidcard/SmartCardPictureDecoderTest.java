@@ -0,0 +1,72 @@
+package co.advancedlogic.thainationalidcard;
+
+import android.graphics.Bitmap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SmartCardPictureDecoderTest {
+    private SmartCardPictureDecoder decoder;
+
+    @Before
+    public void setUp() {
+        this.decoder = new SmartCardPictureDecoder(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new SmartCardBitmapPool(1));
+    }
+
+    @Test
+    public void decode_rejectsInvalidInput() {
+        byte[] jpeg = new byte[]{(byte)0xff, (byte)0xd8, (byte)0xff, (byte)0xd9};
+
+        assertNull(this.decoder.decode(null, 1));
+        assertNull(this.decoder.decode(new byte[0], 1));
+        assertNull(this.decoder.decode(jpeg, 0));
+        assertNull(this.decoder.decode(jpeg, -2));
+    }
+
+    @Test
+    public void decodeAsync_invalidInputCallsOnError() throws Exception {
+        final LinkedBlockingQueue<String> results = new LinkedBlockingQueue<String>();
+        Future<Bitmap> bitmap;
+
+        bitmap = this.decoder.decodeAsync(null, 1, null, new ThaiSmartCard.ResultCallback<Bitmap>() {
+            @Override
+            public void onSuccess(Bitmap result) {
+                results.add("success");
+            }
+
+            @Override
+            public void onError() {
+                results.add("error");
+            }
+        });
+
+        assertNull(bitmap.get(1, TimeUnit.SECONDS));
+        assertEquals("error", results.poll());
+        assertNull(results.poll());
+
+        // without callback only the future tell the failure
+        assertNull(this.decoder.decodeAsync(new byte[0], 1, null, null).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void constructor_requiresExecutor() {
+        try {
+            new SmartCardPictureDecoder(null, null);
+            fail();
+        } catch (NullPointerException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package co.advancedlogic.thainationalidcard;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+public class UsbRequestReceiverTest {
+    private FakeEndpoint endpoint;
+    private UsbRequestReceiver receiver;
+
+    @Before
+    public void setUp() {
+        this.endpoint = new FakeEndpoint(2);
+        this.receiver = new UsbRequestReceiver(this.endpoint, new SmartCardBufferPool(64, 2), 2);
+    }
+
+    @Test
+    public void receive_copiesCompletedTransfer() {
+        byte[] buffer = new byte[64];
+
+        this.endpoint.addData(new byte[]{1, 2, 3, 4, 5});
+
+        // transfer longer than the caller buffer is returned by the next receive
+        assertEquals(3, this.receiver.receive(buffer, 0, 3, 0));
+        assertEquals(2, this.receiver.receive(buffer, 3, 10, 0));
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3, 4, 5}, Arrays.copyOf(buffer, 5)));
+    }
+
+    @Test
+    public void cancel_doesNotWaitForRequestNeverReturned() throws Exception {
+        byte[] buffer = new byte[64];
+
+        // no transfer, the requests stay queued
+        this.endpoint.timeoutSupported = true;
+        assertEquals(-1, this.receiver.receive(buffer, 0, buffer.length, 20));
+
+        this.endpoint.returnCancelled = false;
+        assertFinishes(new Runnable() {
+            @Override
+            public void run() {
+                UsbRequestReceiverTest.this.receiver.cancel();
+            }
+        });
+
+        // before Oreo requestWait() can not be bounded, cancel() does not reap at all
+        this.endpoint.timeoutSupported = false;
+        assertFinishes(new Runnable() {
+            @Override
+            public void run() {
+                UsbRequestReceiverTest.this.receiver.close();
+            }
+        });
+    }
+
+    @Test
+    public void cancelledRequest_isReapedByNextReceive() {
+        byte[] buffer = new byte[64];
+
+        this.endpoint.timeoutSupported = true;
+        assertEquals(-1, this.receiver.receive(buffer, 0, buffer.length, 20));
+
+        // cancelled requests come back only after cancel() returned
+        this.endpoint.timeoutSupported = false;
+        this.endpoint.returnCancelled = false;
+        this.receiver.cancel();
+        this.endpoint.returnLateCancelled();
+
+        this.endpoint.addData(new byte[]{7, 8});
+        assertEquals(2, this.receiver.receive(buffer, 0, buffer.length, 0));
+        assertEquals(7, buffer[0]);
+    }
+
+    @Test
+    public void receive_timeoutBoundedWithoutRequestWaitTimeout() throws Exception {
+        final int[] length = new int[1];
+        byte[] buffer = new byte[64];
+
+        // before Oreo the deadline cancel the queued requests
+        assertFinishes(new Runnable() {
+            @Override
+            public void run() {
+                length[0] = UsbRequestReceiverTest.this.receiver.receive(new byte[64], 0, 64, 50);
+            }
+        });
+        assertEquals(-1, length[0]);
+
+        // requests are queued again once they came back
+        this.endpoint.addData(new byte[]{9});
+        assertEquals(1, this.receiver.receive(buffer, 0, buffer.length, 50));
+        assertEquals(9, buffer[0]);
+    }
+
+    @Test
+    public void abort_beforeReceiveIsNotLost() {
+        byte[] buffer = new byte[64];
+
+        this.receiver.abort();
+        assertEquals(-1, this.receiver.receive(buffer, 0, buffer.length, 0));
+
+        // abort is reported once
+        this.endpoint.addData(new byte[]{5});
+        assertEquals(1, this.receiver.receive(buffer, 0, buffer.length, 0));
+    }
+
+    @Test
+    public void killedRequest_isDroppedAndQueuedAgain() {
+        byte[] buffer = new byte[64];
+
+        this.endpoint.addData(new byte[]{1});
+        assertEquals(1, this.receiver.receive(buffer, 0, buffer.length, 0));
+
+        // interface released while a request is queued, usbfs complete it without data
+        this.endpoint.kill();
+        this.endpoint.addData(new byte[]{2, 3});
+        assertEquals(2, this.receiver.receive(buffer, 0, buffer.length, 0));
+        assertEquals(2, buffer[0]);
+
+        // the dropped request is in use again
+        this.endpoint.addData(new byte[]{4});
+        assertEquals(1, this.receiver.receive(buffer, 0, buffer.length, 0));
+        assertEquals(4, buffer[0]);
+    }
+
+    private static void assertFinishes(Runnable runnable) throws InterruptedException {
+        Thread thread = new Thread(runnable);
+
+        thread.start();
+        thread.join(1000);
+
+        assertFalse(thread.isAlive());
+    }
+
+    // USB endpoint without device, transfers given by addData() complete the queued requests in order
+    static final class FakeEndpoint implements UsbRequestReceiver.Endpoint {
+        final LinkedBlockingQueue<Integer> completions = new LinkedBlockingQueue<Integer>();
+        final ArrayDeque<Integer> pending = new ArrayDeque<Integer>();
+        final ArrayDeque<byte[]> data = new ArrayDeque<byte[]>();
+        final ArrayList<Integer> lateCancelled = new ArrayList<Integer>();
+        final ByteBuffer[] buffers;
+        volatile boolean timeoutSupported = false;
+        volatile boolean returnCancelled = true;
+
+        FakeEndpoint(int depth) {
+            this.buffers = new ByteBuffer[depth];
+        }
+
+        synchronized void addData(byte[] transfer) {
+            this.data.addLast(transfer);
+            this.completeQueued();
+        }
+
+        // requests still pending complete with no data like usbfs kill them on releaseInterface()
+        synchronized void kill() {
+            this.completions.addAll(this.pending);
+            this.pending.clear();
+        }
+
+        synchronized void returnLateCancelled() {
+            this.completions.addAll(this.lateCancelled);
+            this.lateCancelled.clear();
+        }
+
+        private void completeQueued() {
+            while (!this.pending.isEmpty() && !this.data.isEmpty()) {
+                int index = this.pending.pollFirst();
+
+                this.buffers[index].put(this.data.pollFirst());
+                this.completions.add(index);
+            }
+        }
+
+        @Override
+        public boolean initialize(int index) {
+            return true;
+        }
+
+        @Override
+        public synchronized boolean queue(int index, ByteBuffer buffer) {
+            this.buffers[index] = buffer;
+            this.pending.addLast(index);
+            this.completeQueued();
+            return true;
+        }
+
+        @Override
+        public synchronized void cancel(int index) {
+            if (!this.pending.remove(index)) {
+                return;
+            }
+
+            if (this.returnCancelled) {
+                this.completions.add(index);
+            } else {
+                this.lateCancelled.add(index);
+            }
+        }
+
+        @Override
+        public void close(int index) {
+        }
+
+        @Override
+        public int requestWait(int timeout) throws TimeoutException {
+            Integer index;
+
+            try {
+                if (timeout > 0 && this.timeoutSupported) {
+                    index = this.completions.poll(timeout, TimeUnit.MILLISECONDS);
+                } else {
+                    index = this.completions.take();
+                }
+            } catch (InterruptedException e) {
+                return -1;
+            }
+
+            if (index == null) {
+                throw new TimeoutException();
+            }
+
+            return index;
+        }
+
+        @Override
+        public boolean isTimeoutSupported() {
+            return this.timeoutSupported;
+        }
+    }
+}